@@ -0,0 +1,211 @@
+package com.example.moviessync;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * 長さプレフィックス付きバイナリフレームのエンコード/デコード
+ *
+ * フレーム構成（ビッグエンディアン）:
+ *   u16 length   以降のバイト数
+ *   u8  type     MessageTypeのordinal（最上位ビットが立っていれば時刻ヘッダ付き）
+ *   u8  count    固定長フィールド数
+ *   [i64 tx_us, i64 origin_us, i64 origin_recv_us]  時刻ヘッダ（ハンドシェイクで合意した場合のみ）
+ *   i64 × count  メッセージ種別ごとのスキーマ順の値
+ *   残り         スキーマ外のデータ（UTF-8のJSON、無ければ省略）
+ */
+public final class BinaryCodec {
+    // スキーマを変更したら上げる（ハンドシェイクで一致しなければJSONで通信）
+    // フィールドを末尾に追加するだけなら互換性は保たれるので上げなくてよい
+    public static final int VERSION = 1;
+    public static final int LENGTH_PREFIX_SIZE = 2;
+    public static final int HEADER_SIZE = LENGTH_PREFIX_SIZE + 2;
+    public static final int MAX_FRAME_SIZE = LENGTH_PREFIX_SIZE + 0xFFFF;
+    // 時刻ヘッダ: 送信時刻、相手から最後に受け取った送信時刻、それを受け取った時刻（各i64）
+    public static final int TIME_HEADER_SIZE = 24;
+    private static final int TIME_HEADER_FLAG = 0x80;
+
+    private static final String[] NO_FIELDS = new String[0];
+    private static final String[][] SCHEMA = new String[MessageType.values().length][];
+    private static final MessageType[] TYPES = MessageType.values();
+
+    static {
+        for (int i = 0; i < SCHEMA.length; i++) {
+            SCHEMA[i] = NO_FIELDS;
+        }
+        SCHEMA[MessageType.SYNC_TIME.ordinal()] = new String[]{"server_now", "client_send_us", "server_recv_us", "server_send_us"};
+        SCHEMA[MessageType.PLAY_COMMAND.ordinal()] = new String[]{"target_epoch_ms", "start_id", "loop_duration_ms", "loop_gap_ms", "media_id"};
+        SCHEMA[MessageType.PREPARE_COMMAND.ordinal()] = new String[]{"start_id"};
+        SCHEMA[MessageType.READY.ordinal()] = new String[]{"start_id"};
+        SCHEMA[MessageType.LOOP_END.ordinal()] = new String[]{"loop_id"};
+        SCHEMA[MessageType.VIDEO_METADATA.ordinal()] = new String[]{"media_id", "size", "chunk_size"};
+        SCHEMA[MessageType.MEDIA_PROGRESS.ordinal()] = new String[]{"media_id", "received", "size"};
+        SCHEMA[MessageType.START_REPORT.ordinal()] = new String[]{"start_id", "recv_to_armed_us", "recv_to_play_us", "skew_us"};
+        SCHEMA[MessageType.START_ACK.ordinal()] = new String[]{"start_id"};
+    }
+
+    private BinaryCodec() {
+    }
+
+    // メッセージ種別ごとの固定長フィールド名
+    public static String[] fields(MessageType type) {
+        return SCHEMA[type.ordinal()];
+    }
+
+    public static int fieldIndex(MessageType type, String key) {
+        String[] fields = SCHEMA[type.ordinal()];
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == key || fields[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 固定長フィールドのみのフレームをdstへ書き込む（割り当てなし）
+     */
+    public static void encode(ByteBuffer dst, MessageType type, long[] values, int count) {
+        encode(dst, type, values, count, false);
+    }
+
+    /**
+     * timeHeaderがtrueなら時刻ヘッダの領域を0で確保する（送信直前にstampTimeで埋める）
+     */
+    public static void encode(ByteBuffer dst, MessageType type, long[] values, int count, boolean timeHeader) {
+        int start = dst.position();
+        dst.putShort((short) 0);
+        dst.put((byte) (type.ordinal() | (timeHeader ? TIME_HEADER_FLAG : 0)));
+        dst.put((byte) count);
+        if (timeHeader) {
+            dst.putLong(0L).putLong(0L).putLong(0L);
+        }
+        for (int i = 0; i < count; i++) {
+            dst.putLong(values[i]);
+        }
+        dst.putShort(start, (short) (dst.position() - start - LENGTH_PREFIX_SIZE));
+    }
+
+    /**
+     * JSONのdataからフレームを作成する。スキーマ外のキーは末尾にJSONとして付加
+     */
+    public static ByteBuffer encode(MessageType type, JSONObject data) throws IOException {
+        return encode(type, data, false);
+    }
+
+    public static ByteBuffer encode(MessageType type, JSONObject data, boolean timeHeader) throws IOException {
+        String[] fields = fields(type);
+        long[] values = new long[fields.length];
+        int count = 0;
+        byte[] tail = null;
+        if (data != null) {
+            try {
+                JSONObject rest = null;
+                for (int i = 0; i < fields.length && data.has(fields[i]); i++) {
+                    values[i] = data.getLong(fields[i]);
+                    count = i + 1;
+                }
+                Iterator<String> keys = data.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    int index = fieldIndex(type, key);
+                    if (index < 0 || index >= count) {
+                        if (rest == null) {
+                            rest = new JSONObject();
+                        }
+                        rest.put(key, data.get(key));
+                    }
+                }
+                if (rest != null) {
+                    tail = rest.toString().getBytes(StandardCharsets.UTF_8);
+                }
+            } catch (JSONException e) {
+                throw new IOException("Failed to create message", e);
+            }
+        }
+        int size = HEADER_SIZE + (timeHeader ? TIME_HEADER_SIZE : 0) + count * 8 + (tail != null ? tail.length : 0);
+        if (size > MAX_FRAME_SIZE) {
+            throw new IOException("Message too large: " + size);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        encode(frame, type, values, count, timeHeader);
+        if (tail != null) {
+            frame.put(tail);
+            frame.putShort(0, (short) (size - LENGTH_PREFIX_SIZE));
+        }
+        frame.flip();
+        return frame;
+    }
+
+    // frameの先頭（position）から始まるフレームが時刻ヘッダ付きか
+    public static boolean hasTimeHeader(ByteBuffer frame) {
+        return frame.remaining() >= HEADER_SIZE + TIME_HEADER_SIZE
+                && (frame.get(frame.position() + LENGTH_PREFIX_SIZE) & TIME_HEADER_FLAG) != 0;
+    }
+
+    /**
+     * startから始まる時刻ヘッダ付きフレームのヘッダを埋める（positionは変えない）
+     */
+    public static void stampTime(ByteBuffer frame, int start, long txUs, long originUs, long originRecvUs) {
+        frame.putLong(start + HEADER_SIZE, txUs);
+        frame.putLong(start + HEADER_SIZE + 8, originUs);
+        frame.putLong(start + HEADER_SIZE + 16, originRecvUs);
+    }
+
+    /**
+     * src先頭のフレーム全長を返す。長さプレフィックスが揃っていなければ-1
+     */
+    public static int frameLength(ByteBuffer src) {
+        if (src.remaining() < LENGTH_PREFIX_SIZE) {
+            return -1;
+        }
+        return LENGTH_PREFIX_SIZE + (src.getShort(src.position()) & 0xFFFF);
+    }
+
+    /**
+     * 完結したフレームを1つデコードしてsrcを進める
+     */
+    public static MessageProtocol.Message decode(ByteBuffer src) throws IOException {
+        int length = src.getShort() & 0xFFFF;
+        int end = src.position() + length;
+        if (length < 2 || end > src.limit()) {
+            throw new IOException("Malformed frame");
+        }
+        int typeByte = src.get() & 0xFF;
+        int typeOrdinal = typeByte & ~TIME_HEADER_FLAG;
+        int count = src.get() & 0xFF;
+        boolean timeHeader = (typeByte & TIME_HEADER_FLAG) != 0;
+        if (typeOrdinal >= TYPES.length || src.position() + (timeHeader ? TIME_HEADER_SIZE : 0) + count * 8 > end) {
+            throw new IOException("Malformed frame");
+        }
+        long txUs = 0L;
+        long originUs = 0L;
+        long originRecvUs = 0L;
+        if (timeHeader) {
+            txUs = src.getLong();
+            originUs = src.getLong();
+            originRecvUs = src.getLong();
+        }
+        long[] values = count == 0 ? null : new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = src.getLong();
+        }
+        JSONObject data = null;
+        int tailLength = end - src.position();
+        if (tailLength > 0) {
+            byte[] tail = new byte[tailLength];
+            src.get(tail);
+            try {
+                data = new JSONObject(new String(tail, StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                throw new IOException("Failed to parse message", e);
+            }
+        }
+        return new MessageProtocol.Message(TYPES[typeOrdinal], values, data, txUs, originUs, originRecvUs);
+    }
+}
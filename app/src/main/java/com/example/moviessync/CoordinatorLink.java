@@ -0,0 +1,282 @@
+package com.example.moviessync;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * メンバー側のコーディネーターへの接続（ブロッキングのSocketChannel）
+ * 送受信バッファは接続ごとに使い回す
+ */
+public class CoordinatorLink {
+    private static final String TAG = "CoordinatorLink";
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 512;
+    // コーディネーター側の滞留時間がこれを超えるサンプルはドリフトの影響が大きいので使わない
+    private static final long MAX_TIME_SAMPLE_DWELL_US = 2_000_000L;
+    private static final int CONNECT_TIMEOUT_MS = 3_000;
+    // CONNECTEDを待つ上限。受け付けたまま応答しないコーディネーターで再接続が止まらないようにする
+    static final long HANDSHAKE_TIMEOUT_MS = 5_000L;
+
+    /**
+     * 時刻ヘッダから得たNTP方式のサンプル（μs、受信スレッドから呼ばれる）
+     * t0: メンバー送信, t1: サーバ受信, t2: サーバ送信, t3: メンバー受信
+     */
+    public interface TimeSampleListener {
+        void onTimeSample(long t0, long t1, long t2, long t3);
+    }
+
+    private final SocketChannel channel;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final long[] writeValues = new long[8];
+    private final Object writeLock = new Object();
+    private volatile WireFormat wireFormat = WireFormat.JSON;
+    private volatile MessageProtocol.Message connectedMessage;
+    // 全フレームに時刻ヘッダを付けるか（ハンドシェイクで決定）
+    private volatile boolean timeHeader = false;
+    private volatile TimeSampleListener timeSampleListener;
+    // コーディネーターから最後に受け取った送信時刻（サーバ時刻）と、その受信時刻（ローカル時刻）
+    private final Object echoLock = new Object();
+    private long peerTxUs = 0L;
+    private long peerTxRecvUs = 0L;
+    // 受信スレッド専用: 直近のreadの時刻と、サンプルに使ったこちらの送信時刻
+    private long readAtUs = 0L;
+    // 最後に何か受け取った時刻（System.nanoTime、生存確認用）
+    private volatile long lastReceiveNanos = System.nanoTime();
+    private long lastSampledOriginUs = 0L;
+
+    private CoordinatorLink(SocketChannel channel) {
+        this.channel = channel;
+        readBuffer.flip();
+    }
+
+    public static CoordinatorLink connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            // 優先度は接続前に設定し、ハンドシェイクから制御用として送る
+            NetworkUtils.markControl(channel.socket());
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new CoordinatorLink(channel);
+    }
+
+    /**
+     * CONNECTを送りCONNECTEDを待つ。成功すれば合意したワイヤーフォーマットへ切り替える
+     */
+    public boolean handshake() throws IOException {
+        return handshake(0L);
+    }
+
+    /**
+     * 再接続用。以前のCONNECTEDで受け取ったセッションを示し、コーディネーターに状態を引き継いでもらう
+     * 引き継がれたかはgetSessionTokenが同じ値を返すかで分かる
+     */
+    public boolean handshake(long sessionToken) throws IOException {
+        return handshake(sessionToken, HANDSHAKE_TIMEOUT_MS);
+    }
+
+    /**
+     * timeoutMs以内にCONNECTEDが届かなければSocketTimeoutException（呼び出し側は接続の失敗として扱う）
+     */
+    boolean handshake(long sessionToken, long timeoutMs) throws IOException {
+        JSONObject offer = MessageProtocol.wireOffer();
+        if (sessionToken != 0L) {
+            try {
+                offer.put(MessageProtocol.KEY_SESSION_TOKEN, sessionToken);
+            } catch (JSONException e) {
+                throw new IOException("Failed to create CONNECT", e);
+            }
+        }
+        send(MessageType.CONNECT, offer);
+        MessageProtocol.Message response = receive(timeoutMs);
+        if (response == null || response.type != MessageType.CONNECTED) {
+            return false;
+        }
+        connectedMessage = response;
+        WireFormat format = MessageProtocol.negotiatedFormat(response);
+        wireFormat = format;
+        timeHeader = MessageProtocol.negotiatedTimeHeader(response, format);
+        decoder.setFormat(format);
+        Log.d(TAG, "Connected with " + format + " wire format" + (timeHeader ? " and time header" : ""));
+        return true;
+    }
+
+    // ハンドシェイクで受け取ったCONNECTED（コーディネーターの設定値を含む）
+    public MessageProtocol.Message getConnectedMessage() {
+        return connectedMessage;
+    }
+
+    // コーディネーターが発行したセッション（旧バージョンのコーディネーターなら0）
+    public long getSessionToken() {
+        MessageProtocol.Message connected = connectedMessage;
+        return connected != null ? connected.getLong(MessageProtocol.KEY_SESSION_TOKEN) : 0L;
+    }
+
+    public void setTimeSampleListener(TimeSampleListener listener) {
+        this.timeSampleListener = listener;
+    }
+
+    public boolean hasTimeHeader() {
+        return timeHeader;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // 最後に何か受け取ってからの時間（ms）
+    public long getMillisSinceLastReceive() {
+        return (System.nanoTime() - lastReceiveNanos) / 1_000_000L;
+    }
+
+    // メッセージを送信（任意のスレッドから呼び出し可）
+    public void send(MessageType type, JSONObject data) throws IOException {
+        ByteBuffer frame = MessageProtocol.encodeFrame(wireFormat, type, data, timeHeader);
+        synchronized (writeLock) {
+            stamp(frame);
+            writeFully(frame);
+        }
+        Log.d(TAG, "Sent message: " + type.name());
+    }
+
+    public void sendSimple(MessageType type) throws IOException {
+        sendFields(type);
+    }
+
+    /**
+     * 固定長フィールドのみのメッセージを送信（バイナリ形式では使い回しのバッファから割り当てなしで書き込む）
+     */
+    public void sendFields(MessageType type, long... values) throws IOException {
+        synchronized (writeLock) {
+            int count = Math.min(values.length, writeValues.length);
+            System.arraycopy(values, 0, writeValues, 0, count);
+            writeBuffer.clear();
+            MessageProtocol.encodeFields(writeBuffer, wireFormat, type, writeValues, count, timeHeader);
+            writeBuffer.flip();
+            stamp(writeBuffer);
+            writeFully(writeBuffer);
+        }
+    }
+
+    /**
+     * 1メッセージを受信。切断されていればnull
+     */
+    public MessageProtocol.Message receive() throws IOException {
+        return receive(0L);
+    }
+
+    // timeoutMsが正なら、その時間内に1メッセージ揃わなければSocketTimeoutException
+    private MessageProtocol.Message receive(long timeoutMs) throws IOException {
+        long deadlineNanos = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (true) {
+            if (readBuffer.hasRemaining()) {
+                MessageProtocol.Message message = decoder.next(readBuffer);
+                if (message != null) {
+                    if (message.hasTimeHeader()) {
+                        observeTimeHeader(message);
+                    }
+                    return message;
+                }
+            }
+            readBuffer.clear();
+            int n = timeoutMs > 0L ? readBefore(deadlineNanos) : channel.read(readBuffer);
+            readAtUs = TimeSyncManager.localMicros();
+            lastReceiveNanos = System.nanoTime();
+            readBuffer.flip();
+            if (n < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 期限までに届いた分を読む
+     * ブロッキングのチャネルには読み取りのタイムアウトが効かないので、その間だけノンブロッキングにしてSelectorで待つ
+     */
+    private int readBefore(long deadlineNanos) throws IOException {
+        channel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                int n = channel.read(readBuffer);
+                if (n != 0) {
+                    return n;
+                }
+                long remainingMs = (deadlineNanos - System.nanoTime()) / 1_000_000L;
+                if (remainingMs <= 0L) {
+                    throw new SocketTimeoutException("No response from coordinator");
+                }
+                selector.select(remainingMs);
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            // Selectorを閉じて登録が外れてからブロッキングへ戻す
+            if (channel.isOpen()) {
+                channel.configureBlocking(true);
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing coordinator link", e);
+        }
+    }
+
+    // 送信直前に時刻ヘッダを埋める（writeLock内で呼ぶ）
+    private void stamp(ByteBuffer frame) {
+        if (!timeHeader) {
+            return;
+        }
+        synchronized (echoLock) {
+            BinaryCodec.stampTime(frame, frame.position(), TimeSyncManager.localMicros(), peerTxUs, peerTxRecvUs);
+        }
+    }
+
+    /**
+     * コーディネーターの時刻ヘッダを記録し、こちらの送信時刻がエコーされていればサンプルとして通知する
+     * 同じ送信時刻に対するサンプルは、コーディネーター側の滞留が最も短い最初の1つだけを使う
+     */
+    private void observeTimeHeader(MessageProtocol.Message message) {
+        synchronized (echoLock) {
+            peerTxUs = message.txUs;
+            peerTxRecvUs = readAtUs;
+        }
+        TimeSampleListener listener = timeSampleListener;
+        if (listener == null || message.originUs <= 0L || message.originUs == lastSampledOriginUs) {
+            return;
+        }
+        lastSampledOriginUs = message.originUs;
+        if (message.txUs - message.originRecvUs <= MAX_TIME_SAMPLE_DWELL_US) {
+            listener.onTimeSample(message.originUs, message.originRecvUs, message.txUs, readAtUs);
+        }
+    }
+
+    private void writeFully(ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package com.example.moviessync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * コーディネーター用のNIOサーバ
+ * 1本のI/Oスレッドで accept / 読み込み / 書き込み / メンバーごとのフレーミングを処理する
+ */
+public class CoordinatorServer implements Runnable {
+    private static final String TAG = "CoordinatorServer";
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int REPLY_BUFFER_SIZE = 512;
+    // 切断したメンバーがこの時間内に再接続すれば、セッションを引き継ぐ
+    static final long RESUME_WINDOW_MS = 5 * 60_000L;
+
+    /**
+     * I/Oスレッドから呼ばれるコールバック（重い処理は別スレッドへ渡すこと）
+     */
+    public interface Callback {
+        void onMemberConnected(MemberConnection member);
+
+        void onMessage(MemberConnection member, MessageProtocol.Message message);
+
+        void onMemberDisconnected(MemberConnection member);
+
+        // 送信キューが高水位を超えた（evicted=trueなら上限超過で切断した）
+        void onSlowMember(MemberConnection member, boolean evicted);
+
+        // 生存確認の期限までに何も受け取れなかった（この後に切断してonMemberDisconnectedを呼ぶ）
+        void onMemberTimedOut(MemberConnection member);
+    }
+
+    private final int port;
+    private final Callback callback;
+    // 全接続で共有する受信バッファ（I/Oスレッド専用）
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // I/Oスレッドからの即時応答用に使い回す送信バッファ
+    private final ByteBuffer replyBuffer = ByteBuffer.allocateDirect(REPLY_BUFFER_SIZE);
+    // 他スレッドから送信キューに積まれたメンバー
+    private final ConcurrentLinkedQueue<MemberConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    // ファンアウト時にwakeupを1回にまとめるためのフラグ
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    // CONNECTEDに載せて全メンバーへ伝える値（時刻同期ポートなど）
+    private final Map<String, Object> handshakeExtras = new ConcurrentHashMap<>();
+    // 時刻ヘッダに使うサーバ時刻（μs）。未設定なら時刻ヘッダを使わない
+    private volatile LongSupplier serverClockMicros;
+    private volatile boolean running = false;
+    private volatile Selector selector;
+    private ServerSocketChannel serverChannel;
+    // 生存確認: HEARTBEATを送る間隔（0なら送らない）と、この回数分の間何も届かなければ切断する
+    private volatile long heartbeatIntervalMs = 0L;
+    private volatile int heartbeatMisses = 3;
+    // 次に生存確認をする時刻（System.nanoTime、I/Oスレッド専用）
+    private long nextHeartbeatCheckNanos = 0L;
+    private final long[] noFields = new long[0];
+    // セッションごとのメンバー（接続中と、引き継ぎ待ちの切断済み。I/Oスレッド専用）
+    private final Map<Long, MemberConnection> sessions = new HashMap<>();
+    private final SecureRandom sessionRandom = new SecureRandom();
+    // 次に振るメンバーID（I/Oスレッド専用）
+    private int nextMemberId = 1;
+
+    public CoordinatorServer(int port, Callback callback) {
+        this.port = port;
+        this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            running = true;
+            Log.d(TAG, "Started as coordinator on port " + port);
+
+            while (running) {
+                long intervalMs = heartbeatIntervalMs;
+                // 生存確認があれば間隔の半分ごとに起きる（メッセージが無くても確認できるように）
+                selector.select(intervalMs > 0 ? Math.max(1L, intervalMs / 2) : 0L);
+                wakeupPending.set(false);
+                flushPendingWrites();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException | RuntimeException e) {
+                            // 受け付けに失敗した接続だけを捨てて待ち受けを続ける
+                            Log.w(TAG, "Error accepting member", e);
+                        }
+                        continue;
+                    }
+                    MemberConnection member = (MemberConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(member);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(member);
+                            checkBacklog(member);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // 不正なフレームやコールバックの例外でも、閉じるのはそのメンバーだけ
+                        Log.w(TAG, "Member connection error: " + member.getRemoteAddress(), e);
+                        closeMember(member);
+                    }
+                }
+                checkHeartbeats();
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.e(TAG, "Error in coordinator event loop", e);
+            }
+        } finally {
+            running = false;
+            closeAll();
+        }
+    }
+
+    // CONNECTEDのdataに追加する値を設定
+    public void putHandshakeExtra(String key, Object value) {
+        handshakeExtras.put(key, value);
+    }
+
+    /**
+     * サーバ時刻を設定すると、対応メンバーとの全フレームに時刻ヘッダを付ける
+     * メンバーは通常のメッセージのやりとりだけで時刻同期のサンプルを得られる（開始前に設定すること）
+     */
+    public void setTimeSource(LongSupplier serverClockMicros) {
+        this.serverClockMicros = serverClockMicros;
+    }
+
+    /**
+     * 生存確認を設定する（開始前に呼ぶこと）。対応メンバーとintervalMsごとにHEARTBEATを送り合い、
+     * intervalMs × misses の間何も受け取れなかったメンバーは切断する（片側だけ切れた接続を残さない）
+     */
+    public void setHeartbeat(long intervalMs, int misses) {
+        heartbeatIntervalMs = intervalMs;
+        heartbeatMisses = misses;
+        putHandshakeExtra(MessageProtocol.KEY_HEARTBEAT_MS, intervalMs);
+        putHandshakeExtra(MessageProtocol.KEY_HEARTBEAT_MISSES, misses);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // イベントループを停止（任意のスレッドから呼び出し可）
+    public void stop() {
+        running = false;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * 送信キューに積み、I/Oスレッドを起こす（任意のスレッドから呼び出し可、ブロックしない）
+     * 送信キューがあふれたメンバーはI/Oスレッドで切断される
+     */
+    void enqueue(MemberConnection member, ByteBuffer frame) {
+        if (!member.offer(frame)) {
+            Log.w(TAG, "Outbound queue full, evicting member: " + member.getRemoteAddress());
+        }
+        pendingWrites.add(member);
+        Selector s = selector;
+        if (s != null && wakeupPending.compareAndSet(false, true)) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * I/Oスレッドから固定長フィールドのメッセージを即時送信する
+     * 送信待ちが無ければ使い回しのバッファから直接書き込み、書き切れなかった分だけキューへ積む
+     */
+    void replyFields(MemberConnection member, MessageType type, long[] values, int count) throws IOException {
+        replyBuffer.clear();
+        MessageProtocol.encodeFields(replyBuffer, member.getWireFormat(), type, values, count, member.hasTimeHeader());
+        replyBuffer.flip();
+        if (member.outbound.isEmpty()) {
+            if (member.hasTimeHeader()) {
+                BinaryCodec.stampTime(replyBuffer, 0, serverClockMicros.getAsLong(), member.peerTxUs, member.peerTxRecvUs);
+            }
+            member.channel.write(replyBuffer);
+            if (!replyBuffer.hasRemaining()) {
+                return;
+            }
+        }
+        // フレーム全体を複製し、送信済みの位置から再開する（先頭からならwriteで時刻ヘッダを埋める）
+        ByteBuffer rest = ByteBuffer.allocate(replyBuffer.limit());
+        int sent = replyBuffer.position();
+        replyBuffer.rewind();
+        rest.put(replyBuffer);
+        rest.position(sent);
+        if (!member.offer(rest)) {
+            evict(member);
+            return;
+        }
+        write(member);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        MemberConnection member;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            // アプリの生存確認に対応していない旧メンバーの予備
+            channel.socket().setKeepAlive(true);
+            NetworkUtils.markControl(channel.socket());
+            member = new MemberConnection(this, channel);
+            member.key = channel.register(selector, SelectionKey.OP_READ, member);
+        } catch (IOException | RuntimeException e) {
+            // 登録まで済まなかった接続は閉じる
+            try {
+                channel.close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+        Log.d(TAG, "Member connected: " + member.getRemoteAddress());
+    }
+
+    private void read(MemberConnection member) throws IOException {
+        readBuffer.clear();
+        int n = member.channel.read(readBuffer);
+        member.lastReadAtNanos = SystemClock.elapsedRealtimeNanos();
+        member.markSeen(System.nanoTime());
+        LongSupplier clock = serverClockMicros;
+        long readUs = clock != null ? clock.getAsLong() : 0L;
+        if (n < 0) {
+            closeMember(member);
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            MessageProtocol.Message message = member.decoder.next(readBuffer);
+            if (message == null) {
+                break;
+            }
+            if (message.hasTimeHeader()) {
+                observeTimeHeader(member, message, readUs);
+            }
+            dispatch(member, message);
+            if (!member.channel.isOpen()) {
+                return;
+            }
+        }
+    }
+
+    private void dispatch(MemberConnection member, MessageProtocol.Message message) throws IOException {
+        if (!member.handshakeDone) {
+            // 最初のメッセージはCONNECTでなければならない
+            if (message.type != MessageType.CONNECT) {
+                Log.w(TAG, "Unexpected first message " + message.type + " from " + member.getRemoteAddress());
+                closeMember(member);
+                return;
+            }
+            member.handshakeDone = true;
+            member.lastHeartbeatSentNanos = System.nanoTime();
+            member.setConnectMessage(message);
+            openSession(member, message.getLong(MessageProtocol.KEY_SESSION_TOKEN));
+            // 相手がバイナリ形式に対応していればCONNECTEDで合意し、以降はバイナリで通信
+            WireFormat format = MessageProtocol.negotiatedFormat(message);
+            boolean timeHeader = serverClockMicros != null && MessageProtocol.negotiatedTimeHeader(message, format);
+            member.send(MessageType.CONNECTED, buildConnectedData(member, format, timeHeader));
+            member.setWireFormat(format);
+            member.setTimeHeader(timeHeader);
+            Log.d(TAG, "Member " + member.getRemoteAddress() + " uses " + format + " wire format");
+            callback.onMemberConnected(member);
+            return;
+        }
+        if (message.type == MessageType.HEARTBEAT) {
+            // 受信時刻はreadで記録済み
+            member.countHeartbeat();
+            return;
+        }
+        callback.onMessage(member, message);
+    }
+
+    /**
+     * メンバーのセッションを決める（I/Oスレッド専用）
+     * 期限内のセッションを示して再接続してきたら以前の状態を引き継ぎ、それ以外は新しいセッションを発行する
+     * 以前の接続がまだ開いていれば（こちらが切断に気づく前に再接続してきた）閉じる
+     */
+    private void openSession(MemberConnection member, long token) {
+        long now = System.nanoTime();
+        long windowNanos = RESUME_WINDOW_MS * 1_000_000L;
+        for (Iterator<MemberConnection> it = sessions.values().iterator(); it.hasNext(); ) {
+            MemberConnection departed = it.next();
+            if (!departed.isOpen() && now - departed.closedAtNanos > windowNanos) {
+                it.remove();
+            }
+        }
+        MemberConnection previous = token != 0L ? sessions.get(token) : null;
+        if (previous != null) {
+            if (previous.isOpen()) {
+                Log.w(TAG, "Member " + member.getRemoteAddress() + " replaces its stale connection " + previous.getRemoteAddress());
+                closeMember(previous);
+            }
+            member.resumeFrom(previous);
+            Log.d(TAG, "Member " + member.getRemoteAddress() + " resumed its session");
+        } else {
+            long issued;
+            do {
+                issued = sessionRandom.nextLong() & Long.MAX_VALUE;
+            } while (issued == 0L || sessions.containsKey(issued));
+            member.setSessionToken(issued);
+            member.setMemberId(nextMemberId++);
+        }
+        sessions.put(member.getSessionToken(), member);
+    }
+
+    private JSONObject buildConnectedData(MemberConnection member, WireFormat format, boolean timeHeader) {
+        JSONObject data = format == WireFormat.BINARY ? MessageProtocol.wireOffer() : new JSONObject();
+        try {
+            data.put(MessageProtocol.KEY_TIME_HEADER, timeHeader);
+            data.put(MessageProtocol.KEY_SESSION_TOKEN, member.getSessionToken());
+            for (Map.Entry<String, Object> entry : handshakeExtras.entrySet()) {
+                data.put(entry.getKey(), entry.getValue());
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building CONNECTED", e);
+        }
+        return data;
+    }
+
+    /**
+     * メンバーの時刻ヘッダを記録する（I/Oスレッド専用）
+     * こちらの送信時刻がエコーされていれば、メンバー側の滞留時間を除いた往復遅延を求める
+     */
+    private void observeTimeHeader(MemberConnection member, MessageProtocol.Message message, long readUs) {
+        member.peerTxUs = message.txUs;
+        member.peerTxRecvUs = readUs;
+        if (message.originUs > 0L && readUs > 0L) {
+            long rtt = (readUs - message.originUs) - (message.txUs - message.originRecvUs);
+            if (rtt >= 0L) {
+                member.addRttSample(rtt);
+                // 送信から到着までを往復の半分とみなし、送信時点のサーバ時刻とメンバーの時刻を比べる
+                member.setClockOffsetUs(readUs - rtt / 2 - message.txUs);
+            }
+        }
+    }
+
+    private void write(MemberConnection member) throws IOException {
+        ByteBuffer frame;
+        while ((frame = member.outbound.peek()) != null) {
+            if (!member.stamping && frame.position() == 0 && member.hasTimeHeader() && BinaryCodec.hasTimeHeader(frame)) {
+                beginStamp(member, frame);
+            }
+            if (member.stamping) {
+                // 時刻ヘッダを埋めた先頭部分と共有のフレーム本体をまとめて書き込む
+                member.stampedWrite[1] = frame;
+                member.channel.write(member.stampedWrite);
+                member.stampedWrite[1] = null;
+                if (!member.stampBuffer.hasRemaining() && !frame.hasRemaining()) {
+                    member.stamping = false;
+                }
+            } else {
+                member.channel.write(frame);
+            }
+            if (member.stamping || frame.hasRemaining()) {
+                // 送信バッファが一杯: 書き込み可能になるまで待つ
+                member.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            member.pollSent();
+        }
+        member.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * 対応メンバーへHEARTBEATを送り、期限までに何も受け取れなかったメンバーを切断する（I/Oスレッド専用）
+     */
+    private void checkHeartbeats() {
+        long intervalMs = heartbeatIntervalMs;
+        long now = System.nanoTime();
+        if (intervalMs <= 0 || now < nextHeartbeatCheckNanos) {
+            return;
+        }
+        long intervalNanos = intervalMs * 1_000_000L;
+        nextHeartbeatCheckNanos = now + intervalNanos / 2;
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof MemberConnection)) {
+                continue;
+            }
+            MemberConnection member = (MemberConnection) attachment;
+            if (!member.handshakeDone || !member.supports(MessageProtocol.KEY_HEARTBEAT) || !member.isOpen()) {
+                continue;
+            }
+            if (member.getMillisSinceLastSeen() > intervalMs * heartbeatMisses) {
+                Log.w(TAG, "Member timed out: " + member.getRemoteAddress() + " silent for " + member.getMillisSinceLastSeen() + "ms");
+                callback.onMemberTimedOut(member);
+                closeMember(member);
+                continue;
+            }
+            if (now - member.lastHeartbeatSentNanos >= intervalNanos) {
+                member.lastHeartbeatSentNanos = now;
+                try {
+                    replyFields(member, MessageType.HEARTBEAT, noFields, 0);
+                } catch (IOException e) {
+                    Log.w(TAG, "Error sending heartbeat to " + member.getRemoteAddress(), e);
+                    closeMember(member);
+                }
+            }
+        }
+    }
+
+    // フレームの先頭部分をメンバー専用のバッファへ写し、送信時刻とエコーを埋める
+    private void beginStamp(MemberConnection member, ByteBuffer frame) {
+        int headerLength = member.stampBuffer.capacity();
+        ByteBuffer stamp = member.stampBuffer;
+        stamp.clear();
+        for (int i = 0; i < BinaryCodec.HEADER_SIZE; i++) {
+            stamp.put(frame.get(i));
+        }
+        stamp.putLong(0L).putLong(0L).putLong(0L);
+        BinaryCodec.stampTime(stamp, 0, serverClockMicros.getAsLong(), member.peerTxUs, member.peerTxRecvUs);
+        stamp.flip();
+        frame.position(headerLength);
+        member.stamping = true;
+    }
+
+    // 送信キューの滞留を確認し、高水位超過を報告・上限超過を切断する（I/Oスレッド専用）
+    private void checkBacklog(MemberConnection member) {
+        if (member.evictRequested) {
+            evict(member);
+            return;
+        }
+        int depth = member.getOutboundDepth();
+        if (depth >= MemberConnection.OUTBOUND_HIGH_WATER) {
+            if (!member.slowReported) {
+                member.slowReported = true;
+                Log.w(TAG, "Slow member " + member.getRemoteAddress() + ": " + depth + " frames queued");
+                callback.onSlowMember(member, false);
+            }
+        } else if (depth < MemberConnection.OUTBOUND_HIGH_WATER / 2) {
+            member.slowReported = false;
+        }
+    }
+
+    private void evict(MemberConnection member) {
+        if (!member.isOpen()) {
+            return;
+        }
+        Log.w(TAG, "Evicting slow member " + member.getRemoteAddress());
+        callback.onSlowMember(member, true);
+        closeMember(member);
+    }
+
+    private void flushPendingWrites() {
+        MemberConnection member;
+        while ((member = pendingWrites.poll()) != null) {
+            if (member.key == null || !member.key.isValid()) {
+                continue;
+            }
+            try {
+                write(member);
+                checkBacklog(member);
+            } catch (IOException e) {
+                Log.w(TAG, "Error writing to member: " + member.getRemoteAddress(), e);
+                closeMember(member);
+            }
+        }
+    }
+
+    private void closeMember(MemberConnection member) {
+        if (member.closeChannel() && member.handshakeDone) {
+            member.closedAtNanos = System.nanoTime();
+            callback.onMemberDisconnected(member);
+        }
+    }
+
+    private void closeAll() {
+        if (selector != null) {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof MemberConnection) {
+                    closeMember((MemberConnection) attachment);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing selector", e);
+            }
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing server channel", e);
+        }
+    }
+}
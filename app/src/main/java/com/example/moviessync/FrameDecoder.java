@@ -0,0 +1,106 @@
+package com.example.moviessync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 接続ごとの受信フレーミング
+ * 受信バッファからJSON行またはバイナリフレームを1つずつ取り出し、途中までのデータは内部に蓄積する
+ */
+final class FrameDecoder {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private WireFormat format = WireFormat.JSON;
+    // 受信途中のデータ（必要になった時だけ確保する）
+    private byte[] pending;
+    private int pendingLength = 0;
+
+    WireFormat getFormat() {
+        return format;
+    }
+
+    // ハンドシェイク完了後に切り替える（以降のバイトから適用）
+    void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * srcから1メッセージを取り出す。完結していなければ蓄積してnullを返す
+     */
+    MessageProtocol.Message next(ByteBuffer src) throws IOException {
+        return format == WireFormat.BINARY ? nextFrame(src) : nextLine(src);
+    }
+
+    private MessageProtocol.Message nextLine(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            if (b == '\n') {
+                int length = pendingLength;
+                if (length > 0 && pending[length - 1] == '\r') {
+                    length--;
+                }
+                pendingLength = 0;
+                if (length == 0) {
+                    continue;
+                }
+                String line = new String(pending, 0, length, StandardCharsets.UTF_8);
+                shrink();
+                return MessageProtocol.decode(line);
+            }
+            ensureCapacity(pendingLength + 1, MAX_LINE_LENGTH);
+            pending[pendingLength++] = b;
+        }
+        return null;
+    }
+
+    private MessageProtocol.Message nextFrame(ByteBuffer src) throws IOException {
+        if (pendingLength == 0) {
+            // 高速パス: フレーム全体が受信バッファ内にあればコピーせずにデコード
+            int frameLength = BinaryCodec.frameLength(src);
+            if (frameLength >= 0 && src.remaining() >= frameLength) {
+                return BinaryCodec.decode(src);
+            }
+        }
+        while (true) {
+            int needed = BinaryCodec.LENGTH_PREFIX_SIZE;
+            if (pendingLength >= BinaryCodec.LENGTH_PREFIX_SIZE) {
+                needed += ((pending[0] & 0xFF) << 8) | (pending[1] & 0xFF);
+                if (pendingLength == needed) {
+                    MessageProtocol.Message message = BinaryCodec.decode(ByteBuffer.wrap(pending, 0, pendingLength));
+                    pendingLength = 0;
+                    shrink();
+                    return message;
+                }
+            }
+            if (!src.hasRemaining()) {
+                return null;
+            }
+            int n = Math.min(needed - pendingLength, src.remaining());
+            ensureCapacity(pendingLength + n, BinaryCodec.MAX_FRAME_SIZE);
+            src.get(pending, pendingLength, n);
+            pendingLength += n;
+        }
+    }
+
+    private void ensureCapacity(int capacity, int max) throws IOException {
+        if (pending == null) {
+            pending = new byte[Math.max(INITIAL_CAPACITY, capacity)];
+        } else if (capacity > pending.length) {
+            if (capacity > max) {
+                throw new IOException("Message too long");
+            }
+            byte[] grown = new byte[Math.min(Math.max(pending.length * 2, capacity), max)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+    }
+
+    // 大きなメッセージの後はバッファを解放してメモリを一定に保つ
+    private void shrink() {
+        if (pending != null && pending.length > INITIAL_CAPACITY) {
+            pending = null;
+        }
+    }
+}
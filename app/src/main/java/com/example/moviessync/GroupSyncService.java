@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.Looper;
@@ -17,37 +18,161 @@ import android.widget.Toast;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 
 public class GroupSyncService extends Service {
 
     private static final String TAG = "GroupSyncService";
     private static final int SERVER_PORT = 8888;
+    // UDP時刻同期の既定ポート（CONNECTEDのtime_portで通知する）
+    private static final int TIME_PORT = SERVER_PORT + 1;
+    private static final String KEY_TIME_PORT = "time_port";
+    // 動画配信の既定ポート（CONNECTEDのmedia_portで通知する）
+    private static final int MEDIA_PORT = SERVER_PORT + 2;
+    private static final String KEY_MEDIA_PORT = "media_port";
+    // 開始指示のマルチキャスト（CONNECTEDのannounce_group/announce_port/announce_sessionで通知する）
+    private static final String ANNOUNCE_GROUP = "239.255.77.88";
+    private static final int ANNOUNCE_PORT = SERVER_PORT + 3;
+    private static final String KEY_ANNOUNCE_GROUP = "announce_group";
+    private static final String KEY_ANNOUNCE_PORT = "announce_port";
+    private static final String KEY_ANNOUNCE_SESSION = "announce_session";
     public static final String ACTION_PLAY = "com.example.moviessync.ACTION_PLAY";
 	public static final String EXTRA_TARGET_EPOCH_MS = "target_epoch_ms";
+	public static final String ACTION_PREPARE = "com.example.moviessync.ACTION_PREPARE";
+	public static final String EXTRA_START_ID = "start_id";
+	// PLAY_COMMANDを受け取ったローカル時刻（elapsedRealtimeNanos、開始までの処理時間の計測用）
+	public static final String EXTRA_RECEIVED_AT_NANOS = "received_at_nanos";
+	// ループ再生: 動画の長さとループ間の間隔（ms、長さ0ならループの時刻表なし）
+	public static final String EXTRA_LOOP_DURATION_MS = "loop_duration_ms";
+	public static final String EXTRA_LOOP_GAP_MS = "loop_gap_ms";
+	// メンバー: コーディネーターから動画を受信し終えた
+	public static final String ACTION_MEDIA_READY = "com.example.moviessync.ACTION_MEDIA_READY";
+	public static final String EXTRA_MEDIA_URI = "media_uri";
+	public static final String EXTRA_MEDIA_NAME = "media_name";
+	// 受信中の動画を再生するときのURI（moviessync-stream://media/<media_id>、getStreamingMediaで受信中の動画を得る）
+	public static final String STREAM_SCHEME = "moviessync-stream";
+	// 受信状況を報告する間隔
+	private static final long MEDIA_PROGRESS_INTERVAL_MS = 500L;
 	private static final String PREFS_NAME = "MoviesSyncPrefs";
 	private static final String PREF_TOAST_ENABLED = "toast_enabled";
+	// メンバーが受信した動画を残しておく容量の上限（MB）
+	private static final String PREF_MEDIA_CACHE_MB = "media_cache_mb";
+	private static final long DEFAULT_MEDIA_CACHE_MB = 4_096L;
+	// メンバー: 受信しながら再生する（受信を終えるまで待たない）
+	private static final String PREF_PROGRESSIVE_PLAYBACK = "progressive_playback";
+	// コーディネーター: 開始前に全メンバーが受信しておく動画の先頭（MB、0なら待たない）と、待つ上限
+	private static final String PREF_STREAM_HEAD_MB = "stream_head_mb";
+	private static final long DEFAULT_STREAM_HEAD_MB = 16L;
+	private static final long HEAD_WAIT_TIMEOUT_MS = 60_000L;
+	// コーディネーター: 開始指示をマルチキャストで送る
+	private static final String PREF_MULTICAST_START = "multicast_start";
+	// マルチキャストの開始指示へのSTART_ACKを待つ時間（過ぎたらTCPで送り直す）と、
+	// 続けてこの回数確認できなかったメンバーには最初からTCPで送る
+	private static final long ANNOUNCE_ACK_TIMEOUT_MS = 40L;
+	private static final int MAX_ANNOUNCE_MISSES = 3;
+	// 生存確認: HEARTBEATの間隔（ms）と、この回数分の間何も届かなければ相手が落ちたとみなす
+	private static final String PREF_HEARTBEAT_INTERVAL_MS = "heartbeat_interval_ms";
+	private static final String PREF_HEARTBEAT_MISSES = "heartbeat_misses";
+	private static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 1_000L;
+	private static final int DEFAULT_HEARTBEAT_MISSES = 3;
+	// メンバー: 再接続の待ち時間（初回と上限、NetworkUtils.backoffDelayMs参照）
+	private static final long RECONNECT_BASE_MS = 500L;
+	private static final long RECONNECT_MAX_MS = 30_000L;
+	// 時刻同期バースト: 連続で送る要求数と、1要求あたりの応答待ち上限
+	private static final int SYNC_BURST_SIZE = 8;
+	private static final long SYNC_REPLY_TIMEOUT_MS = 500L;
+	private static final int UDP_REPLY_TIMEOUT_MS = 300;
+	// 二段階開始: READYを待つ上限（超えた端末は待たずに開始する）
+	private static final long READY_TIMEOUT_MS = 5_000L;
+	// 次のループの要求をまとめる時間（最初の要求からこの間に届いた要求は同じ開始にまとめる）
+	private static final long LOOP_DEBOUNCE_MS = 300L;
 
-    private ServerSocket serverSocket;
+    private CoordinatorServer coordinatorServer;
+    private UdpTimeServer udpTimeServer;
+    private volatile MediaServer mediaServer;
+    // メンバー: 受信中の動画と受信状況
+    private volatile MediaReceiver mediaReceiver;
+    private final AtomicInteger mediaGeneration = new AtomicInteger(0);
+    // メンバー: キャッシュの上限に収まらず上限の外で受信した動画（次の動画に替わったら消す）
+    private volatile File transientMediaFile;
+    // コーディネーター: 配信中の元の動画
+    private volatile SharedMedia sharedMedia;
+    private MediaStore mediaStore;
+    private volatile long mediaReceivedBytes = 0L;
+    private volatile long mediaTotalBytes = -1L;
+    private boolean progressivePlayback = true;
+    private long streamHeadBytes = 0L;
+    // コーディネーター: 先頭の受信待ちで開始を保留している
+    private final AtomicBoolean headWaitRunning = new AtomicBoolean(false);
+    // コーディネーター: 開始の要求のまとめ待ち・先頭の受信待ちの再試行に付ける印（停止時にまとめて取り消す）
+    private final Object startRoundToken = new Object();
+    // コーディネーター: 開始指示のマルチキャスト送信（使えなければnullのままTCPで送る）
+    private volatile StartAnnouncer startAnnouncer;
+    // メンバー: 開始指示のマルチキャスト受信と、Wi-Fiでマルチキャストを受け取るためのロック
+    private volatile StartAnnounceListener startAnnounceListener;
+    private WifiManager.MulticastLock multicastLock;
+    // メンバー: 最後に処理した開始指示の番号（マルチキャストとTCPの両方で届いた分は1回だけ処理する）
+    private int lastPlayStartId = 0;
+    // メンバー: Activityへ渡した動画と、その動画の準備を待っている途中参加の開始指示
+    private volatile long readyMediaId = 0L;
+    private Intent pendingCatchUp;
+    private long pendingCatchUpMediaId = 0L;
     private ExecutorService executorService;
-    private boolean isRunning = false;
-    private ArrayList<MemberConnection> connectedMembers = new ArrayList<>();
+    private volatile boolean isRunning = false;
+    // コーディネーター: 接続中のメンバー（メンバーIDで引ける。全員への送信は一覧をコピーせずに回す）
+    private final MemberRegistry members = new MemberRegistry();
     private boolean isCoordinator = false;
     private String coordinatorIp = null;
-    private Socket coordinatorSocket;
-    private BufferedWriter coordinatorWriter;
-    private BufferedReader coordinatorReader;
+    private volatile CoordinatorLink coordinatorLink;
+    // メンバー: コーディネーターが発行したセッション（再接続時に示して状態を引き継いでもらう）と、続けて失敗した接続の回数
+    private volatile long sessionToken = 0L;
+    private volatile int reconnectAttempts = 0;
+    // 送信キューあふれで切断したメンバー数
+    private final AtomicInteger evictedMemberCount = new AtomicInteger(0);
+    // 生存確認の期限切れで切断したメンバー数
+    private final AtomicInteger timedOutMemberCount = new AtomicInteger(0);
+    // メンバー: コーディネーターから通知された生存確認の間隔（0ならHEARTBEATを使わない）と許容する欠落回数
+    private volatile long heartbeatIntervalMs = 0L;
+    private volatile int heartbeatMisses = DEFAULT_HEARTBEAT_MISSES;
+    // I/Oスレッド専用: SYNC_TIME応答のフィールド
+    private final long[] syncReplyValues = new long[4];
 	private volatile long lastSyncSendElapsedMs = 0L;
+	// メンバー: バースト中のSYNC_TIME応答の到着通知
+	private final Semaphore syncReplies = new Semaphore(0);
+	private final AtomicBoolean syncBurstRunning = new AtomicBoolean(false);
+	// メンバー: UDP時刻同期（使えなければnullのままTCPで同期する）
+	private volatile UdpTimeClient udpTimeClient;
+	private volatile boolean udpTimeDisabled = false;
 	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	// コーディネーター: 二段階開始の状態（自分自身はselfParticipantとして参加する）
+	private final Object selfParticipant = new Object();
+	private final LoopScheduler loopScheduler = new LoopScheduler(LOOP_DEBOUNCE_MS);
+	// メンバー: 受け取った最新の開始番号（これより古い開始指示は無視する）
+	private volatile int latestStartId = 0;
+	private volatile StartBarrier<Object> startBarrier;
+	// コーディネーター自身の開始までの処理時間と、直近に採用したリードタイム
+	private final LatencyStats selfStartStats = new LatencyStats(16);
+	private volatile LeadTime lastLeadTime;
+	// コーディネーター: ループの時刻表の元になる動画の長さとループ間の間隔、配布中の時刻表
+	private volatile long mediaDurationMs = 0L;
+	private volatile long loopGapMs = 0L;
+	private volatile LoopClock loopClock;
 
     // Binder
     public class LocalBinder extends Binder {
@@ -58,10 +183,30 @@ public class GroupSyncService extends Service {
 
     private final IBinder binder = new LocalBinder();
 
+    /**
+     * バインド中のActivityへ指示（ACTION_PLAY/ACTION_PREPARE/ACTION_MEDIA_READY）を直接渡すリスナー
+     * システムのブロードキャストを通らないので、受信から開始の予約までの時間が端末の負荷に左右されにくい
+     */
+    public interface CommandListener {
+        // 受信したスレッド（TCPの受信ループ、マルチキャストの受信スレッド、コーディネーターの送信スレッド）から呼ばれる
+        void onCommand(Intent command);
+    }
+
+    private volatile CommandListener commandListener;
+    // 受信から開始の予約までの時間（μs）: リスナー経由とブロードキャスト経由
+    private final LatencyStats directDispatchStats = new LatencyStats(32);
+    private final LatencyStats broadcastDispatchStats = new LatencyStats(32);
+
     @Override
     public void onCreate() {
         super.onCreate();
         executorService = Executors.newCachedThreadPool();
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long cacheMb = prefs.getLong(PREF_MEDIA_CACHE_MB, DEFAULT_MEDIA_CACHE_MB);
+        mediaStore = new MediaStore(new File(getFilesDir(), "media"), cacheMb * 1024L * 1024L);
+        mediaStore.discardTransient();
+        progressivePlayback = prefs.getBoolean(PREF_PROGRESSIVE_PLAYBACK, true);
+        streamHeadBytes = prefs.getLong(PREF_STREAM_HEAD_MB, DEFAULT_STREAM_HEAD_MB) * 1024L * 1024L;
         Log.d(TAG, "Service created");
     }
 
@@ -76,6 +221,34 @@ public class GroupSyncService extends Service {
         return binder;
     }
 
+    // nullで解除（以降はブロードキャストで渡す）
+    public void setCommandListener(CommandListener listener) {
+        commandListener = listener;
+    }
+
+    // Activityへ指示を渡す（リスナーがあれば直接、なければアプリ内へのブロードキャスト）
+    private void dispatchCommand(Intent command) {
+        CommandListener listener = commandListener;
+        if (listener != null) {
+            listener.onCommand(command);
+            return;
+        }
+        command.setPackage(getPackageName()); // パッケージ名を設定してアプリ内でのみ受信できるようにする
+        sendBroadcast(command);
+    }
+
+    /**
+     * 開始指示の受信から開始の予約までの時間（μs）を経路ごとに記録する
+     */
+    public void recordDispatchLatency(boolean direct, long receivedToArmedUs) {
+        (direct ? directDispatchStats : broadcastDispatchStats).add(receivedToArmedUs);
+        Log.d(TAG, "Start armed " + receivedToArmedUs + "us after receive via " + (direct ? "listener" : "broadcast"));
+    }
+
+    public LatencyStats getDispatchStats(boolean direct) {
+        return direct ? directDispatchStats : broadcastDispatchStats;
+    }
+
     // サービスを開始（コーディネーターとして、またはメンバーとして）
     public void startService(boolean isCoordinator, String coordinatorIp) {
         this.isCoordinator = isCoordinator;
@@ -88,98 +261,450 @@ public class GroupSyncService extends Service {
         }
     }
 
-    // コーディネーターとして開始
+    // コーディネーターとして開始（1本のI/Oスレッドで全メンバーを処理）
     private void startAsCoordinator() {
         isRunning = true;
-        executorService.execute(new Runnable() {
+        // コーディネーターの単調時計がグループ全体の時刻の基準になる
+        final TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+        timeSync.useAsReference();
+        coordinatorServer = new CoordinatorServer(SERVER_PORT, coordinatorCallback);
+        // 時刻同期はTCPの制御ストリームとは別にUDPで応答する
+        LongSupplier serverClock = new LongSupplier() {
             @Override
-            public void run() {
-                try {
-                    serverSocket = new ServerSocket(SERVER_PORT);
-                    Log.d(TAG, "Started as coordinator on port " + SERVER_PORT);
+            public long getAsLong() {
+                return timeSync.nowServerNanos() / 1000L;
+            }
+        };
+        udpTimeServer = new UdpTimeServer(TIME_PORT, serverClock);
+        // 通常のメッセージにも送信時刻を載せ、メンバーが追加の通信なしで同期できるようにする
+        coordinatorServer.setTimeSource(serverClock);
+        coordinatorServer.putHandshakeExtra(KEY_TIME_PORT, TIME_PORT);
+        // 動画は制御用の接続とは別のポートで配る
+        mediaServer = new MediaServer(MEDIA_PORT, executorService);
+        coordinatorServer.putHandshakeExtra(KEY_MEDIA_PORT, MEDIA_PORT);
+        // 開始指示は全員へ1つのパケットで送る（セッションの値で同じネットワークの別グループと区別する）
+        if (getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getBoolean(PREF_MULTICAST_START, true)) {
+            long session = new java.security.SecureRandom().nextLong() & Long.MAX_VALUE;
+            try {
+                startAnnouncer = new StartAnnouncer(InetAddress.getByName(ANNOUNCE_GROUP), ANNOUNCE_PORT, null, session);
+                coordinatorServer.putHandshakeExtra(KEY_ANNOUNCE_GROUP, ANNOUNCE_GROUP);
+                coordinatorServer.putHandshakeExtra(KEY_ANNOUNCE_PORT, ANNOUNCE_PORT);
+                coordinatorServer.putHandshakeExtra(KEY_ANNOUNCE_SESSION, session);
+            } catch (IOException e) {
+                Log.w(TAG, "Multicast start unavailable, using TCP only", e);
+            }
+        }
+        // 片側だけ切れた接続を残さないよう、対応メンバーとHEARTBEATを送り合う
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        coordinatorServer.setHeartbeat(prefs.getLong(PREF_HEARTBEAT_INTERVAL_MS, DEFAULT_HEARTBEAT_INTERVAL_MS),
+                prefs.getInt(PREF_HEARTBEAT_MISSES, DEFAULT_HEARTBEAT_MISSES));
+        executorService.execute(coordinatorServer);
+        executorService.execute(udpTimeServer);
+        executorService.execute(mediaServer);
+    }
 
-                    while (isRunning && !serverSocket.isClosed()) {
-                        try {
-                            Socket memberSocket = serverSocket.accept();
-                            Log.d(TAG, "Member connected: " + memberSocket.getRemoteSocketAddress());
-
-                            MemberConnection member = new MemberConnection(memberSocket);
-                            connectedMembers.add(member);
-                            executorService.execute(member);
-                        } catch (IOException e) {
-                            if (isRunning) {
-                                Log.e(TAG, "Error accepting member connection", e);
-                            }
-                        }
+    // コーディネーターのI/Oスレッドから呼ばれる
+    private final CoordinatorServer.Callback coordinatorCallback = new CoordinatorServer.Callback() {
+        @Override
+        public void onMemberConnected(MemberConnection member) {
+            members.add(member);
+            Log.d(TAG, (member.isResumed() ? "Member rejoined: #" : "Member joined: #") + member.getMemberId() + " " + member.getRemoteAddress());
+            // 配信中の動画があれば、後から参加したメンバーにも知らせる（中継の木の末尾に加える）
+            // 再接続したメンバーが受信を始めていれば、受信はメンバー側で続いているので知らせ直さない
+            SharedMedia media = sharedMedia;
+            if (media != null && !(member.isResumed() && member.getMediaReceived(media.getMediaId()) > 0)) {
+                List<MemberConnection> relays = relayMembers();
+                sendMediaMetadata(member, media, relayHostFor(relays.indexOf(member) + 1, relays));
+            }
+            // ループ再生中なら時刻表を送り、今のループの途中から加わってもらう
+            // 途中参加に対応していない再接続メンバーには、次のループの開始時刻を送る
+            LoopClock clock = loopClock;
+            if (clock != null && member.supports(MessageProtocol.KEY_LOOP_CATCH_UP)) {
+                sendLoopCatchUp(member, clock, media);
+            } else if (clock != null && member.isResumed()) {
+                sendNextLoopStart(member, clock);
+            }
+        }
+
+        @Override
+        public void onMessage(MemberConnection member, MessageProtocol.Message message) {
+            switch (message.type) {
+                case SYNC_TIME: {
+                    // サーバ受信・送信時刻（μs）をI/Oスレッドから即時に返す（server_nowは旧メンバー用）
+                    try {
+                        TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+                        long clientSend = message.getLong("client_send_us");
+                        long serverRecvUs = timeSync.toServerNanos(member.lastReadAtNanos) / 1_000L;
+                        long serverSendUs = timeSync.nowServerNanos() / 1_000L;
+                        syncReplyValues[0] = serverSendUs / 1_000L;
+                        syncReplyValues[1] = clientSend;
+                        syncReplyValues[2] = serverRecvUs;
+                        syncReplyValues[3] = serverSendUs;
+                        coordinatorServer.replyFields(member, MessageType.SYNC_TIME, syncReplyValues, clientSend > 0 ? 4 : 1);
+                        Log.d(TAG, "Responded SYNC_TIME");
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error sending SYNC_TIME", e);
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "Error starting coordinator", e);
+                    break;
+                }
+                case PLAY_COMMAND: {
+                    Log.d(TAG, "Received play command from member");
+                    // メンバーから要求が来た場合も同じロジックで目標時刻を計算して全員へ配布（同時の要求は1回にまとめる）
+                    requestStart(0);
+                    break;
                 }
+                case LOOP_END: {
+                    LoopClock clock = loopClock;
+                    if (clock != null) {
+                        // ループの時刻表を知らない旧メンバーには次のループの開始時刻だけを送る（他の端末は止めない）
+                        sendNextLoopStart(member, clock);
+                        break;
+                    }
+                    requestStart((int) message.getLong("loop_id"));
+                    break;
+                }
+                case READY: {
+                    member.markReady((int) message.getLong("start_id"));
+                    onParticipantReady(member, (int) message.getLong("start_id"));
+                    break;
+                }
+                case START_ACK: {
+                    member.onStartAck((int) message.getLong("start_id"));
+                    break;
+                }
+                case MEDIA_PROGRESS: {
+                    member.setMediaProgress(message.getLong("media_id"), message.getLong("received"), message.getLong("size"));
+                    break;
+                }
+                case START_REPORT: {
+                    // 受信から開始の予約までの時間を次回以降のリードタイムに反映する
+                    member.getStartStats().add(message.getLong("recv_to_armed_us"));
+                    Log.d(TAG, "Start report from #" + member.getMemberId() + ": armed=" + message.getLong("recv_to_armed_us")
+                            + "us play=" + message.getLong("recv_to_play_us") + "us skew=" + message.getLong("skew_us") + "us");
+                    break;
+                }
+                default:
+                    break;
             }
-        });
-    }
+        }
 
-    // メンバーとして開始
+        @Override
+        public void onMemberDisconnected(MemberConnection member) {
+            members.remove(member);
+            // 準備待ちの途中で抜けたメンバーは待たない
+            final StartBarrier<Object> barrier = startBarrier;
+            if (barrier != null && barrier.remove(member)) {
+                finishStartRound(barrier);
+            }
+            Log.d(TAG, "Member left: #" + member.getMemberId() + " " + member.getRemoteAddress());
+        }
+
+        @Override
+        public void onMemberTimedOut(MemberConnection member) {
+            timedOutMemberCount.incrementAndGet();
+            Log.w(TAG, "Member timed out: #" + member.getMemberId() + " " + member.getRemoteAddress()
+                    + " last seen " + member.getMillisSinceLastSeen() + "ms ago, " + member.getHeartbeatsReceived() + " heartbeats received");
+            final String name = "#" + member.getMemberId();
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    showToastIfEnabled("応答のないメンバーを切断しました（" + name + "）");
+                }
+            });
+        }
+
+        @Override
+        public void onSlowMember(MemberConnection member, boolean evicted) {
+            if (!evicted) {
+                Log.w(TAG, "Slow member: #" + member.getMemberId() + " queued=" + member.getOutboundDepth());
+                return;
+            }
+            evictedMemberCount.incrementAndGet();
+            Log.w(TAG, "Evicted slow member: #" + member.getMemberId() + " " + member.getRemoteAddress() + " peak=" + member.getOutboundPeak());
+            final String name = "#" + member.getMemberId();
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    showToastIfEnabled("応答の遅いメンバーを切断しました（" + name + "）");
+                }
+            });
+        }
+    };
+
+    // メンバーとして開始（接続できるまで、また切れたら再接続を繰り返す）
     private void startAsMember() {
+        isRunning = true;
+        sessionToken = 0L;
+        reconnectAttempts = 0;
+        connectToCoordinator();
+    }
+
+    // メンバー: コーディネーターへ接続する（以前のセッションがあれば引き継ぎを求める）
+    private void connectToCoordinator() {
         executorService.execute(new Runnable() {
             @Override
             public void run() {
+                if (!isRunning) {
+                    return;
+                }
+                CoordinatorLink link = null;
                 try {
                     Log.d(TAG, "Connecting to coordinator: " + coordinatorIp);
-                    coordinatorSocket = new Socket(coordinatorIp, SERVER_PORT);
-
-                    coordinatorWriter = new BufferedWriter(new OutputStreamWriter(coordinatorSocket.getOutputStream(), "UTF-8"));
-                    coordinatorReader = new BufferedReader(new InputStreamReader(coordinatorSocket.getInputStream(), "UTF-8"));
+                    link = CoordinatorLink.connect(coordinatorIp, SERVER_PORT);
 
-                    // JOINメッセージを送信
-                    MessageProtocol.sendSimpleMessage(coordinatorWriter, MessageType.CONNECT);
-                    Log.d(TAG, "Sent JOIN message to coordinator");
-
-                    // CONNECTEDメッセージを受信
-                    MessageProtocol.Message response = MessageProtocol.receiveMessage(coordinatorReader);
-                    if (response != null && response.type == MessageType.CONNECTED) {
-                        isRunning = true;
-                        Log.d(TAG, "Connected to coordinator");
-
-						// 接続直後に時刻同期を要求
-						requestTimeSync();
-
-                        // メッセージ受信ループ
-                        startMessageLoop();
-                    } else {
+                    // JOINメッセージを送信し、CONNECTEDを受信（ワイヤーフォーマットもここで決定）
+                    link.setTimeSampleListener(timeSampleListener);
+                    if (!link.handshake(sessionToken)) {
                         Log.e(TAG, "Failed to connect to coordinator");
+                        link.close();
+                        scheduleReconnect();
+                        return;
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "Error connecting to coordinator", e);
+                    if (link != null) {
+                        link.close();
+                    }
+                    scheduleReconnect();
+                    return;
                 }
+                if (!isRunning) {
+                    // 接続中に停止された
+                    link.close();
+                    return;
+                }
+                coordinatorLink = link;
+                onCoordinatorConnected(link);
             }
         });
     }
 
-	// メンバー: サーバへ時刻同期要求を送信
+    // メンバー: ハンドシェイクを終えた（初回の接続と再接続）
+    private void onCoordinatorConnected(CoordinatorLink link) {
+        long previousToken = sessionToken;
+        sessionToken = link.getSessionToken();
+        // 同じセッションが返れば、コーディネーターは再起動しておらず以前の状態を引き継いでいる
+        boolean resumed = previousToken != 0L && sessionToken == previousToken;
+        boolean reconnected = previousToken != 0L || reconnectAttempts > 0;
+        reconnectAttempts = 0;
+        if (!resumed) {
+            // 開始番号はコーディネーターごとに振られる
+            latestStartId = 0;
+            synchronized (this) {
+                lastPlayStartId = 0;
+            }
+            stopAnnounceListener();
+        }
+        Log.d(TAG, resumed ? "Reconnected to coordinator, session resumed" : "Connected to coordinator");
+
+        // 受信した動画を他のメンバーへ中継する配信サーバ（再接続では作り直さない）
+        if (mediaServer == null) {
+            mediaServer = new MediaServer(MEDIA_PORT, executorService);
+            executorService.execute(mediaServer);
+        }
+
+        // 開始指示のマルチキャスト（メッセージ受信ループより先に待ち受ける）
+        if (startAnnounceListener == null) {
+            startAnnounceListener();
+        }
+
+        startHeartbeat();
+
+        // 接続直後に時刻同期を要求。同じコーディネーターへの再接続で直近の推定があれば、それを使い続ける
+        TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+        if (resumed && timeSync.isWarm()) {
+            Log.d(TAG, "Reusing time sync estimate from " + timeSync.getMillisSinceLastEstimate() + "ms ago");
+            scheduleResync(Math.max(TimeSyncManager.MIN_RESYNC_INTERVAL_MS,
+                    timeSync.getResyncIntervalMs() - timeSync.getMillisSinceLastEstimate()));
+        } else {
+            requestTimeSync();
+        }
+
+        // メッセージ受信ループ
+        startMessageLoop();
+
+        if (reconnected) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    showToastIfEnabled("コーディネーターに再接続しました");
+                }
+            });
+        }
+    }
+
+    // メンバー: 待ち時間を空けて再接続する（失敗が続くほど間隔を伸ばす）
+    private void scheduleReconnect() {
+        if (!isRunning || isCoordinator) {
+            return;
+        }
+        long delayMs = NetworkUtils.backoffDelayMs(reconnectAttempts++, RECONNECT_BASE_MS, RECONNECT_MAX_MS,
+                ThreadLocalRandom.current().nextDouble());
+        mainHandler.removeCallbacks(reconnectRunnable);
+        mainHandler.postDelayed(reconnectRunnable, delayMs);
+        Log.d(TAG, "Reconnecting in " + delayMs + "ms (attempt " + reconnectAttempts + ")");
+    }
+
+    private final Runnable reconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            connectToCoordinator();
+        }
+    };
+
+	// メンバー: サーバへ時刻同期要求をバーストで送信し、RTTの小さいサンプルから推定する
 	private void requestTimeSync() {
+		if (!syncBurstRunning.compareAndSet(false, true)) {
+			return;
+		}
 		executorService.execute(new Runnable() {
 			@Override
 			public void run() {
+				TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
 				try {
-					lastSyncSendElapsedMs = android.os.SystemClock.elapsedRealtime();
-					MessageProtocol.sendSimpleMessage(coordinatorWriter, MessageType.SYNC_TIME);
-					Log.d(TAG, "Sent SYNC_TIME request");
+					timeSync.beginBurst();
+					if (!runUdpBurst(timeSync)) {
+						runTcpBurst(timeSync);
+					}
+					if (timeSync.finishBurst()) {
+						Log.d(TAG, "Time sync burst done. offset=" + timeSync.getOffsetMs()
+								+ "ms error<=" + timeSync.getErrorBoundMs() + "ms");
+					}
 				} catch (IOException e) {
 					Log.e(TAG, "Error sending SYNC_TIME", e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					syncBurstRunning.set(false);
 				}
+				scheduleResync(timeSync.getResyncIntervalMs());
 			}
 		});
 	}
 
+	/**
+	 * UDPでバーストを行う。UDPが使えない（未通知・1件も応答がない）ときはfalseを返しTCPに任せる
+	 */
+	private boolean runUdpBurst(TimeSyncManager timeSync) {
+		UdpTimeClient client = openUdpTimeClient();
+		if (client == null) {
+			return false;
+		}
+		int replies = 0;
+		try {
+			for (int i = 0; i < SYNC_BURST_SIZE && isRunning; i++) {
+				if (client.exchange()) {
+					timeSync.addBurstSample(client.t0, client.t1, client.t2, client.t3);
+					replies++;
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "UDP time sync failed", e);
+		}
+		if (replies == 0) {
+			// ファイアウォール等でUDPが通らない。以降はTCPで同期する
+			Log.w(TAG, "No UDP time replies, falling back to TCP");
+			udpTimeDisabled = true;
+			closeUdpTimeClient();
+			return false;
+		}
+		return true;
+	}
+
+	private UdpTimeClient openUdpTimeClient() {
+		if (udpTimeClient != null || udpTimeDisabled) {
+			return udpTimeClient;
+		}
+		CoordinatorLink link = coordinatorLink;
+		MessageProtocol.Message connected = link != null ? link.getConnectedMessage() : null;
+		int timePort = connected != null ? connected.getInt(KEY_TIME_PORT) : 0;
+		if (timePort <= 0) {
+			// 旧バージョンのコーディネーター
+			udpTimeDisabled = true;
+			return null;
+		}
+		try {
+			udpTimeClient = new UdpTimeClient(coordinatorIp, timePort, UDP_REPLY_TIMEOUT_MS, new LongSupplier() {
+				@Override
+				public long getAsLong() {
+					return TimeSyncManager.localMicros();
+				}
+			});
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot open UDP time client", e);
+			udpTimeDisabled = true;
+		}
+		return udpTimeClient;
+	}
+
+	private void closeUdpTimeClient() {
+		UdpTimeClient client = udpTimeClient;
+		udpTimeClient = null;
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	// TCPの制御ストリーム上でバーストを行う（UDPが使えないときのフォールバック）
+	private void runTcpBurst(TimeSyncManager timeSync) throws IOException, InterruptedException {
+		syncReplies.drainPermits();
+		for (int i = 0; i < SYNC_BURST_SIZE && isRunning; i++) {
+			// 応答を待ってから次を送る（自分の要求同士でキューイングさせない）
+			lastSyncSendElapsedMs = android.os.SystemClock.elapsedRealtime();
+			coordinatorLink.sendFields(MessageType.SYNC_TIME, 0L, TimeSyncManager.localMicros());
+			if (!syncReplies.tryAcquire(SYNC_REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				Log.w(TAG, "SYNC_TIME reply timed out");
+			}
+		}
+	}
+
+	// メンバー: 次の再同期を予約（間隔はTimeSyncManagerが推定の安定度から決める）
+	private void scheduleResync(long delayMs) {
+		if (!isRunning || isCoordinator) {
+			return;
+		}
+		mainHandler.removeCallbacks(resyncRunnable);
+		mainHandler.postDelayed(resyncRunnable, delayMs);
+		Log.d(TAG, "Next time resync in " + delayMs + "ms");
+	}
+
+	private final Runnable resyncRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (isRunning && coordinatorLink != null && coordinatorLink.isOpen()) {
+				// 時刻ヘッダのサンプルで最近更新されていればバーストは不要。その分だけ先送りする
+				TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+				long sinceEstimate = timeSync.getMillisSinceLastEstimate();
+				long interval = timeSync.getResyncIntervalMs();
+				if (sinceEstimate < interval) {
+					scheduleResync(interval - sinceEstimate);
+					return;
+				}
+				requestTimeSync();
+			}
+		}
+	};
+
+	// メンバー: 通常のメッセージの時刻ヘッダから得たサンプル（受信スレッドから呼ばれる）
+	private final CoordinatorLink.TimeSampleListener timeSampleListener = new CoordinatorLink.TimeSampleListener() {
+		@Override
+		public void onTimeSample(long t0, long t1, long t2, long t3) {
+			TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+			if (timeSync.addPassiveSample(t0, t1, t2, t3)) {
+				Log.d(TAG, "Passive time sync updated. offset=" + timeSync.getOffsetMs()
+						+ "ms error<=" + timeSync.getErrorBoundMs() + "ms");
+			}
+		}
+	};
+
     // メッセージ受信ループ（メンバー用）
     private void startMessageLoop() {
         executorService.execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    while (isRunning && coordinatorSocket != null && !coordinatorSocket.isClosed()) {
-                        MessageProtocol.Message message = MessageProtocol.receiveMessage(coordinatorReader);
+                    while (isRunning && coordinatorLink != null && coordinatorLink.isOpen()) {
+                        MessageProtocol.Message message = coordinatorLink.receive();
                         if (message == null) {
                             break;
                         }
@@ -188,91 +713,267 @@ public class GroupSyncService extends Service {
                 } catch (IOException e) {
                     Log.e(TAG, "Error in message loop", e);
                 }
+                onCoordinatorLinkClosed();
+            }
+        });
+    }
+
+    // メンバー: コーディネーターとの接続が切れた（受信ループの終了時）
+    private void onCoordinatorLinkClosed() {
+        mainHandler.removeCallbacks(heartbeatRunnable);
+        CoordinatorLink link = coordinatorLink;
+        if (link != null) {
+            link.close();
+        }
+        if (!isRunning) {
+            return;
+        }
+        Log.w(TAG, "Connection to coordinator lost");
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                showToastIfEnabled("コーディネーターとの接続が切れました");
             }
         });
+        scheduleReconnect();
+    }
+
+    // メンバー: HEARTBEATを送り、コーディネーターから期限までに何も届かなければ接続を閉じる（受信ループが終わる）
+    private final Runnable heartbeatRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final CoordinatorLink link = coordinatorLink;
+            long intervalMs = heartbeatIntervalMs;
+            if (!isRunning || link == null || !link.isOpen() || intervalMs <= 0) {
+                return;
+            }
+            if (link.getMillisSinceLastReceive() > intervalMs * heartbeatMisses) {
+                Log.w(TAG, "Coordinator silent for " + link.getMillisSinceLastReceive() + "ms, closing connection");
+                link.close();
+                return;
+            }
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        link.sendSimple(MessageType.HEARTBEAT);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Error sending heartbeat", e);
+                    }
+                }
+            });
+            mainHandler.postDelayed(this, intervalMs);
+        }
+    };
+
+    // メンバー: CONNECTEDで通知された生存確認を始める（旧バージョンのコーディネーターなら何もしない）
+    private void startHeartbeat() {
+        MessageProtocol.Message connected = coordinatorLink.getConnectedMessage();
+        heartbeatIntervalMs = connected != null ? connected.getLong(MessageProtocol.KEY_HEARTBEAT_MS) : 0L;
+        int misses = connected != null ? connected.getInt(MessageProtocol.KEY_HEARTBEAT_MISSES) : 0;
+        heartbeatMisses = misses > 0 ? misses : DEFAULT_HEARTBEAT_MISSES;
+        mainHandler.removeCallbacks(heartbeatRunnable);
+        if (heartbeatIntervalMs > 0) {
+            mainHandler.postDelayed(heartbeatRunnable, heartbeatIntervalMs);
+        }
     }
 
     // メッセージを処理
     private void handleMessage(MessageProtocol.Message message) {
         switch (message.type) {
 			case SYNC_TIME: {
+				TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+				long clientRecv = TimeSyncManager.localMicros();
+				long clientSend = message.getLong("client_send_us");
+				long serverRecv = message.getLong("server_recv_us");
+				long serverSend = message.getLong("server_send_us");
 				long serverNow = message.getLong("server_now");
-				if (serverNow > 0) {
+				if (clientSend > 0 && serverRecv > 0 && serverSend > 0) {
+					timeSync.addBurstSample(clientSend, serverRecv, serverSend, clientRecv);
+				} else if (serverNow > 0) {
+					// 受信・送信時刻を返さない旧コーディネーター
 					long tRecv = android.os.SystemClock.elapsedRealtime();
-					TimeSyncManager.getInstance(getApplicationContext())
-						.updateOffsetSample(lastSyncSendElapsedMs, tRecv, serverNow);
+					timeSync.updateOffsetSample(lastSyncSendElapsedMs, tRecv, serverNow);
 					Log.d(TAG, "Time sync updated. serverNow=" + serverNow);
 				}
+				syncReplies.release();
+				break;
+			}
+			case VIDEO_METADATA: {
+				receiveMedia(message.getLong("media_id"), message.getLong("size"),
+						(int) message.getLong("chunk_size"), message.getString("name"), message.getString("hash"),
+						message.getString("relay_host"));
+				break;
+			}
+			case PREPARE_COMMAND: {
+				if (isStaleStart((int) message.getLong("start_id"))) {
+					break;
+				}
+				// Activityに再生準備を依頼（準備できたらnotifyReadyでREADYを返す）
+				Intent prepareIntent = new Intent(ACTION_PREPARE);
+				prepareIntent.putExtra(EXTRA_START_ID, (int) message.getLong("start_id"));
+				dispatchCommand(prepareIntent);
+				Log.d(TAG, "Received PREPARE_COMMAND");
 				break;
 			}
             case PLAY_COMMAND:
                 Log.d(TAG, "Received PLAY_COMMAND");
-				// Activityに再生開始を通知（目標時刻を添付）
-				long targetEpochMs = message.getLong("target_epoch_ms");
-                Intent playIntent = new Intent(ACTION_PLAY);
-				if (targetEpochMs > 0) {
-					playIntent.putExtra(EXTRA_TARGET_EPOCH_MS, targetEpochMs);
-				}
-                playIntent.setPackage(getPackageName()); // パッケージ名を設定してアプリ内でのみ受信できるようにする
-                sendBroadcast(playIntent);
-                Log.d(TAG, "ACTION_PLAY broadcast sent from handleMessage");
+                deliverPlay((int) message.getLong("start_id"), message.getLong("target_epoch_ms"),
+                        message.getLong("loop_duration_ms"), message.getLong("loop_gap_ms"), message.getLong("media_id"),
+                        android.os.SystemClock.elapsedRealtimeNanos());
+                break;
+            case HEARTBEAT:
+                // 受信時刻はCoordinatorLinkが記録済み
                 break;
             default:
                 Log.w(TAG, "Unknown message type: " + message.type);
         }
     }
 
-    // 全メンバーに再生コマンドをブロードキャスト
+    /**
+     * メンバー: Activityに再生開始を通知する（TCPの受信ループとマルチキャストの受信スレッドから呼ばれる）
+     * mediaIdが指定されていて（途中参加）その動画をまだActivityへ渡していなければ、渡すまで保留する
+     */
+    private void deliverPlay(int startId, long targetEpochMs, long loopDurationMs, long loopGapMs, long mediaId,
+                             long receivedAtNanos) {
+        synchronized (this) {
+            // 同じ開始指示はマルチキャストとTCP（確認が間に合わなかったときの送り直し）の両方で届くことがある
+            if (startId != 0 && startId <= lastPlayStartId) {
+                return;
+            }
+            if (isStaleStart(startId)) {
+                return;
+            }
+            if (startId != 0) {
+                lastPlayStartId = startId;
+            }
+        }
+        // Activityに再生開始を通知（目標時刻を添付）
+        Intent playIntent = new Intent(ACTION_PLAY);
+        playIntent.putExtra(EXTRA_RECEIVED_AT_NANOS, receivedAtNanos);
+        if (targetEpochMs > 0) {
+            playIntent.putExtra(EXTRA_TARGET_EPOCH_MS, targetEpochMs);
+        }
+        playIntent.putExtra(EXTRA_START_ID, startId);
+        playIntent.putExtra(EXTRA_LOOP_DURATION_MS, loopDurationMs);
+        playIntent.putExtra(EXTRA_LOOP_GAP_MS, loopGapMs);
+        synchronized (this) {
+            if (mediaId != 0L && mediaId != readyMediaId) {
+                pendingCatchUp = playIntent;
+                pendingCatchUpMediaId = mediaId;
+                Log.d(TAG, "ACTION_PLAY held until media " + mediaId + " is ready");
+                return;
+            }
+            pendingCatchUp = null;
+        }
+        dispatchCommand(playIntent);
+        Log.d(TAG, "ACTION_PLAY dispatched for start #" + startId);
+    }
+
+    // メンバー: マルチキャストの開始指示を受け取る（受け取ったらTCPで確認を返す）
+    private void startAnnounceListener() {
+        CoordinatorLink link = coordinatorLink;
+        MessageProtocol.Message connected = link != null ? link.getConnectedMessage() : null;
+        int port = connected != null ? connected.getInt(KEY_ANNOUNCE_PORT) : 0;
+        String group = connected != null ? connected.getString(KEY_ANNOUNCE_GROUP) : null;
+        if (port <= 0 || group == null) {
+            // 旧バージョンのコーディネーター、またはマルチキャストを使わない設定
+            return;
+        }
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null && multicastLock == null) {
+            multicastLock = wifiManager.createMulticastLock(TAG);
+            multicastLock.setReferenceCounted(false);
+            multicastLock.acquire();
+        }
+        try {
+            StartAnnounceListener listener = new StartAnnounceListener(InetAddress.getByName(group), port, null,
+                    connected.getLong(KEY_ANNOUNCE_SESSION), startAnnounceCallback);
+            listener.bind();
+            startAnnounceListener = listener;
+            executorService.execute(listener);
+        } catch (IOException e) {
+            // 確認を返さないので、コーディネーターがTCPで送ってくる
+            Log.w(TAG, "Cannot listen for start announcements", e);
+        }
+    }
+
+    private void stopAnnounceListener() {
+        StartAnnounceListener listener = startAnnounceListener;
+        startAnnounceListener = null;
+        if (listener != null) {
+            listener.stop();
+        }
+    }
+
+    private final StartAnnounceListener.Callback startAnnounceCallback = new StartAnnounceListener.Callback() {
+        @Override
+        public void onAnnouncement(StartAnnouncer.Announcement announcement, long receivedAtNanos) {
+            Log.d(TAG, "Received start announcement #" + announcement.startId);
+            deliverPlay(announcement.startId, announcement.targetEpochMs, announcement.loopDurationMs,
+                    announcement.loopGapMs, 0L, receivedAtNanos);
+            CoordinatorLink link = coordinatorLink;
+            if (link == null) {
+                return;
+            }
+            try {
+                link.sendFields(MessageType.START_ACK, announcement.startId);
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending start ack", e);
+            }
+        }
+    };
+
+    // メンバー: 既に新しい開始を受け取っていれば古い開始指示は捨てる（番号なしは旧コーディネーターや個別のループ開始なので通す）
+    private boolean isStaleStart(int startId) {
+        if (startId == 0) {
+            return false;
+        }
+        if (startId < latestStartId) {
+            Log.d(TAG, "Ignoring stale start #" + startId + " (latest #" + latestStartId + ")");
+            return true;
+        }
+        latestStartId = startId;
+        return false;
+    }
+
+    /**
+     * コーディネーター: 次のループの開始を要求する（loopIdは終えたループの番号、不明なら0）
+     * 古いループへの要求は捨て、同じループへの要求はまとめて1回だけ開始する
+     */
+    private void requestStart(int loopId) {
+        if (!loopScheduler.request(loopId, android.os.SystemClock.elapsedRealtime())) {
+            Log.d(TAG, "Start request for loop #" + loopId + " coalesced (current #" + loopScheduler.getCurrentLoopId()
+                    + ", coalesced " + loopScheduler.getCoalescedCount() + ", stale " + loopScheduler.getStaleCount() + ")");
+            return;
+        }
+        mainHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                if (!loopScheduler.takePending()) {
+                    return;
+                }
+                beginStartRoundWhenBuffered(android.os.SystemClock.elapsedRealtime() + HEAD_WAIT_TIMEOUT_MS);
+            }
+        }, startRoundToken, android.os.SystemClock.uptimeMillis() + loopScheduler.getDebounceMs());
+    }
+
+    /**
+     * グループ再生を開始する
+     * コーディネーターは二段階開始（準備指示→全員のREADY→開始時刻の配布）を始め、メンバーはコーディネーターへ依頼する
+     */
     public void broadcastPlayCommand() {
         // バックグラウンドスレッドで実行
         executorService.execute(new Runnable() {
             @Override
             public void run() {
                 if (isCoordinator) {
-                    // コーディネーターは全メンバーにブロードキャスト
-                    try {
-						// 押下時刻から最も近い10秒境界を算出し、最小マージンを確保
-						long now = System.currentTimeMillis();
-						long nearest = ((now + 5000L) / 10000L) * 10000L;
-						long minMarginMs = 3000L; // 各端末が準備できる最小リード
-						long targetEpochMs = (nearest <= now + minMarginMs) ? (nearest + 10000L) : nearest;
-
-                        synchronized (connectedMembers) {
-                            for (MemberConnection member : new ArrayList<>(connectedMembers)) {
-                                try {
-									org.json.JSONObject data = new org.json.JSONObject();
-									data.put("target_epoch_ms", targetEpochMs);
-									MessageProtocol.sendMessage(member.writer, MessageType.PLAY_COMMAND, data);
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Error sending play command to member", e);
-								} catch (org.json.JSONException je) {
-									Log.e(TAG, "JSON error sending play command", je);
-                                }
-                            }
-                        }
-                        // コーディネーター自身にもブロードキャストを送信
-                        Intent playIntent = new Intent(ACTION_PLAY);
-						playIntent.putExtra(EXTRA_TARGET_EPOCH_MS, targetEpochMs);
-                        playIntent.setPackage(getPackageName()); // パッケージ名を設定してアプリ内でのみ受信できるようにする
-                        sendBroadcast(playIntent);
-                        Log.d(TAG, "Play command broadcasted to " + connectedMembers.size() + " members (including self) - ACTION_PLAY sent: " + ACTION_PLAY);
-						// 送信トースト
-						final long toastTime = targetEpochMs;
-						mainHandler.post(new Runnable() {
-							@Override
-							public void run() {
-								String hhmmss = new java.text.SimpleDateFormat("HH:mm:ss").format(new java.util.Date(toastTime));
-								showToastIfEnabled("再生開始信号を送信（" + hhmmss + "）");
-							}
-						});
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error broadcasting play command", e);
-                    }
+                    beginStartRoundWhenBuffered(android.os.SystemClock.elapsedRealtime() + HEAD_WAIT_TIMEOUT_MS);
                 } else {
                     // メンバーはコーディネーターに再生コマンドを送信
                     try {
-                        if (coordinatorWriter != null) {
-                            MessageProtocol.sendSimpleMessage(coordinatorWriter, MessageType.PLAY_COMMAND);
+                        if (coordinatorLink != null) {
+                            coordinatorLink.sendSimple(MessageType.PLAY_COMMAND);
                             Log.d(TAG, "Play command sent to coordinator");
 							// 送信トースト
 							mainHandler.post(new Runnable() {
@@ -290,17 +991,711 @@ public class GroupSyncService extends Service {
         });
     }
 
-	// 動画ループ終了を通知（メンバーから呼び出し）
-	public void notifyLoopFinished() {
+    /**
+     * コーディネーター: 全メンバーが動画の先頭を受信してから開始する（受信しながら再生するメンバーが途中で止まらないように）
+     * 受信の遅いメンバーがいても、deadlineMs（elapsedRealtime）を過ぎたら待たずに開始する
+     */
+    private void beginStartRoundWhenBuffered(final long deadlineMs) {
+        if (!isRunning) {
+            // 待っている間に停止された
+            headWaitRunning.set(false);
+            return;
+        }
+        long now = android.os.SystemClock.elapsedRealtime();
+        int waiting = getMediaHeadPendingCount();
+        if (waiting > 0 && now < deadlineMs) {
+            if (headWaitRunning.compareAndSet(false, true)) {
+                Log.d(TAG, "Start deferred: " + waiting + " members still buffering the media head");
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showToastIfEnabled("動画の受信を待っています");
+                    }
+                });
+            }
+            mainHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    beginStartRoundWhenBuffered(deadlineMs);
+                }
+            }, startRoundToken, android.os.SystemClock.uptimeMillis() + MEDIA_PROGRESS_INTERVAL_MS);
+            return;
+        }
+        if (waiting > 0) {
+            Log.w(TAG, "Media head wait timed out, starting without " + waiting + " members");
+        }
+        headWaitRunning.set(false);
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    beginStartRound();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error broadcasting prepare command", e);
+                }
+            }
+        });
+    }
+
+    // コーディネーター: 準備指示を配り、READYの待ち合わせを始める
+    private void beginStartRound() throws IOException, JSONException {
+        // 前回の待ち合わせが残っていれば打ち切る（以降のREADYやタイムアウトでは開始しない）
+        StartBarrier<Object> previous = startBarrier;
+        if (previous != null) {
+            previous.close();
+        }
+        // 開始番号はループ番号を兼ねる。準備待ちと開始までの間に届いた番号なしの要求はこの開始にまとめる
+        int startId = loopScheduler.issue(android.os.SystemClock.elapsedRealtime(), READY_TIMEOUT_MS + LeadTime.MAX_LEAD_US / 1_000L);
+        List<Object> participants = new ArrayList<>();
+        participants.add(selfParticipant);
+        JSONObject data = new JSONObject();
+        data.put("start_id", startId);
+        ByteBuffer[] frames = new ByteBuffer[MessageProtocol.FRAME_KINDS];
+        List<MemberConnection> targets = members.snapshot();
+        for (MemberConnection member : targets) {
+            if (member.supports(MessageProtocol.KEY_READY_BARRIER)) {
+                participants.add(member);
+            }
+        }
+        StartBarrier<Object> barrier = new StartBarrier<>(startId, participants, android.os.SystemClock.elapsedRealtime());
+        startBarrier = barrier;
+        for (MemberConnection member : targets) {
+            if (!member.supports(MessageProtocol.KEY_READY_BARRIER)) {
+                // 旧バージョンのメンバーは準備指示を知らないので、開始時刻だけを送る
+                continue;
+            }
+            int kind = member.getFrameKind();
+            if (frames[kind] == null) {
+                frames[kind] = member.encode(MessageType.PREPARE_COMMAND, data);
+            }
+            member.sendEncoded(frames[kind]);
+        }
+        // コーディネーター自身のActivityにも準備を依頼
+        Intent prepareIntent = new Intent(ACTION_PREPARE);
+        prepareIntent.putExtra(EXTRA_START_ID, startId);
+        dispatchCommand(prepareIntent);
+        Log.d(TAG, "Prepare command #" + startId + " sent, waiting for " + participants.size() + " participants");
+
+        final StartBarrier<Object> timeoutBarrier = barrier;
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                finishStartRound(timeoutBarrier);
+            }
+        }, READY_TIMEOUT_MS);
+    }
+
+    // READYを受け取った（メンバーはI/Oスレッド、自分自身はメインスレッドから）
+    private void onParticipantReady(Object participant, int startId) {
+        StartBarrier<Object> barrier = startBarrier;
+        if (barrier != null && barrier.markReady(participant, startId, android.os.SystemClock.elapsedRealtime())) {
+            finishStartRound(barrier);
+        }
+    }
+
+    /**
+     * 待ち合わせを締め切り、開始時刻を決めて全員へ配布する（全員揃ったときとタイムアウトのどちらか早い方で1回だけ）
+     * 開始時刻は最も遅いREADYの直後 + 配布にかかる時間の見込み。間に合わなかった端末は待たない
+     */
+    private void finishStartRound(final StartBarrier<Object> barrier) {
+        if (!barrier.close()) {
+            return;
+        }
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LeadTime lead = computeLeadTime();
+                    lastLeadTime = lead;
+                    long leadMs = lead.leadMs;
+                    long targetEpochMs = TimeSyncManager.getInstance(getApplicationContext()).nowServerMillis() + leadMs;
+                    loopScheduler.setBusyUntil(android.os.SystemClock.elapsedRealtime() + leadMs);
+                    sendPlayCommand(targetEpochMs, barrier.getStartId());
+
+                    final List<Object> stragglers = barrier.getStragglers();
+                    Log.d(TAG, "Start #" + barrier.getStartId() + ": " + barrier.getReadyCount() + " ready in "
+                            + barrier.getSlowestReadyMs() + "ms, " + stragglers.size() + " not ready, " + lead);
+					// 送信トースト
+					final long toastTime = targetEpochMs;
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							String hhmmss = new java.text.SimpleDateFormat("HH:mm:ss").format(new java.util.Date(toastTime));
+							if (stragglers.isEmpty()) {
+								showToastIfEnabled("再生開始信号を送信（" + hhmmss + "）");
+							} else {
+								showToastIfEnabled("再生開始信号を送信（" + hhmmss + "、準備が間に合わない端末: " + stragglers.size() + "）");
+							}
+						}
+					});
+                } catch (Exception e) {
+                    Log.e(TAG, "Error broadcasting play command", e);
+                }
+            }
+        });
+    }
+
+    // 自分自身と接続中の全メンバーの計測値からリードタイムを求める
+    private LeadTime computeLeadTime() {
+        LeadTime.Calculator calculator = new LeadTime.Calculator();
+        calculator.add("self", null, selfStartStats);
+        for (MemberConnection member : members.snapshot()) {
+            calculator.add("#" + member.getMemberId(), member.getRttStats(), member.getStartStats());
+        }
+        return calculator.build();
+    }
+
+    /**
+     * 途中から加わるメンバーへ、ループの基準時刻（過去の時刻）と時刻表・再生中の動画を送る
+     * メンバーは今の再生位置を自分で求めてシークする（動画の準備ができるまでは保留する）
+     */
+    private void sendLoopCatchUp(MemberConnection member, LoopClock clock, SharedMedia media) {
+        try {
+            JSONObject data = new JSONObject();
+            data.put("target_epoch_ms", clock.getEpochMs());
+            data.put("start_id", 0);
+            data.put("loop_duration_ms", clock.getDurationMs());
+            data.put("loop_gap_ms", clock.getGapMs());
+            data.put("media_id", media != null ? media.getMediaId() : 0L);
+            member.sendEncoded(member.encode(MessageType.PLAY_COMMAND, data));
+            Log.d(TAG, "Loop catch-up for #" + member.getMemberId() + " from epoch " + clock.getEpochMs());
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error sending loop catch-up", e);
+        }
+    }
+
+    // 次のループの開始時刻を1人のメンバーへ送る（I/Oスレッドから）
+    private void sendNextLoopStart(MemberConnection member, LoopClock clock) {
+        LeadTime lead = lastLeadTime;
+        long leadMs = lead != null ? lead.leadMs : LeadTime.MAX_LEAD_US / 1_000L;
+        long nowMs = TimeSyncManager.getInstance(getApplicationContext()).nowServerMillis();
+        long targetEpochMs = clock.nextStartAt(nowMs + leadMs);
+        try {
+            JSONObject data = new JSONObject();
+            data.put("target_epoch_ms", targetEpochMs);
+            data.put("loop_duration_ms", clock.getDurationMs());
+            data.put("loop_gap_ms", clock.getGapMs());
+            member.sendEncoded(member.encode(MessageType.PLAY_COMMAND, data));
+            Log.d(TAG, "Next loop for #" + member.getMemberId() + " at " + targetEpochMs
+                    + " (loop " + clock.loopIndexAt(targetEpochMs) + ")");
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error sending next loop start", e);
+        }
+    }
+
+    /**
+     * コーディネーターの動画の長さ（ms）。分かっていれば開始時にループの時刻表を配布する
+     */
+    public void setMediaDuration(long durationMs) {
+        mediaDurationMs = Math.max(0L, durationMs);
+    }
+
+    // ループ間の間隔（ms、0なら間隔なしでつなぐ）。次の開始から反映
+    public void setLoopGapMs(long gapMs) {
+        loopGapMs = Math.max(0L, gapMs);
+    }
+
+    /**
+     * コーディネーター: 選んだ動画をメンバーへ配信する
+     * チェックサムを計算してから配信を始め、対応するメンバーへVIDEO_METADATAで知らせる（メンバーは別ポートで取りに来る）
+     */
+    public void shareMedia(final Uri uri, final String name) {
+        if (!isCoordinator || mediaServer == null) {
+            return;
+        }
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    android.os.ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r");
+                    if (pfd == null) {
+                        Log.w(TAG, "Cannot open media to share: " + uri);
+                        return;
+                    }
+                    // SharedMedia.closeでチャネルを閉じると、ストリームと一緒にpfdも閉じる
+                    FileInputStream input = new android.os.ParcelFileDescriptor.AutoCloseInputStream(pfd);
+                    SharedMedia media;
+                    try {
+                        media = SharedMedia.open(name, input.getChannel(), SharedMedia.DEFAULT_CHUNK_SIZE);
+                    } catch (IOException | RuntimeException e) {
+                        try {
+                            input.close();
+                        } catch (IOException closeError) {
+                            e.addSuppressed(closeError);
+                        }
+                        throw e;
+                    }
+                    long mediaId = media.getMediaId();
+                    sharedMedia = media;
+                    publishMedia(media);
+                    // 中継できるメンバーで木を作り、各メンバーには受信元（親）を知らせる
+                    List<MemberConnection> relays = relayMembers();
+                    int count = 0;
+                    for (MemberConnection member : members.snapshot()) {
+                        if (sendMediaMetadata(member, media, relayHostFor(relays.indexOf(member) + 1, relays))) {
+                            count++;
+                        }
+                    }
+                    Log.d(TAG, "Sharing media " + mediaId + " (" + media.getSize() + " bytes, "
+                            + media.getChunkCount() + " chunks) with " + count + " members, relay depth "
+                            + SwarmPlan.depthOf(relays.size(), SwarmPlan.FANOUT));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error sharing media", e);
+                }
+            }
+        });
+    }
+
+    // 中継に対応したメンバー（メンバーID順。再接続したメンバーも木の同じ位置に戻る）
+    private List<MemberConnection> relayMembers() {
+        List<MemberConnection> relays = new ArrayList<>();
+        for (MemberConnection member : members.snapshot()) {
+            if (member.supports(MessageProtocol.KEY_MEDIA_RELAY)) {
+                relays.add(member);
+            }
+        }
+        return relays;
+    }
+
+    // 中継の木で番号positionのメンバーの受信元のアドレス（コーディネーターから直接なら、または中継できなければnull）
+    private static String relayHostFor(int position, List<MemberConnection> relays) {
+        if (position <= 0) {
+            return null;
+        }
+        int parent = SwarmPlan.parentOf(position, SwarmPlan.FANOUT);
+        if (parent <= 0) {
+            return null;
+        }
+        SocketAddress address = relays.get(parent - 1).getRemoteAddress();
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getHostString() : null;
+    }
+
+    // 対応しているメンバーにだけ動画の情報を送る。送ったらtrue
+    private boolean sendMediaMetadata(MemberConnection member, SharedMedia media, String relayHost) {
+        if (!member.supports(MessageProtocol.KEY_MEDIA_TRANSFER)) {
+            return false;
+        }
+        try {
+            JSONObject data = new JSONObject();
+            data.put("media_id", media.getMediaId());
+            data.put("size", media.getSize());
+            data.put("chunk_size", media.getChunkSize());
+            data.put("name", media.getName());
+            // 先にハッシュを知らせ、同じ内容を持っているメンバーは受信しない
+            data.put("hash", media.getContentHash());
+            if (relayHost != null) {
+                data.put("relay_host", relayHost);
+            }
+            member.sendEncoded(member.encode(MessageType.VIDEO_METADATA, data));
+            return true;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error sending media metadata", e);
+            return false;
+        }
+    }
+
+    // コーディネーター: 配信中の動画を受信し終えたメンバー数と、受信に対応しているメンバー数
+    public int getMediaCompletedCount() {
+        SharedMedia media = sharedMedia;
+        int count = 0;
+        if (media != null) {
+            for (MemberConnection member : members.snapshot()) {
+                if (member.hasMedia(media.getMediaId())) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // コーディネーター: 配信中の動画の先頭（設定した長さ）をまだ受信していないメンバー数
+    public int getMediaHeadPendingCount() {
+        SharedMedia media = sharedMedia;
+        if (media == null || streamHeadBytes <= 0) {
+            return 0;
+        }
+        long head = Math.min(streamHeadBytes, media.getSize());
+        int count = 0;
+        for (MemberConnection member : members.snapshot()) {
+            if (member.supports(MessageProtocol.KEY_MEDIA_TRANSFER) && member.getMediaReceived(media.getMediaId()) < head) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getMediaReceiverCount() {
+        if (sharedMedia == null) {
+            return 0;
+        }
+        int count = 0;
+        for (MemberConnection member : members.snapshot()) {
+            if (member.supports(MessageProtocol.KEY_MEDIA_TRANSFER)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * メンバー: コーディネーターの動画を受信する（受信中の別の動画は打ち切る）
+     * 同じ内容（ハッシュ）の動画を持っていれば受信せずに使い、途中まで受信していれば続きから受け取る
+     * 中継元（relayHost）が指定されていればそのメンバーから受け取り、だめならコーディネーターから受け取る
+     * 受け取ったチャンクは自分の配信サーバですぐに公開し、後ろのメンバーへ中継する
+     * 使える状態になったらACTION_MEDIA_READYでActivityへ知らせる（受信しながら再生する設定なら受信を始めた時点で、受信中の動画のURIを知らせる）
+     */
+    private void receiveMedia(final long mediaId, final long size, final int chunkSize, final String name, String hash,
+                              String relayHost) {
+        final int generation = mediaGeneration.incrementAndGet();
+        MediaReceiver previous = mediaReceiver;
+        if (previous != null) {
+            previous.cancel();
+        }
+        CoordinatorLink link = coordinatorLink;
+        if (link == null || chunkSize <= 0) {
+            return;
+        }
+        final String key = hash != null ? hash : Long.toHexString(mediaId);
+        mediaTotalBytes = size;
+        mediaReceivedBytes = 0L;
+        // 配信サーバはメンバーもコーディネーターと同じポートで待ち受ける
+        final List<InetSocketAddress> sources = new ArrayList<>();
+        if (relayHost != null) {
+            sources.add(new InetSocketAddress(relayHost, MEDIA_PORT));
+        }
+        int port = link.getConnectedMessage().getInt(KEY_MEDIA_PORT);
+        sources.add(new InetSocketAddress(coordinatorIp, port > 0 ? port : MEDIA_PORT));
+        final MediaReceiver.Listener listener = new MediaReceiver.Listener() {
+            private long lastReportMs = 0L;
+
+            @Override
+            public void onProgress(long receivedBytes, long totalBytes) {
+                mediaReceivedBytes = receivedBytes;
+                long now = android.os.SystemClock.elapsedRealtime();
+                if (receivedBytes < totalBytes && now - lastReportMs < MEDIA_PROGRESS_INTERVAL_MS) {
+                    return;
+                }
+                lastReportMs = now;
+                reportMediaProgress(mediaId, receivedBytes, totalBytes);
+            }
+        };
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                File cached = mediaStore.get(key);
+                boolean isCached = cached != null && cached.length() == size;
+                // 古い動画を消しても上限に収まらなければ、キャッシュに残さず上限の外で受信する
+                boolean overBudget = false;
+                File file;
+                if (isCached) {
+                    Log.d(TAG, "Media " + key + " already cached, skipping transfer");
+                    mediaReceivedBytes = size;
+                    reportMediaProgress(mediaId, size, size);
+                    notifyMediaReady(mediaId, Uri.fromFile(cached), name);
+                    file = cached;
+                } else if (mediaStore.reserve(key, size)) {
+                    file = mediaStore.partFile(key);
+                } else {
+                    Log.w(TAG, "Media cache budget exceeded: " + mediaStore.getUsedBytes() + " used, "
+                            + size + " needed, budget " + mediaStore.getBudgetBytes() + "; receiving " + key + " uncached");
+                    overBudget = true;
+                    file = mediaStore.transientFile(key);
+                }
+                PartialMedia media;
+                try {
+                    media = PartialMedia.open(mediaId, file, size, chunkSize);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot open media " + key, e);
+                    return;
+                }
+                if (generation != mediaGeneration.get()) {
+                    closeQuietly(media);
+                    return;
+                }
+                // 前の動画が上限の外のものなら、もう使わないので消す
+                replaceTransientMedia(overBudget ? file : null);
+                // 受信済みのものも受信中のものも、後ろのメンバーへ中継できるよう公開する
+                publishMedia(media);
+                if (isCached) {
+                    return;
+                }
+                final boolean streaming = progressivePlayback;
+                if (streaming) {
+                    notifyMediaReady(mediaId, streamUri(mediaId), name);
+                }
+                MediaReceiver receiver = new MediaReceiver(sources, media, listener);
+                mediaReceiver = receiver;
+                if (generation != mediaGeneration.get()) {
+                    receiver.cancel();
+                    return;
+                }
+                long started = android.os.SystemClock.elapsedRealtime();
+                if (!receiver.receive()) {
+                    Log.w(TAG, "Media " + mediaId + " not received (at " + receiver.getVerifiedOffset() + " of " + size + ")");
+                    return;
+                }
+                Log.d(TAG, "Media " + mediaId + " received from " + receiver.getLastSource() + ": " + size + " bytes in "
+                        + (android.os.SystemClock.elapsedRealtime() - started) + "ms");
+                reportMediaProgress(mediaId, size, size);
+                // 名前を変えるだけなので、中継中の接続はそのまま送り続けられる（上限の外の動画は登録しない）
+                File complete = overBudget ? file : mediaStore.commit(key);
+                // 受信中の動画で再生していれば、再生中の動画を差し替えないようそのまま使い続ける
+                if (complete != null && !streaming) {
+                    notifyMediaReady(mediaId, Uri.fromFile(complete), name);
+                }
+            }
+        });
+    }
+
+    // 上限の外で受信した動画を差し替え、前のものを消す
+    private void replaceTransientMedia(File file) {
+        File previous = transientMediaFile;
+        transientMediaFile = file;
+        if (previous != null && !previous.equals(file)) {
+            mediaStore.discard(previous);
+        }
+    }
+
+    // 配信サーバで公開する動画を切り替え、前の動画を閉じる
+    private void publishMedia(MediaSource media) {
+        MediaServer server = mediaServer;
+        if (server == null) {
+            closeQuietly(media);
+            return;
+        }
+        MediaSource previous = server.getMedia();
+        server.publish(media);
+        if (previous != null && previous != media) {
+            closeQuietly(previous);
+        }
+    }
+
+    private static void closeQuietly(MediaSource media) {
+        try {
+            media.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing media", e);
+        }
+    }
+
+    private void notifyMediaReady(final long mediaId, Uri uri, String name) {
+        Intent readyIntent = new Intent(ACTION_MEDIA_READY);
+        readyIntent.putExtra(EXTRA_MEDIA_URI, uri.toString());
+        readyIntent.putExtra(EXTRA_MEDIA_NAME, name);
+        final Intent catchUp;
+        synchronized (this) {
+            readyMediaId = mediaId;
+            catchUp = pendingCatchUpMediaId == mediaId ? pendingCatchUp : null;
+            if (catchUp != null) {
+                pendingCatchUp = null;
+            }
+        }
+        dispatchCommand(readyIntent);
+        if (catchUp != null) {
+            // 動画の選択より後に処理されるよう、メインスレッドのキューを1周させてから渡す
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchCommand(catchUp);
+                    Log.d(TAG, "Held ACTION_PLAY dispatched for media " + mediaId);
+                }
+            });
+        }
+    }
+
+    private static Uri streamUri(long mediaId) {
+        return new Uri.Builder().scheme(STREAM_SCHEME).authority("media").appendPath(Long.toString(mediaId)).build();
+    }
+
+    /**
+     * メンバー: 受信中の動画のURIに対応する動画（受信を終えていても同じもの）。別の動画に切り替わっていればnull
+     */
+    public PartialMedia getStreamingMedia(Uri uri) {
+        if (uri == null || !STREAM_SCHEME.equals(uri.getScheme()) || uri.getLastPathSegment() == null) {
+            return null;
+        }
+        MediaServer server = mediaServer;
+        MediaSource media = server != null ? server.getMedia() : null;
+        if (!(media instanceof PartialMedia)) {
+            return null;
+        }
+        try {
+            return media.getMediaId() == Long.parseLong(uri.getLastPathSegment()) ? (PartialMedia) media : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // 受信スレッドから呼ばれる
+    private void reportMediaProgress(long mediaId, long receivedBytes, long totalBytes) {
+        CoordinatorLink link = coordinatorLink;
+        if (link == null) {
+            return;
+        }
+        try {
+            link.sendFields(MessageType.MEDIA_PROGRESS, mediaId, receivedBytes, totalBytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending media progress", e);
+        }
+    }
+
+    // メンバー: 受信中の動画の受信済みバイト数と全体（受信していなければ-1）
+    public long getMediaReceivedBytes() {
+        return mediaReceivedBytes;
+    }
+
+    public long getMediaTotalBytes() {
+        return mediaTotalBytes;
+    }
+
+    // 直近の開始に使ったリードタイムとその根拠（まだ開始していなければnull）
+    public LeadTime getLastLeadTime() {
+        return lastLeadTime;
+    }
+
+    // 全メンバーと自分自身に開始時刻を配布
+    private void sendPlayCommand(long targetEpochMs, int startId) throws IOException, JSONException {
+		// 全員に同じ内容なのでエンコード方式ごとに1回だけエンコードして使い回す
+		// （時刻ヘッダは送信時にI/Oスレッドがメンバーごとに埋める）
+		JSONObject data = new JSONObject();
+		data.put("target_epoch_ms", targetEpochMs);
+		data.put("start_id", startId);
+		// 長さが分かっていればループの時刻表（開始時刻が基準）も渡し、以降のループは各端末が通信なしで始める
+		long durationMs = mediaDurationMs;
+		long gapMs = loopGapMs;
+		if (durationMs > 0) {
+			data.put("loop_duration_ms", durationMs);
+			data.put("loop_gap_ms", gapMs);
+			loopClock = new LoopClock(targetEpochMs, durationMs, gapMs);
+		} else {
+			loopClock = null;
+		}
+		final ByteBuffer[] frames = new ByteBuffer[MessageProtocol.FRAME_KINDS];
+		final List<MemberConnection> announceTargets = new ArrayList<>();
+		StartAnnouncer announcer = startAnnouncer;
+		List<MemberConnection> targets = members.snapshot();
+		for (MemberConnection member : targets) {
+			int kind = member.getFrameKind();
+			if (frames[kind] == null) {
+				frames[kind] = member.encode(MessageType.PLAY_COMMAND, data);
+			}
+			// マルチキャストで受け取れるメンバーには送らず、確認が返らなければ後でTCPで送る
+			if (announcer != null && member.supports(MessageProtocol.KEY_START_ANNOUNCE)
+					&& member.getAnnounceMisses() < MAX_ANNOUNCE_MISSES) {
+				announceTargets.add(member);
+				continue;
+			}
+			member.sendEncoded(frames[kind]);
+		}
+		int count = targets.size();
+		if (!announceTargets.isEmpty()) {
+			announceStart(announcer, announceTargets, frames, startId, targetEpochMs, durationMs > 0 ? durationMs : 0L,
+					durationMs > 0 ? gapMs : 0L);
+		}
+        // コーディネーター自身にもブロードキャストを送信
+        Intent playIntent = new Intent(ACTION_PLAY);
+		playIntent.putExtra(EXTRA_TARGET_EPOCH_MS, targetEpochMs);
+		playIntent.putExtra(EXTRA_START_ID, startId);
+		playIntent.putExtra(EXTRA_RECEIVED_AT_NANOS, android.os.SystemClock.elapsedRealtimeNanos());
+		playIntent.putExtra(EXTRA_LOOP_DURATION_MS, durationMs);
+		playIntent.putExtra(EXTRA_LOOP_GAP_MS, gapMs);
+        dispatchCommand(playIntent);
+        Log.d(TAG, "Play command broadcasted to " + count + " members (including self) - ACTION_PLAY sent: " + ACTION_PLAY);
+    }
+
+    /**
+     * 開始指示をマルチキャストで1回に全員へ送り、ANNOUNCE_ACK_TIMEOUT_MS以内に確認が返らなかったメンバーにだけTCPで送り直す
+     */
+    private void announceStart(StartAnnouncer announcer, final List<MemberConnection> targets, final ByteBuffer[] frames,
+                               final int startId, long targetEpochMs, long loopDurationMs, long loopGapMs) {
+        try {
+            announcer.announce(startId, targetEpochMs, loopDurationMs, loopGapMs);
+        } catch (IOException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            Log.w(TAG, "Start announcement failed, sending over TCP", e);
+            for (MemberConnection member : targets) {
+                member.sendEncoded(frames[member.getFrameKind()]);
+            }
+            return;
+        }
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                int resent = 0;
+                for (MemberConnection member : targets) {
+                    if (member.isOpen() && member.getAckedStartId() != startId) {
+                        member.missedAnnouncement();
+                        member.sendEncoded(frames[member.getFrameKind()]);
+                        resent++;
+                    }
+                }
+                Log.d(TAG, "Start #" + startId + " announced to " + targets.size() + " members, " + resent + " resent over TCP");
+            }
+        }, ANNOUNCE_ACK_TIMEOUT_MS);
+    }
+
+    /**
+     * Activityの再生準備が完了した（先頭で一時停止し、最初のフレームを描画済み）
+     * コーディネーターは自分の分として記録し、メンバーはREADYを返す
+     */
+    public void notifyReady(final int startId) {
+        if (isCoordinator) {
+            onParticipantReady(selfParticipant, startId);
+            return;
+        }
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (coordinatorLink != null) {
+                        coordinatorLink.sendFields(MessageType.READY, startId);
+                        Log.d(TAG, "Ready #" + startId + " sent to coordinator");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error sending ready to coordinator", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 開始の計測結果（μs）を記録する: 開始指示の受信から開始の予約まで、実際のplay()まで、目標とのずれ
+     * コーディネーターは自分の分として記録し、メンバーは対応するコーディネーターへSTART_REPORTで送る
+     */
+    public void reportStart(final int startId, final long recvToArmedUs, final long recvToPlayUs, final long skewUs) {
+        if (isCoordinator) {
+            selfStartStats.add(recvToArmedUs);
+            return;
+        }
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                CoordinatorLink link = coordinatorLink;
+                if (link == null || !MessageProtocol.supports(link.getConnectedMessage(), MessageProtocol.KEY_START_REPORT)) {
+                    return;
+                }
+                try {
+                    link.sendFields(MessageType.START_REPORT, startId, recvToArmedUs, recvToPlayUs, skewUs);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error sending start report to coordinator", e);
+                }
+            }
+        });
+    }
+
+	// 動画ループ終了を通知（loopIdは終えたループの開始番号、不明なら0）
+	public void notifyLoopFinished(final int loopId) {
 		executorService.execute(new Runnable() {
 			@Override
 			public void run() {
 				if (isCoordinator) {
 					Log.d(TAG, "Coordinator loop finished, scheduling next loop");
-					broadcastPlayCommand();
-				} else if (coordinatorWriter != null) {
+					requestStart(loopId);
+				} else if (coordinatorLink != null) {
 					try {
-						MessageProtocol.sendSimpleMessage(coordinatorWriter, MessageType.LOOP_END);
+						coordinatorLink.sendFields(MessageType.LOOP_END, loopId);
 						Log.d(TAG, "Loop end sent to coordinator");
 					} catch (IOException e) {
 						Log.e(TAG, "Error sending loop end to coordinator", e);
@@ -313,110 +1708,113 @@ public class GroupSyncService extends Service {
     // 接続メンバー数を取得
     public int getConnectedMemberCount() {
         if (isCoordinator) {
-            return connectedMembers.size() + 1; // メンバー数 + 自分自身
+            return members.size() + 1; // メンバー数 + 自分自身
         } else {
-            return isRunning ? 1 : 0; // 接続中なら自分自身がいる
+            CoordinatorLink link = coordinatorLink;
+            return isRunning && link != null && link.isOpen() ? 1 : 0; // 接続中なら自分自身がいる
         }
     }
 
-    // サービスを停止
-    private void stopService() {
-        isRunning = false;
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-            if (coordinatorSocket != null && !coordinatorSocket.isClosed()) {
-                coordinatorSocket.close();
-            }
-            for (MemberConnection member : connectedMembers) {
-                member.close();
-            }
-            connectedMembers.clear();
-        } catch (IOException e) {
-            Log.e(TAG, "Error stopping service", e);
-        }
+    /**
+     * コーディネーター: メンバーIDで接続中のメンバーを引く（いなければnull）
+     * アドレス・往復遅延・時計のずれ・最後に受け取ってからの時間・準備の状況はMemberConnectionから読める
+     */
+    public MemberConnection getMember(int memberId) {
+        return members.get(memberId);
     }
 
-    // メンバー接続を管理する内部クラス
-    private class MemberConnection implements Runnable {
-        private Socket socket;
-        private BufferedWriter writer;
-        private BufferedReader reader;
-
-        public MemberConnection(Socket socket) {
-            this.socket = socket;
+    // 送信キューが高水位を超えているメンバー数（コーディネーターのみ）
+    public int getSlowMemberCount() {
+        int count = 0;
+        for (MemberConnection member : members.snapshot()) {
+            if (member.isSlow()) {
+                count++;
+            }
         }
+        return count;
+    }
 
-        @Override
-        public void run() {
-            try {
-                writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
-                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+    // 送信キューあふれで切断したメンバーの累計
+    public int getEvictedMemberCount() {
+        return evictedMemberCount.get();
+    }
 
-                MessageProtocol.Message message = MessageProtocol.receiveMessage(reader);
-                if (message != null && message.type == MessageType.CONNECT) {
-                    MessageProtocol.sendSimpleMessage(writer, MessageType.CONNECTED);
+    // 生存確認の期限切れで切断したメンバーの累計
+    public int getTimedOutMemberCount() {
+        return timedOutMemberCount.get();
+    }
 
-                    while (!socket.isClosed() && isRunning) {
-                        message = MessageProtocol.receiveMessage(reader);
-                        if (message == null) {
-                            break;
-                        }
-						switch (message.type) {
-							case SYNC_TIME: {
-								// サーバ現在時刻を返す
-								org.json.JSONObject data = new org.json.JSONObject();
-								try {
-									data.put("server_now", System.currentTimeMillis());
-									MessageProtocol.sendMessage(writer, MessageType.SYNC_TIME, data);
-									Log.d(TAG, "Responded SYNC_TIME");
-								} catch (org.json.JSONException je) {
-									Log.e(TAG, "Error building SYNC_TIME", je);
-								}
-								break;
-							}
-							case PLAY_COMMAND: {
-								Log.d(TAG, "Received play command from member, broadcasting to all");
-								// メンバーから要求が来た場合も同じロジックで目標時刻を計算して全員へ配布
-								broadcastPlayCommand();
-								break;
-							}
-							case LOOP_END: {
-								Log.d(TAG, "Received loop end from member, scheduling next loop");
-								broadcastPlayCommand();
-								break;
-							}
-							default:
-								break;
-						}
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error handling member connection", e);
-            } finally {
-                close();
+    /**
+     * メンバーごとの生存状況（コーディネーターは各メンバー、メンバーはコーディネーター）
+     * 最後に受け取ってからの時間と、受け取ったHEARTBEATの数・往復遅延
+     */
+    public List<String> getLivenessLines() {
+        List<String> lines = new ArrayList<>();
+        if (isCoordinator) {
+            for (MemberConnection member : members.snapshot()) {
+                long rttUs = member.getRttUs();
+                lines.add("#" + member.getMemberId() + " " + member.getRemoteAddress() + ": " + member.getMillisSinceLastSeen() + "ms前 / HB "
+                        + member.getHeartbeatsReceived() + (rttUs >= 0 ? " / 往復 " + rttUs / 1_000L + "ms" : ""));
             }
-        }
-
-        public void sendSimpleMessage(MessageType type) throws IOException {
-            if (writer != null) {
-                MessageProtocol.sendSimpleMessage(writer, type);
+        } else {
+            CoordinatorLink link = coordinatorLink;
+            if (link != null && link.isOpen()) {
+                lines.add("コーディネーター: " + link.getMillisSinceLastReceive() + "ms前");
             }
         }
+        return lines;
+    }
 
-        public void close() {
-            try {
-                if (reader != null) reader.close();
-                if (writer != null) writer.close();
-                if (socket != null && !socket.isClosed()) socket.close();
-                connectedMembers.remove(this);
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing member connection", e);
+    // サービスを停止
+    private void stopService() {
+        isRunning = false;
+        mainHandler.removeCallbacks(resyncRunnable);
+        mainHandler.removeCallbacks(heartbeatRunnable);
+        mainHandler.removeCallbacks(reconnectRunnable);
+        mainHandler.removeCallbacksAndMessages(startRoundToken);
+        headWaitRunning.set(false);
+        loopClock = null;
+        StartBarrier<Object> barrier = startBarrier;
+        if (barrier != null) {
+            barrier.close();
+        }
+        if (coordinatorServer != null) {
+            coordinatorServer.stop();
+        }
+        if (udpTimeServer != null) {
+            udpTimeServer.stop();
+        }
+        if (mediaServer != null) {
+            MediaSource media = mediaServer.getMedia();
+            mediaServer.stop();
+            if (media != null) {
+                closeQuietly(media);
             }
         }
+        sharedMedia = null;
+        MediaReceiver receiver = mediaReceiver;
+        if (receiver != null) {
+            receiver.cancel();
+        }
+        transientMediaFile = null;
+        mediaStore.discardTransient();
+        closeUdpTimeClient();
+        StartAnnouncer announcer = startAnnouncer;
+        startAnnouncer = null;
+        if (announcer != null) {
+            announcer.close();
+        }
+        stopAnnounceListener();
+        if (multicastLock != null) {
+            multicastLock.release();
+            multicastLock = null;
+        }
+        if (coordinatorLink != null) {
+            coordinatorLink.close();
+        }
+        members.clear();
     }
-    
+
     // トースト表示設定に基づいてトーストを表示
     private void showToastIfEnabled(String message) {
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
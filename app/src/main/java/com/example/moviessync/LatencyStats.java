@@ -0,0 +1,72 @@
+package com.example.moviessync;
+
+import java.util.Arrays;
+
+/**
+ * 直近の遅延サンプル（μs）を保持し、パーセンタイルを求める
+ * 古いサンプルから上書きするので、ネットワークや端末の状態の変化に追従する
+ */
+public final class LatencyStats {
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+    private long last = -1L;
+
+    public LatencyStats(int capacity) {
+        samples = new long[capacity];
+    }
+
+    public synchronized void add(long valueUs) {
+        samples[next] = valueUs;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        last = valueUs;
+    }
+
+    // otherのサンプルで置き換える（再接続したメンバーの計測を引き継ぐ）
+    public void copyFrom(LatencyStats other) {
+        long[] copied;
+        int copiedCount;
+        int copiedNext;
+        long copiedLast;
+        synchronized (other) {
+            copied = other.samples.clone();
+            copiedCount = other.count;
+            copiedNext = other.next;
+            copiedLast = other.last;
+        }
+        synchronized (this) {
+            Arrays.fill(samples, 0L);
+            count = 0;
+            next = 0;
+            // 古い順に入れ直す（容量が違っても直近のサンプルが残る）
+            int start = (copiedNext - copiedCount + copied.length) % copied.length;
+            for (int i = 0; i < copiedCount; i++) {
+                add(copied[(start + i) % copied.length]);
+            }
+            last = copiedLast;
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    // 直近の値（無ければ-1）
+    public synchronized long getLast() {
+        return last;
+    }
+
+    /**
+     * パーセンタイル（0〜100、最近傍順位法）。サンプルが無ければ-1
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return -1L;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(0, Math.min(count - 1, rank - 1))];
+    }
+}
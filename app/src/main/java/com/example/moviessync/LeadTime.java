@@ -0,0 +1,87 @@
+package com.example.moviessync;
+
+/**
+ * 開始時刻までの余裕（リードタイム）とその根拠
+ * 端末ごとに「片道の遅延（RTTの高パーセンタイルの半分）+ 開始指示の受信から開始の準備が整うまでの時間の高パーセンタイル」を求め、
+ * 最も遅い端末の値に安全係数を掛けて決める。計測値の無い端末には既定値を見込む
+ */
+public final class LeadTime {
+    static final double PERCENTILE = 95.0;
+    static final double SAFETY_FACTOR = 1.5;
+    // コーディネーター自身の送信処理の分
+    static final long BASE_US = 50_000L;
+    static final long MIN_LEAD_US = 100_000L;
+    static final long MAX_LEAD_US = 3_000_000L;
+    // 未計測の端末に見込む値
+    static final long DEFAULT_RTT_US = 50_000L;
+    static final long DEFAULT_START_US = 100_000L;
+
+    // 採用したリードタイム
+    public final long leadMs;
+    // 最も時間のかかる端末とその内訳（μs）
+    public final String slowestName;
+    public final long slowestRttUs;
+    public final long slowestStartUs;
+    // 計算に使った端末数と、そのうち計測値が無く既定値を使った数
+    public final int deviceCount;
+    public final int defaultedCount;
+
+    private LeadTime(long leadMs, String slowestName, long slowestRttUs, long slowestStartUs, int deviceCount, int defaultedCount) {
+        this.leadMs = leadMs;
+        this.slowestName = slowestName;
+        this.slowestRttUs = slowestRttUs;
+        this.slowestStartUs = slowestStartUs;
+        this.deviceCount = deviceCount;
+        this.defaultedCount = defaultedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "lead=" + leadMs + "ms slowest=" + slowestName
+                + " rtt" + (int) PERCENTILE + "=" + slowestRttUs / 1_000L + "ms"
+                + " start" + (int) PERCENTILE + "=" + slowestStartUs / 1_000L + "ms"
+                + " devices=" + deviceCount + " defaulted=" + defaultedCount;
+    }
+
+    /**
+     * 端末ごとの統計を加えてリードタイムを求める
+     */
+    public static final class Calculator {
+        private long requiredUs = 0L;
+        private String slowestName = "-";
+        private long slowestRttUs = 0L;
+        private long slowestStartUs = 0L;
+        private int deviceCount = 0;
+        private int defaultedCount = 0;
+
+        // rttがnullなら（コーディネーター自身など）ネットワークの遅延は無いとみなす
+        public Calculator add(String name, LatencyStats rtt, LatencyStats start) {
+            long rttUs = rtt == null ? 0L : rtt.percentile(PERCENTILE);
+            long startUs = start.percentile(PERCENTILE);
+            if (rttUs < 0 || startUs < 0) {
+                defaultedCount++;
+            }
+            if (rttUs < 0) {
+                rttUs = DEFAULT_RTT_US;
+            }
+            if (startUs < 0) {
+                startUs = DEFAULT_START_US;
+            }
+            long required = rttUs / 2 + startUs;
+            if (required > requiredUs || deviceCount == 0) {
+                requiredUs = required;
+                slowestName = name;
+                slowestRttUs = rttUs;
+                slowestStartUs = startUs;
+            }
+            deviceCount++;
+            return this;
+        }
+
+        public LeadTime build() {
+            long leadUs = BASE_US + Math.round(requiredUs * SAFETY_FACTOR);
+            leadUs = Math.max(MIN_LEAD_US, Math.min(MAX_LEAD_US, leadUs));
+            return new LeadTime((leadUs + 999L) / 1_000L, slowestName, slowestRttUs, slowestStartUs, deviceCount, defaultedCount);
+        }
+    }
+}
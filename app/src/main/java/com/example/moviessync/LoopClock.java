@@ -0,0 +1,77 @@
+package com.example.moviessync;
+
+/**
+ * 共有の基準時刻から決まるループ再生の時刻表
+ * 基準時刻（サーバ時刻ms）に1回目が始まり、以降は「動画の長さ + ループ間の間隔」ごとに次のループが始まる
+ * 全員が同じ基準時刻と長さを持っていれば、通信なしで各ループの開始時刻が一致する
+ */
+public final class LoopClock {
+    private final long epochMs;
+    private final long durationMs;
+    private final long gapMs;
+
+    public LoopClock(long epochMs, long durationMs, long gapMs) {
+        if (durationMs <= 0) {
+            throw new IllegalArgumentException("durationMs must be positive: " + durationMs);
+        }
+        this.epochMs = epochMs;
+        this.durationMs = durationMs;
+        this.gapMs = Math.max(0L, gapMs);
+    }
+
+    public long getEpochMs() {
+        return epochMs;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public long getGapMs() {
+        return gapMs;
+    }
+
+    // 間隔なしでつなぐ（プレイヤー側のリピートに任せられる）
+    public boolean isGapless() {
+        return gapMs == 0L;
+    }
+
+    public long getPeriodMs() {
+        return durationMs + gapMs;
+    }
+
+    // serverMsが何回目のループか（0始まり、1回目より前なら-1）
+    public long loopIndexAt(long serverMs) {
+        if (serverMs < epochMs) {
+            return -1L;
+        }
+        return (serverMs - epochMs) / getPeriodMs();
+    }
+
+    /**
+     * serverMsに本来あるべき再生位置（ms）。1回目より前とループ間の間隔中は-1
+     */
+    public long positionAt(long serverMs) {
+        if (serverMs < epochMs) {
+            return -1L;
+        }
+        long position = (serverMs - epochMs) % getPeriodMs();
+        return position < durationMs ? position : -1L;
+    }
+
+    // 同じ時刻にループが始まる時刻表か（基準時刻が何ループ分ずれていても同じとみなす）
+    public boolean isSameScheduleAs(LoopClock other) {
+        return other != null && durationMs == other.durationMs && gapMs == other.gapMs
+                && Math.floorMod(epochMs - other.epochMs, getPeriodMs()) == 0L;
+    }
+
+    // serverMs以降で最初のループ開始時刻（serverMsちょうどに始まるならserverMs）
+    public long nextStartAt(long serverMs) {
+        if (serverMs <= epochMs) {
+            return epochMs;
+        }
+        long period = getPeriodMs();
+        long loops = (serverMs - epochMs + period - 1) / period;
+        return epochMs + loops * period;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.moviessync;
+
+/**
+ * 次のループ（開始）の要求をまとめる（コーディネーター用）
+ * 各メンバーのLOOP_ENDや再生要求は終えたループの番号付きで届く。既に次のループを始めた後の古い番号は捨て、
+ * 同じループへの要求は最初の1件から一定時間待ってまとめ、ループごとに開始を1回だけ行う
+ * ループ番号は開始ごとに増える（二段階開始のstart_idと共通）
+ */
+final class LoopScheduler {
+    private final long debounceMs;
+    // 最後に始めたループの番号
+    private int currentLoopId = 0;
+    // まとめて開始するのを待っている要求があるか
+    private boolean pending = false;
+    // 開始処理中（準備待ち〜開始時刻）はこの時刻まで番号なしの要求を今のループのものとみなす
+    private long busyUntilMs = 0L;
+    private int requestCount = 0;
+    private int coalescedCount = 0;
+    private int staleCount = 0;
+
+    LoopScheduler(long debounceMs) {
+        this.debounceMs = debounceMs;
+    }
+
+    long getDebounceMs() {
+        return debounceMs;
+    }
+
+    /**
+     * 開始の要求を記録する（loopIdは終えたループの番号、旧バージョンや手動の要求は0）
+     * 新しく開始を予約すべきときだけtrue。呼び出し側はdebounceMs後にtakePending()してから開始する
+     */
+    synchronized boolean request(int loopId, long nowMs) {
+        requestCount++;
+        if (loopId != 0 && loopId < currentLoopId) {
+            // 既に次のループを始めている
+            staleCount++;
+            return false;
+        }
+        if (loopId == 0 && nowMs < busyUntilMs) {
+            coalescedCount++;
+            return false;
+        }
+        if (pending) {
+            coalescedCount++;
+            return false;
+        }
+        pending = true;
+        return true;
+    }
+
+    // 予約済みの開始を取り出す（その間に開始済みならfalse）
+    synchronized boolean takePending() {
+        boolean had = pending;
+        pending = false;
+        return had;
+    }
+
+    /**
+     * 新しいループを始める。番号を進めて返し、待っている要求はこの開始に含める
+     */
+    synchronized int issue(long nowMs, long busyMs) {
+        pending = false;
+        currentLoopId++;
+        busyUntilMs = nowMs + busyMs;
+        return currentLoopId;
+    }
+
+    // 開始時刻が決まったら、その時刻まで番号なしの要求をまとめる
+    synchronized void setBusyUntil(long busyUntilMs) {
+        this.busyUntilMs = busyUntilMs;
+    }
+
+    synchronized int getCurrentLoopId() {
+        return currentLoopId;
+    }
+
+    synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    synchronized int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    synchronized int getStaleCount() {
+        return staleCount;
+    }
+}
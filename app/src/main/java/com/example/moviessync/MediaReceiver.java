@@ -0,0 +1,172 @@
+package com.example.moviessync;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * メンバー用の動画受信（MediaServerの配信を受け取ってPartialMediaへ書く）
+ * チャンクごとにチェックサムを確かめてから書き込み、書き込んだチャンクはすぐに中継できるよう登録する
+ * 切断やチェックサム不一致のときは、受け取り済みの位置から要求し直す
+ * 配信元は順に試す（中継元のメンバー、最後にコーディネーター）。最後の配信元以外は数回で見切りをつける
+ */
+public class MediaReceiver {
+    private static final String TAG = "MediaReceiver";
+    // 要求し直す回数の上限（最後の配信元と、それ以外）と、その間隔（回数に応じて伸ばす）
+    private static final int MAX_ATTEMPTS = 6;
+    private static final int PEER_ATTEMPTS = 3;
+    private static final long RETRY_BASE_MS = 500L;
+    private static final int CONNECT_TIMEOUT_MS = 3_000;
+
+    public interface Listener {
+        // 受信済みのバイト数（チャンクを書き込むたびに呼ばれる）
+        void onProgress(long receivedBytes, long totalBytes);
+    }
+
+    private final List<InetSocketAddress> sources;
+    private final PartialMedia target;
+    private final Listener listener;
+    private volatile boolean cancelled = false;
+    private volatile SocketChannel activeChannel;
+    // 実際に受信した配信元
+    private volatile InetSocketAddress lastSource;
+
+    public MediaReceiver(List<InetSocketAddress> sources, PartialMedia target, Listener listener) {
+        this.sources = sources;
+        this.target = target;
+        this.listener = listener;
+    }
+
+    /**
+     * 最後まで受信する（呼び出し元のスレッドをブロック）。完了すればtrue
+     */
+    public boolean receive() {
+        for (int s = 0; s < sources.size() && !cancelled; s++) {
+            InetSocketAddress source = sources.get(s);
+            int attempts = s == sources.size() - 1 ? MAX_ATTEMPTS : PEER_ATTEMPTS;
+            for (int attempt = 0; attempt < attempts && !cancelled; attempt++) {
+                if (target.isComplete()) {
+                    return true;
+                }
+                if (attempt > 0) {
+                    try {
+                        Thread.sleep(RETRY_BASE_MS * attempt);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                try {
+                    lastSource = source;
+                    if (receiveFrom(source)) {
+                        return true;
+                    }
+                } catch (IOException e) {
+                    if (cancelled) {
+                        break;
+                    }
+                    Log.w(TAG, "Media transfer from " + source + " interrupted at " + target.getAvailableBytes()
+                            + ", retrying: " + e.getMessage());
+                }
+            }
+        }
+        return target.isComplete();
+    }
+
+    public void cancel() {
+        cancelled = true;
+        SocketChannel channel = activeChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing media connection", e);
+            }
+        }
+    }
+
+    public long getVerifiedOffset() {
+        return target.getAvailableBytes();
+    }
+
+    public InetSocketAddress getLastSource() {
+        return lastSource;
+    }
+
+    // 受け取り済みの位置から最後まで受信する。配信元がこの動画を持っていなければIOException
+    private boolean receiveFrom(InetSocketAddress source) throws IOException {
+        try (SocketChannel channel = SocketChannel.open()) {
+            activeChannel = channel;
+            if (cancelled) {
+                return false;
+            }
+            NetworkUtils.markBulk(channel.socket());
+            channel.socket().connect(source, CONNECT_TIMEOUT_MS);
+            long offset = target.getAvailableBytes();
+            ByteBuffer header = ByteBuffer.allocate(MediaServer.REQUEST_SIZE);
+            header.put(MediaServer.MAGIC).put(MediaServer.VERSION).putLong(target.getMediaId()).putLong(offset);
+            header.flip();
+            MediaServer.writeFully(channel, header);
+
+            header.clear();
+            header.limit(MediaServer.RESPONSE_SIZE);
+            MediaServer.readFully(channel, header);
+            header.flip();
+            if (header.get() != MediaServer.MAGIC) {
+                throw new IOException("Bad media response");
+            }
+            byte status = header.get();
+            long size = header.getLong();
+            int chunkSize = header.getInt();
+            if (status != MediaServer.STATUS_OK) {
+                throw new IOException("Media " + target.getMediaId() + " rejected by " + source + ": status " + status);
+            }
+            if (size != target.getSize() || chunkSize != target.getChunkSize()) {
+                throw new IOException("Media layout mismatch: " + size + "/" + chunkSize);
+            }
+            FileChannel out = target.getChannel();
+            ByteBuffer data = ByteBuffer.allocateDirect(chunkSize);
+            CRC32 crc = new CRC32();
+            while (!target.isComplete()) {
+                header.clear();
+                header.limit(MediaServer.CHUNK_HEADER_SIZE);
+                MediaServer.readFully(channel, header);
+                header.flip();
+                long position = header.getLong();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                int chunk = target.getAvailableChunks();
+                if (position != (long) chunk * chunkSize || length != target.getChunkLength(chunk)) {
+                    throw new IOException("Unexpected chunk " + position + "+" + length + " at " + target.getAvailableBytes());
+                }
+                data.clear();
+                data.limit(length);
+                MediaServer.readFully(channel, data);
+                data.flip();
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) {
+                    // 壊れたチャンクは書かずに、この位置から要求し直す
+                    throw new IOException("Checksum mismatch at " + position);
+                }
+                data.rewind();
+                while (data.hasRemaining()) {
+                    out.write(data, position + data.position());
+                }
+                target.markReceived(chunk, checksum);
+                if (listener != null) {
+                    listener.onProgress(target.getAvailableBytes(), size);
+                }
+            }
+            return true;
+        } finally {
+            activeChannel = null;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.moviessync;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 動画配信サーバ（制御用の接続とは別のTCPポート）
+ * 大きなデータが制御メッセージ（開始指示など）の後ろに並ばないよう、動画は別の接続で送る
+ * 動画の接続は優先度を下げ（DSCP CS1）、送信バッファを制限して、帯域を使い切っていても制御用の接続が待たされないようにする
+ * 接続ごとにスレッドを1本使い、チャンクはファイルからソケットへ直接送る（transferTo）
+ * コーディネーターは元の動画を、メンバーは受信中の動画を配信する（受信中なら各チャンクが届くのを待って送る）
+ *
+ * ストリーム構成（ビッグエンディアン）:
+ *   要求 u8 magic, u8 version, i64 media_id, i64 offset（チャンク境界、再接続時は受信済みの位置から）
+ *   応答 u8 magic, u8 status, i64 size, i32 chunk_size
+ *        以降 VIDEO_DATA: i64 offset, i32 length, i32 crc32, u8 × length を最後のチャンクまで
+ */
+public class MediaServer implements Runnable {
+    private static final String TAG = "MediaServer";
+    static final byte MAGIC = 'M';
+    static final byte VERSION = 1;
+    static final int REQUEST_SIZE = 18;
+    static final int RESPONSE_SIZE = 14;
+    static final int CHUNK_HEADER_SIZE = 16;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_UNKNOWN_MEDIA = 1;
+    static final byte STATUS_BAD_OFFSET = 2;
+    // 受信中の動画で次のチャンクを待つ上限（中継元が止まったら中継先は別の配信元へ切り替える）
+    private static final long CHUNK_WAIT_MS = 10_000L;
+
+    private final int port;
+    private final Executor executor;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+    private volatile MediaSource media;
+    // 送信したチャンクの合計（ヘッダを除く）
+    private final AtomicLong bytesSent = new AtomicLong(0L);
+
+    public MediaServer(int port, Executor executor) {
+        this.port = port;
+        this.executor = executor;
+    }
+
+    /**
+     * 待ち受けを開始する（runの前に呼べばポート番号を先に確定できる）
+     */
+    public synchronized void bind() throws IOException {
+        if (serverChannel != null) {
+            return;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.bind(new InetSocketAddress(port));
+        serverChannel = channel;
+        running = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            bind();
+            Log.d(TAG, "Media service on port " + getLocalPort());
+            while (running) {
+                final SocketChannel client = serverChannel.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.e(TAG, "Error in media service", e);
+            }
+        } finally {
+            running = false;
+            close();
+        }
+    }
+
+    // 配信する動画を切り替える（以降の要求から。配信中の接続は前の動画のまま最後まで送る）
+    public void publish(MediaSource media) {
+        this.media = media;
+    }
+
+    public MediaSource getMedia() {
+        return media;
+    }
+
+    public int getLocalPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel != null ? channel.socket().getLocalPort() : port;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public void stop() {
+        running = false;
+        close();
+    }
+
+    private void close() {
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing media service", e);
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try {
+            client.socket().setTcpNoDelay(true);
+            NetworkUtils.markBulk(client.socket());
+            ByteBuffer header = ByteBuffer.allocate(REQUEST_SIZE);
+            readFully(client, header);
+            header.flip();
+            if (header.get() != MAGIC || header.get() != VERSION) {
+                Log.w(TAG, "Bad media request from " + client.getRemoteAddress());
+                return;
+            }
+            long mediaId = header.getLong();
+            long offset = header.getLong();
+            MediaSource current = media;
+            byte status = STATUS_OK;
+            if (current == null || current.getMediaId() != mediaId) {
+                status = STATUS_UNKNOWN_MEDIA;
+            } else if (offset < 0 || offset > current.getSize() || offset % current.getChunkSize() != 0) {
+                status = STATUS_BAD_OFFSET;
+            }
+            header.clear();
+            header.put(MAGIC).put(status)
+                    .putLong(current != null ? current.getSize() : 0L)
+                    .putInt(current != null ? current.getChunkSize() : 0);
+            header.flip();
+            writeFully(client, header);
+            if (status != STATUS_OK) {
+                return;
+            }
+            Log.d(TAG, "Sending media " + mediaId + " to " + client.getRemoteAddress() + " from " + offset);
+            FileChannel file = current.getChannel();
+            for (int chunk = (int) (offset / current.getChunkSize()); chunk < current.getChunkCount(); chunk++) {
+                if (!current.awaitChunk(chunk, CHUNK_WAIT_MS)) {
+                    throw new IOException("Chunk " + chunk + " not available");
+                }
+                long position = (long) chunk * current.getChunkSize();
+                int length = current.getChunkLength(chunk);
+                header.clear();
+                header.putLong(position).putInt(length).putInt(current.getChecksum(chunk));
+                header.flip();
+                writeFully(client, header);
+                // ファイルからソケットへ直接（Java側のバッファを通さない）
+                long sent = 0L;
+                while (sent < length) {
+                    long n = file.transferTo(position + sent, length - sent, client);
+                    if (n <= 0) {
+                        throw new EOFException("Media truncated at " + (position + sent));
+                    }
+                    sent += n;
+                }
+                bytesSent.addAndGet(length);
+            }
+        } catch (IOException e) {
+            // 切断されたメンバーは受信済みの位置から要求し直してくる
+            Log.w(TAG, "Media transfer interrupted: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing media connection", e);
+            }
+        }
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0) {
+                throw new EOFException("Media connection closed");
+            }
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.moviessync;
+
+import java.io.Closeable;
+import java.nio.channels.FileChannel;
+
+/**
+ * MediaServerが配信できる動画（チャンク単位）
+ * コーディネーターの元の動画（SharedMedia）と、メンバーが受信しながら他のメンバーへ中継する動画（PartialMedia）がある
+ */
+public interface MediaSource extends Closeable {
+    long getMediaId();
+
+    long getSize();
+
+    int getChunkSize();
+
+    int getChunkCount();
+
+    int getChunkLength(int chunk);
+
+    int getChecksum(int chunk);
+
+    FileChannel getChannel();
+
+    /**
+     * chunkを送れるようになるまで待つ（受信中の動画なら届くまで）。timeoutMsまでに届かなければfalse
+     */
+    boolean awaitChunk(int chunk, long timeoutMs) throws InterruptedException;
+}
@@ -0,0 +1,185 @@
+package com.example.moviessync;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * メンバー用の動画の保存場所（内容のハッシュをファイル名にする）
+ * 受信を終えた動画は「ハッシュ」、受信中の動画は「ハッシュ.part」として保存する
+ * 容量の上限を超えそうになったら、最後に使ってから最も時間の経った動画から消す（最終使用時刻はファイルの更新時刻で持つ）
+ * 古い動画を消しても上限に収まらない動画は「ハッシュ.tmp」として上限の外で受信し、使い終わったら消す（キャッシュには残さない）
+ */
+public class MediaStore {
+    private static final String TAG = "MediaStore";
+    private static final String PART_SUFFIX = ".part";
+    private static final String TRANSIENT_SUFFIX = ".tmp";
+
+    private final File dir;
+    private volatile long budgetBytes;
+    private long lastTouchMs = 0L;
+
+    public MediaStore(File dir, long budgetBytes) {
+        this.dir = dir;
+        this.budgetBytes = budgetBytes;
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * 受信を終えた動画（無ければnull）。使ったことを記録する
+     */
+    public synchronized File get(String hash) {
+        File file = new File(dir, hash);
+        if (!file.isFile()) {
+            return null;
+        }
+        touch(file);
+        return file;
+    }
+
+    // 受信中の動画の書き込み先（途中まで受信していれば続きから書く）
+    public synchronized File partFile(String hash) {
+        ensureDir();
+        File file = new File(dir, hash + PART_SUFFIX);
+        if (file.isFile()) {
+            touch(file);
+        }
+        return file;
+    }
+
+    /**
+     * 上限に収まらない動画の書き込み先（reserveがfalseのとき）。以前の分は消して最初から書く
+     * 容量の計算には含めず、受信を終えても登録しない。使い終わったらdiscardで消す
+     */
+    public synchronized File transientFile(String hash) {
+        ensureDir();
+        File file = new File(dir, hash + TRANSIENT_SUFFIX);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Cannot reset transient media " + file.getName());
+        }
+        return file;
+    }
+
+    // transientFileの動画を消す（開いたままの再生は、閉じるまでそのまま読める）
+    public synchronized void discard(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Cannot delete transient media " + file.getName());
+        }
+    }
+
+    /**
+     * 残っているtransientFileの動画をすべて消す（前回の終了時に消せなかった分）
+     */
+    public synchronized void discardTransient() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TRANSIENT_SUFFIX)) {
+                discard(file);
+            }
+        }
+    }
+
+    /**
+     * 受信を終えた動画を登録する。登録した動画のファイルを返す（失敗したらnull）
+     */
+    public synchronized File commit(String hash) {
+        File part = new File(dir, hash + PART_SUFFIX);
+        File file = new File(dir, hash);
+        if (!part.renameTo(file)) {
+            Log.e(TAG, "Cannot commit media " + hash);
+            return null;
+        }
+        touch(file);
+        return file;
+    }
+
+    /**
+     * これからsizeバイトの動画（hash）を受信するために、古い動画を消して場所を空ける
+     * hashの動画自身（途中まで受信した分を含む）は消さない。上限に収まればtrue
+     */
+    public synchronized boolean reserve(String hash, long size) {
+        ensureDir();
+        File part = new File(dir, hash + PART_SUFFIX);
+        long needed = Math.max(0L, size - (part.isFile() ? part.length() : 0L));
+        List<File> entries = entries();
+        long used = 0L;
+        for (File entry : entries) {
+            used += entry.length();
+        }
+        for (File entry : entries) {
+            if (used + needed <= budgetBytes && dir.getUsableSpace() >= needed) {
+                break;
+            }
+            String entryHash = entry.getName().endsWith(PART_SUFFIX)
+                    ? entry.getName().substring(0, entry.getName().length() - PART_SUFFIX.length())
+                    : entry.getName();
+            if (entryHash.equals(hash)) {
+                continue;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                used -= length;
+                Log.d(TAG, "Evicted media " + entry.getName() + " (" + length + " bytes)");
+            }
+        }
+        return used + needed <= budgetBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        long used = 0L;
+        for (File entry : entries()) {
+            used += entry.length();
+        }
+        return used;
+    }
+
+    // 最後に使ってから時間の経った順（上限の外の動画は含めない）
+    private List<File> entries() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> entries = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (!file.getName().endsWith(TRANSIENT_SUFFIX)) {
+                entries.add(file);
+            }
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        return entries;
+    }
+
+    private void ensureDir() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create media directory: " + dir);
+        }
+    }
+
+    private void touch(File file) {
+        // 同じミリ秒に続けて使っても順序が分かるよう、直前に記録した時刻より必ず進める
+        long now = Math.max(System.currentTimeMillis(), lastTouchMs + 1);
+        lastTouchMs = now;
+        if (!file.setLastModified(now)) {
+            Log.w(TAG, "Cannot update last use of " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.moviessync;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * コーディネーター側で1メンバー分の接続状態を保持する
+ * スレッドは持たず、CoordinatorServerのI/Oスレッドから駆動される
+ */
+public class MemberConnection {
+    private static final String TAG = "MemberConnection";
+    // 送信キューがこの件数を超えたら遅いメンバーとして報告
+    static final int OUTBOUND_HIGH_WATER = 32;
+    // この件数を超えて積もうとしたら切断する
+    static final int OUTBOUND_LIMIT = 128;
+
+    private final CoordinatorServer server;
+    final SocketChannel channel;
+    final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outboundDepth = new AtomicInteger(0);
+    private volatile int outboundPeak = 0;
+    // I/Oスレッドでの切断待ち（送信キューあふれ）
+    volatile boolean evictRequested = false;
+    // 高水位を超えたことを報告済みか（I/Oスレッド専用）
+    boolean slowReported = false;
+    final FrameDecoder decoder = new FrameDecoder();
+    SelectionKey key;
+    boolean handshakeDone = false;
+    // 直近の受信時刻（elapsedRealtimeNanos、I/Oスレッドがread直後に記録し、SYNC_TIMEのサーバ受信時刻に使う）
+    long lastReadAtNanos = 0L;
+    // 生存確認用: 最後に何か受け取った時刻と最後にHEARTBEATを送った時刻（System.nanoTime）
+    private volatile long lastSeenNanos = System.nanoTime();
+    long lastHeartbeatSentNanos = System.nanoTime();
+    private volatile long heartbeatsReceived = 0L;
+    // 送信側のワイヤーフォーマット（ハンドシェイクでCONNECTEDを積んだ後に切り替わる）
+    private volatile WireFormat wireFormat = WireFormat.JSON;
+    // 送信フレームに時刻ヘッダを付けるか（ハンドシェイクで決定）
+    private volatile boolean timeHeader = false;
+    // 以下、時刻ヘッダ用（I/Oスレッド専用）
+    // メンバーから最後に受け取った送信時刻（メンバーのローカル時刻）と、その受信時刻（サーバ時刻、μs）
+    long peerTxUs = 0L;
+    long peerTxRecvUs = 0L;
+    // 送信中フレームの先頭部分（時刻ヘッダを埋めたもの）。フレーム本体は全員で共有するので書き換えない
+    final ByteBuffer stampBuffer = ByteBuffer.allocateDirect(BinaryCodec.HEADER_SIZE + BinaryCodec.TIME_HEADER_SIZE);
+    final ByteBuffer[] stampedWrite = new ByteBuffer[]{stampBuffer, null};
+    boolean stamping = false;
+    // 時刻ヘッダから求めた往復遅延と、開始指示の受信から開始の準備が整うまでの時間（μs）
+    private final LatencyStats rttStats = new LatencyStats(64);
+    private final LatencyStats startStats = new LatencyStats(16);
+    // メンバーが報告した動画の受信状況
+    private volatile long mediaId = 0L;
+    private volatile long mediaReceived = 0L;
+    private volatile long mediaSize = -1L;
+    // マルチキャストの開始指示: 受け取りを確認できた最新の開始番号と、続けて確認できなかった回数
+    private volatile int ackedStartId = 0;
+    private volatile int announceMisses = 0;
+    // 時刻ヘッダから求めたメンバーの時計とのずれ（サーバ時刻 - メンバーのローカル時刻、μs）
+    private volatile long clockOffsetUs = 0L;
+    private volatile boolean hasClockOffset = false;
+    // 準備完了（READY）を受け取った最新の開始番号
+    private volatile int readyStartId = 0;
+    private final SocketAddress remoteAddress;
+    // メンバーID（セッションごとに振られ、再接続しても変わらない。ハンドシェイク前は0）
+    private volatile int memberId = 0;
+    // 再接続用のセッション（ハンドシェイクで発行または引き継ぎ）と、以前の接続の状態を引き継いだか
+    private volatile long sessionToken = 0L;
+    private volatile boolean resumed = false;
+    // 切断した時刻（System.nanoTime、I/Oスレッド専用）。セッションを引き継げる期限に使う
+    long closedAtNanos = 0L;
+    // ハンドシェイクで受け取ったCONNECT（メンバーの対応機能を含む）
+    private volatile MessageProtocol.Message connectMessage;
+
+    MemberConnection(CoordinatorServer server, SocketChannel channel) {
+        this.server = server;
+        this.channel = channel;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    void setWireFormat(WireFormat format) {
+        this.wireFormat = format;
+        decoder.setFormat(format);
+    }
+
+    public MessageProtocol.Message getConnectMessage() {
+        return connectMessage;
+    }
+
+    void setConnectMessage(MessageProtocol.Message message) {
+        this.connectMessage = message;
+    }
+
+    // メンバーがCONNECTで機能keyに対応していると示したか
+    public boolean supports(String key) {
+        return MessageProtocol.supports(connectMessage, key);
+    }
+
+    public boolean hasTimeHeader() {
+        return timeHeader;
+    }
+
+    void setTimeHeader(boolean timeHeader) {
+        this.timeHeader = timeHeader;
+    }
+
+    // ブロードキャストでエンコード済みフレームを共有できる組み合わせの番号
+    public int getFrameKind() {
+        return MessageProtocol.frameKind(wireFormat, timeHeader);
+    }
+
+    // 時刻ヘッダから求めた直近の往復遅延（μs、未計測なら-1）
+    public long getRttUs() {
+        return rttStats.getLast();
+    }
+
+    void addRttSample(long rttUs) {
+        rttStats.add(rttUs);
+    }
+
+    void setClockOffsetUs(long offsetUs) {
+        clockOffsetUs = offsetUs;
+        hasClockOffset = true;
+    }
+
+    // メンバーの時計とのずれ（μs、往復遅延を計測できるまでは求まらない）
+    public long getClockOffsetUs() {
+        return clockOffsetUs;
+    }
+
+    public boolean hasClockOffset() {
+        return hasClockOffset;
+    }
+
+    void markReady(int startId) {
+        readyStartId = startId;
+    }
+
+    // 開始番号startIdの準備が整ったと報告済みか
+    public boolean isReadyFor(int startId) {
+        return startId != 0 && readyStartId == startId;
+    }
+
+    public LatencyStats getRttStats() {
+        return rttStats;
+    }
+
+    void setMediaProgress(long mediaId, long received, long size) {
+        this.mediaId = mediaId;
+        this.mediaReceived = received;
+        this.mediaSize = size;
+    }
+
+    void markSeen(long nowNanos) {
+        lastSeenNanos = nowNanos;
+    }
+
+    void countHeartbeat() {
+        heartbeatsReceived++;
+    }
+
+    public long getHeartbeatsReceived() {
+        return heartbeatsReceived;
+    }
+
+    // 最後に何か受け取ってからの時間（ms）
+    public long getMillisSinceLastSeen() {
+        return (System.nanoTime() - lastSeenNanos) / 1_000_000L;
+    }
+
+    public int getMemberId() {
+        return memberId;
+    }
+
+    void setMemberId(int memberId) {
+        this.memberId = memberId;
+    }
+
+    public long getSessionToken() {
+        return sessionToken;
+    }
+
+    void setSessionToken(long sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    // 以前の接続のセッションを引き継いだか（再接続したメンバー）
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * 以前の接続の状態（セッション、往復遅延と開始までの処理時間、動画の受信状況、開始指示の確認）を引き継ぐ
+     */
+    void resumeFrom(MemberConnection previous) {
+        memberId = previous.memberId;
+        sessionToken = previous.sessionToken;
+        resumed = true;
+        rttStats.copyFrom(previous.rttStats);
+        startStats.copyFrom(previous.startStats);
+        setMediaProgress(previous.mediaId, previous.mediaReceived, previous.mediaSize);
+        ackedStartId = previous.ackedStartId;
+        announceMisses = previous.announceMisses;
+        heartbeatsReceived = previous.heartbeatsReceived;
+    }
+
+    void onStartAck(int startId) {
+        ackedStartId = startId;
+        announceMisses = 0;
+    }
+
+    public int getAckedStartId() {
+        return ackedStartId;
+    }
+
+    // 確認できなかった回数を数える（TCPで送り直すときに呼ぶ）
+    void missedAnnouncement() {
+        announceMisses++;
+    }
+
+    public int getAnnounceMisses() {
+        return announceMisses;
+    }
+
+    // mediaIdの動画を最後まで受信済みか
+    public boolean hasMedia(long mediaId) {
+        return this.mediaId == mediaId && mediaSize >= 0 && mediaReceived >= mediaSize;
+    }
+
+    public long getMediaReceived(long mediaId) {
+        return this.mediaId == mediaId ? mediaReceived : 0L;
+    }
+
+    // メンバーが報告した開始までの処理時間
+    public LatencyStats getStartStats() {
+        return startStats;
+    }
+
+    // 現在の送信キューの件数
+    public int getOutboundDepth() {
+        return outboundDepth.get();
+    }
+
+    // これまでの送信キューの最大件数
+    public int getOutboundPeak() {
+        return outboundPeak;
+    }
+
+    public boolean isSlow() {
+        return outboundDepth.get() >= OUTBOUND_HIGH_WATER;
+    }
+
+    /**
+     * 送信キューへ積む。上限を超えた場合は積まずに切断を要求してfalseを返す
+     */
+    boolean offer(ByteBuffer frame) {
+        int depth = outboundDepth.incrementAndGet();
+        if (depth > OUTBOUND_LIMIT) {
+            outboundDepth.decrementAndGet();
+            evictRequested = true;
+            return false;
+        }
+        outbound.add(frame);
+        if (depth > outboundPeak) {
+            outboundPeak = depth;
+        }
+        return true;
+    }
+
+    // 送信済みのフレームをキューから外す（I/Oスレッド専用）
+    void pollSent() {
+        if (outbound.poll() != null) {
+            outboundDepth.decrementAndGet();
+        }
+    }
+
+    // メッセージを送信キューへ積む（任意のスレッドから呼び出し可）
+    public void send(MessageType type, JSONObject data) throws IOException {
+        sendEncoded(encode(type, data));
+        Log.d(TAG, "Queued message: " + type.name());
+    }
+
+    // このメンバー向けのフレームを作成（同じgetFrameKindのメンバー間で使い回せる）
+    public ByteBuffer encode(MessageType type, JSONObject data) throws IOException {
+        return MessageProtocol.encodeFrame(wireFormat, type, data, timeHeader);
+    }
+
+    // エンコード済みフレームを送信キューへ積む（ブロードキャストで同じ内容を使い回す用）
+    void sendEncoded(ByteBuffer frame) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        server.enqueue(this, frame.duplicate());
+    }
+
+    // チャンネルを閉じる。既に閉じていればfalse
+    boolean closeChannel() {
+        if (!channel.isOpen()) {
+            return false;
+        }
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing member connection", e);
+        }
+        outbound.clear();
+        outboundDepth.set(0);
+        stamping = false;
+        return true;
+    }
+}
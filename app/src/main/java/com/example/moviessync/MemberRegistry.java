@@ -0,0 +1,86 @@
+package com.example.moviessync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * コーディネーター用の接続中メンバーの一覧（メンバーIDで引ける）
+ * 追加・削除はI/Oスレッドから、参照は送信スレッドや画面の更新から同時に行われる
+ * 追加・削除はマップの操作だけで済ませ、全員への送信などで使う一覧（ID順）は変更後に最初に参照したときに1回だけ作る
+ * 一覧は次に変更があるまで同じものを返すので、送信のたびにコピーしない
+ */
+public final class MemberRegistry {
+    private static final Comparator<MemberConnection> BY_ID = new Comparator<MemberConnection>() {
+        @Override
+        public int compare(MemberConnection a, MemberConnection b) {
+            return Integer.compare(a.getMemberId(), b.getMemberId());
+        }
+    };
+
+    private final ConcurrentHashMap<Integer, MemberConnection> members = new ConcurrentHashMap<>();
+    private final Object snapshotLock = new Object();
+    // 変更があればnull（次のsnapshotで作り直す）
+    private volatile List<MemberConnection> snapshot = Collections.emptyList();
+
+    /**
+     * 追加する。同じIDのメンバー（セッションを引き継いだ以前の接続）がいれば置き換える
+     */
+    public void add(MemberConnection member) {
+        members.put(member.getMemberId(), member);
+        invalidate();
+    }
+
+    /**
+     * 削除する。同じIDで既に別の接続に置き換わっていれば何もしない
+     */
+    public boolean remove(MemberConnection member) {
+        if (!members.remove(member.getMemberId(), member)) {
+            return false;
+        }
+        invalidate();
+        return true;
+    }
+
+    // メンバーIDで引く（いなければnull）
+    public MemberConnection get(int memberId) {
+        return members.get(memberId);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public void clear() {
+        members.clear();
+        invalidate();
+    }
+
+    /**
+     * 接続中のメンバー（ID順、変更不可）
+     * 作った後の追加・削除は反映されないが、途中で一覧が変わって例外になることはない
+     */
+    public List<MemberConnection> snapshot() {
+        List<MemberConnection> current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (snapshotLock) {
+            if (snapshot == null) {
+                List<MemberConnection> built = new ArrayList<>(members.values());
+                Collections.sort(built, BY_ID);
+                snapshot = Collections.unmodifiableList(built);
+            }
+            return snapshot;
+        }
+    }
+
+    // 作り直しの途中に変更されても、変更後にもう一度作り直されるようロックの下で捨てる
+    private void invalidate() {
+        synchronized (snapshotLock) {
+            snapshot = null;
+        }
+    }
+}
@@ -10,34 +10,159 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class MessageProtocol {
     private static final String TAG = "MessageProtocol";
     private static final String ENCODING = "UTF-8";
     private static final String FIELD_TYPE = "type";
     private static final String FIELD_DATA = "data";
+    // CONNECT/CONNECTEDのdataで使うワイヤーフォーマット交渉用のキー
+    public static final String KEY_WIRE = "wire";
+    public static final String KEY_WIRE_VERSION = "wire_version";
+    public static final String WIRE_BINARY = "binary";
+    // 時刻ヘッダ（BinaryCodec参照）に対応していることを示すキー。双方が対応していれば全フレームに付ける
+    public static final String KEY_TIME_HEADER = "time_header";
+    // PREPARE_COMMAND/READYによる二段階開始に対応していることを示すキー
+    public static final String KEY_READY_BARRIER = "ready_barrier";
+    // START_REPORTを受け付けることを示すキー（コーディネーターのCONNECTED）
+    public static final String KEY_START_REPORT = "start_report";
+    // 別ポートでの動画配信（VIDEO_METADATA/MEDIA_PROGRESS）に対応していることを示すキー
+    public static final String KEY_MEDIA_TRANSFER = "media_transfer";
+    // 受信中の動画を他のメンバーへ中継できることを示すキー
+    public static final String KEY_MEDIA_RELAY = "media_relay";
+    // マルチキャストの開始指示を受け取り、START_ACKを返せることを示すキー
+    public static final String KEY_START_ANNOUNCE = "start_announce";
+    // HEARTBEATに対応していることを示すキー。コーディネーターはCONNECTEDで間隔と許容する欠落回数も伝える
+    public static final String KEY_HEARTBEAT = "heartbeat";
+    public static final String KEY_HEARTBEAT_MS = "heartbeat_ms";
+    public static final String KEY_HEARTBEAT_MISSES = "heartbeat_misses";
+    // 再生中のループへ途中から加われることを示すキー（PLAY_COMMANDの開始時刻が過去なら、今の位置から再生する）
+    public static final String KEY_LOOP_CATCH_UP = "loop_catch_up";
+    // 再接続用のセッション。コーディネーターがCONNECTEDで発行し、メンバーは再接続時にCONNECTで返す
+    // 同じ値がCONNECTEDで返れば、コーディネーターは以前の状態を引き継いでいる
+    public static final String KEY_SESSION_TOKEN = "session_token";
+    // ブロードキャストで使い回すエンコード済みフレームの種類数（frameKind参照）
+    public static final int FRAME_KINDS = 3;
 
     // メッセージ送信
     public static void sendMessage(BufferedWriter writer, MessageType type, JSONObject data) throws IOException {
+        String jsonString = encode(type, data);
+        writer.write(jsonString);
+        writer.newLine();
+        writer.flush();
+
+        Log.d(TAG, "Sent message: " + type.name());
+    }
+
+    /**
+     * メッセージを1行分のJSON文字列へエンコード（改行は含まない）
+     */
+    public static String encode(MessageType type, JSONObject data) throws IOException {
         try {
             JSONObject message = new JSONObject();
             message.put(FIELD_TYPE, type.name());
             if (data != null) {
                 message.put(FIELD_DATA, data);
             }
-
-            String jsonString = message.toString();
-            writer.write(jsonString);
-            writer.newLine();
-            writer.flush();
-            
-            Log.d(TAG, "Sent message: " + type.name());
+            return message.toString();
         } catch (JSONException e) {
             Log.e(TAG, "Error creating message", e);
             throw new IOException("Failed to create message", e);
         }
     }
 
+    /**
+     * 指定フォーマットで送信用フレームを作成
+     */
+    public static ByteBuffer encodeFrame(WireFormat format, MessageType type, JSONObject data) throws IOException {
+        return encodeFrame(format, type, data, false);
+    }
+
+    /**
+     * timeHeaderがtrueなら時刻ヘッダの領域を確保する（バイナリ形式のみ、送信直前に埋める）
+     */
+    public static ByteBuffer encodeFrame(WireFormat format, MessageType type, JSONObject data, boolean timeHeader) throws IOException {
+        if (format == WireFormat.BINARY) {
+            return BinaryCodec.encode(type, data, timeHeader);
+        }
+        byte[] bytes = (encode(type, data) + "\n").getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * 固定長フィールドのみのメッセージを指定フォーマットでdstへ書き込む
+     * バイナリの場合は割り当てなしで書き込む
+     */
+    public static void encodeFields(ByteBuffer dst, WireFormat format, MessageType type, long[] values, int count) throws IOException {
+        encodeFields(dst, format, type, values, count, false);
+    }
+
+    public static void encodeFields(ByteBuffer dst, WireFormat format, MessageType type, long[] values, int count, boolean timeHeader) throws IOException {
+        if (format == WireFormat.BINARY) {
+            BinaryCodec.encode(dst, type, values, count, timeHeader);
+            return;
+        }
+        try {
+            String[] fields = BinaryCodec.fields(type);
+            JSONObject data = new JSONObject();
+            for (int i = 0; i < count; i++) {
+                data.put(fields[i], values[i]);
+            }
+            dst.put((encode(type, data) + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            throw new IOException("Failed to create message", e);
+        }
+    }
+
+    // CONNECTで希望するワイヤーフォーマットと対応機能を伝えるdata
+    public static JSONObject wireOffer() {
+        JSONObject data = new JSONObject();
+        try {
+            data.put(KEY_WIRE, WIRE_BINARY);
+            data.put(KEY_WIRE_VERSION, BinaryCodec.VERSION);
+            data.put(KEY_TIME_HEADER, true);
+            data.put(KEY_READY_BARRIER, true);
+            data.put(KEY_START_REPORT, true);
+            data.put(KEY_MEDIA_TRANSFER, true);
+            data.put(KEY_MEDIA_RELAY, true);
+            data.put(KEY_START_ANNOUNCE, true);
+            data.put(KEY_HEARTBEAT, true);
+            data.put(KEY_LOOP_CATCH_UP, true);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building wire offer", e);
+        }
+        return data;
+    }
+
+    // 相手のCONNECT/CONNECTEDからワイヤーフォーマットを決定（旧バージョンはJSON）
+    public static WireFormat negotiatedFormat(Message message) {
+        if (WIRE_BINARY.equals(message.getString(KEY_WIRE))
+                && message.getInt(KEY_WIRE_VERSION) == BinaryCodec.VERSION) {
+            return WireFormat.BINARY;
+        }
+        return WireFormat.JSON;
+    }
+
+    // 時刻ヘッダを使うか（バイナリ形式で、相手が対応している場合のみ）
+    public static boolean negotiatedTimeHeader(Message message, WireFormat format) {
+        return format == WireFormat.BINARY && message.data != null && message.data.optBoolean(KEY_TIME_HEADER, false);
+    }
+
+    // 相手のCONNECT/CONNECTEDが機能keyに対応していると示しているか
+    public static boolean supports(Message message, String key) {
+        return message != null && message.data != null && message.data.optBoolean(key, false);
+    }
+
+    // エンコード結果が同じになる組み合わせごとの番号（0 .. FRAME_KINDS-1）
+    public static int frameKind(WireFormat format, boolean timeHeader) {
+        if (format != WireFormat.BINARY) {
+            return 0;
+        }
+        return timeHeader ? 2 : 1;
+    }
+
     /**
      * シンプルなメッセージを送信（dataなし）
      */
@@ -49,12 +174,18 @@ public class MessageProtocol {
      * メッセージを受信
      */
     public static Message receiveMessage(BufferedReader reader) throws IOException {
-        try {
-            String line = reader.readLine();
-            if (line == null) {
-                return null;
-            }
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+        return decode(line);
+    }
 
+    /**
+     * 1行分のJSON文字列をメッセージへデコード
+     */
+    public static Message decode(String line) throws IOException {
+        try {
             JSONObject messageJson = new JSONObject(line);
             String typeString = messageJson.getString(FIELD_TYPE);
             MessageType type = MessageType.valueOf(typeString);
@@ -66,7 +197,8 @@ public class MessageProtocol {
 
             Log.d(TAG, "Received message: " + type.name());
             return new Message(type, data);
-        } catch (JSONException e) {
+        } catch (JSONException | IllegalArgumentException e) {
+            // 知らない種類（valueOfの失敗）も不正なメッセージとして扱う
             Log.e(TAG, "Error parsing message", e);
             throw new IOException("Failed to parse message", e);
         }
@@ -78,10 +210,33 @@ public class MessageProtocol {
     public static class Message {
         public final MessageType type;
         public final JSONObject data;
+        // 時刻ヘッダ（無ければ0）: 送信側の送信時刻、送信側が最後に受け取ったこちらの送信時刻、それを受け取った時刻
+        // 時刻は送信側がコーディネーターならサーバ時刻、メンバーならローカル時刻（μs）
+        public final long txUs;
+        public final long originUs;
+        public final long originRecvUs;
+        // バイナリ形式で受信した固定長フィールド（BinaryCodecのスキーマ順）
+        private final long[] values;
 
         public Message(MessageType type, JSONObject data) {
+            this(type, null, data);
+        }
+
+        public Message(MessageType type, long[] values, JSONObject data) {
+            this(type, values, data, 0L, 0L, 0L);
+        }
+
+        public Message(MessageType type, long[] values, JSONObject data, long txUs, long originUs, long originRecvUs) {
             this.type = type;
+            this.values = values;
             this.data = data;
+            this.txUs = txUs;
+            this.originUs = originUs;
+            this.originRecvUs = originRecvUs;
+        }
+
+        public boolean hasTimeHeader() {
+            return txUs != 0L;
         }
 
         public String getString(String key) {
@@ -93,6 +248,12 @@ public class MessageProtocol {
         }
 
         public long getLong(String key) {
+            if (values != null) {
+                int index = BinaryCodec.fieldIndex(type, key);
+                if (index >= 0 && index < values.length) {
+                    return values[index];
+                }
+            }
             try {
                 return data != null && data.has(key) ? data.getLong(key) : 0;
             } catch (JSONException e) {
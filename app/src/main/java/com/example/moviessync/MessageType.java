@@ -5,11 +5,16 @@ public enum MessageType {
     CONNECTED,         // 接続確認応答
     VIDEO_METADATA,    // 動画情報
     VIDEO_DATA,        // 動画データチャンク
-    READY,            // 受信完了通知
+    READY,            // 準備完了通知（PREPARE_COMMANDへの応答）
     SYNC_TIME,        // 時刻同期
     PLAY_COMMAND,     // 再生開始指示
     PAUSE_COMMAND,    // 一時停止指示
     LOOP_END,         // 再生終了通知（次ループ用）
-    ERROR             // エラー
+    ERROR,            // エラー
+    PREPARE_COMMAND,  // 再生準備指示（二段階開始の1段目、対応メンバーのみ）
+    START_REPORT,     // 再生開始の計測結果（メンバー→コーディネーター）
+    MEDIA_PROGRESS,   // 動画の受信状況（メンバー→コーディネーター）
+    START_ACK,        // マルチキャストの開始指示を受け取った（メンバー→コーディネーター）
+    HEARTBEAT         // 生存確認（双方向、一定間隔で送る）
 }
 
@@ -4,12 +4,64 @@ import android.content.Context;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.text.format.Formatter;
+import android.util.Log;
 
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
 import java.util.Enumeration;
 
 public class NetworkUtils {
+    private static final String TAG = "NetworkUtils";
+    // 制御・時刻同期の通信（DSCP EF）。Wi-FiではWMMの音声キューで送られ、動画転送より先に出る
+    static final int TRAFFIC_CLASS_CONTROL = 0xB8;
+    // 動画転送（DSCP CS1）。WMMのバックグラウンドキューで送られる
+    static final int TRAFFIC_CLASS_BULK = 0x20;
+    // 動画転送の送信バッファの上限（カーネル内に溜まる量を抑え、同じ経路の制御メッセージを待たせない）
+    static final int BULK_SEND_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * 制御用の接続として優先度を設定する（設定できない環境ではそのまま使う）
+     */
+    static void markControl(Socket socket) {
+        try {
+            socket.setTrafficClass(TRAFFIC_CLASS_CONTROL);
+        } catch (SocketException e) {
+            Log.w(TAG, "Cannot set control traffic class: " + e.getMessage());
+        }
+    }
+
+    static void markControl(DatagramSocket socket) {
+        try {
+            socket.setTrafficClass(TRAFFIC_CLASS_CONTROL);
+        } catch (SocketException e) {
+            Log.w(TAG, "Cannot set control traffic class: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 動画転送用の接続として優先度を下げ、送信バッファを制限する
+     */
+    static void markBulk(Socket socket) {
+        try {
+            socket.setTrafficClass(TRAFFIC_CLASS_BULK);
+            socket.setSendBufferSize(BULK_SEND_BUFFER_SIZE);
+        } catch (SocketException e) {
+            Log.w(TAG, "Cannot set bulk traffic class: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 再接続の待ち時間（ms）。失敗のたびに倍にしてmaxMsで頭打ちにし、
+     * 同時に切れた端末が一斉に再接続しないよう、その半分〜全体の間でrandom（0〜1）に応じて揺らす
+     */
+    static long backoffDelayMs(int attempt, long baseMs, long maxMs, double random) {
+        long ceiling = Math.min(maxMs, baseMs << Math.min(Math.max(attempt, 0), 20));
+        return ceiling / 2 + (long) (ceiling / 2 * random);
+    }
+
     public static String getLocalIpAddress(Context context) {
         try {
             // Wi-Fi経由のIP取得を試行
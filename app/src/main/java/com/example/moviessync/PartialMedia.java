@@ -0,0 +1,179 @@
+package com.example.moviessync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * メンバーが受信中（または受信済み）の動画
+ * 先頭から順にチャンクを受け取り、受け取ったチャンクはすぐに他のメンバーへ中継できる（MediaServerで配信）
+ * 中継先は自分より先のチャンクを待って受け取るので、コーディネーターからの1本の流れが木構造に沿って広がる
+ * 受信中でも受け取った範囲は再生に使える（readは届いていない位置なら届くまで待つ）
+ */
+public final class PartialMedia implements MediaSource {
+    private final long mediaId;
+    private final long size;
+    private final int chunkSize;
+    private final int[] checksums;
+    private final FileChannel channel;
+    // 先頭から連続して受け取ったチャンク数
+    private int availableChunks;
+    private boolean closed = false;
+
+    private PartialMedia(long mediaId, long size, int chunkSize, FileChannel channel, int availableChunks, int[] checksums) {
+        this.mediaId = mediaId;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.channel = channel;
+        this.availableChunks = availableChunks;
+        this.checksums = checksums;
+    }
+
+    /**
+     * fileを開く。前回の受信で書き込み済みの分（最後の不完全なチャンクを除く）はそのまま使い、中継用にチェックサムを求めておく
+     */
+    public static PartialMedia open(long mediaId, File file, long size, int chunkSize) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            if (channel.size() > size) {
+                channel.truncate(size);
+            }
+            int chunks = SharedMedia.chunkCount(size, chunkSize);
+            int available = channel.size() == size ? chunks : (int) (channel.size() / chunkSize);
+            int[] checksums = new int[chunks];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < available; i++) {
+                long offset = (long) i * chunkSize;
+                buffer.clear();
+                buffer.limit((int) Math.min(chunkSize, size - offset));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of media at " + (offset + buffer.position()));
+                    }
+                }
+                buffer.flip();
+                crc.reset();
+                crc.update(buffer);
+                checksums[i] = (int) crc.getValue();
+            }
+            return new PartialMedia(mediaId, size, chunkSize, channel, available, checksums);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * チェックサムを確かめて書き込んだチャンクを登録し、待っている中継先へ知らせる（先頭から順に呼ぶこと）
+     */
+    public synchronized void markReceived(int chunk, int checksum) {
+        if (chunk != availableChunks) {
+            throw new IllegalStateException("Chunk " + chunk + " received out of order, expected " + availableChunks);
+        }
+        checksums[chunk] = checksum;
+        availableChunks++;
+        notifyAll();
+    }
+
+    public synchronized int getAvailableChunks() {
+        return availableChunks;
+    }
+
+    // 先頭から連続して受け取ったバイト数
+    public synchronized long getAvailableBytes() {
+        return Math.min((long) availableChunks * chunkSize, size);
+    }
+
+    public synchronized boolean isComplete() {
+        return availableChunks == checksums.length;
+    }
+
+    @Override
+    public synchronized boolean awaitChunk(int chunk, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!closed && chunk >= availableChunks) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return !closed;
+    }
+
+    /**
+     * positionから受信済みの範囲を読めるだけdstへ読む（まだ届いていなければ届くまで待つ）
+     * 読んだバイト数を返す。最後まで読み終えていれば-1、timeoutMsの間に届かなければ0
+     */
+    public int read(long position, ByteBuffer dst, long timeoutMs) throws IOException, InterruptedException {
+        if (position >= size) {
+            return -1;
+        }
+        if (!awaitChunk((int) (position / chunkSize), timeoutMs)) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Media " + mediaId + " closed");
+                }
+            }
+            return 0;
+        }
+        int length = (int) Math.min(dst.remaining(), getAvailableBytes() - position);
+        ByteBuffer target = dst.duplicate();
+        target.limit(target.position() + length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position() - dst.position()) < 0) {
+                throw new IOException("Unexpected end of media at " + (position + target.position() - dst.position()));
+            }
+        }
+        dst.position(dst.position() + length);
+        return length;
+    }
+
+    @Override
+    public long getMediaId() {
+        return mediaId;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public int getChunkCount() {
+        return checksums.length;
+    }
+
+    @Override
+    public int getChunkLength(int chunk) {
+        return (int) Math.min(chunkSize, size - (long) chunk * chunkSize);
+    }
+
+    @Override
+    public synchronized int getChecksum(int chunk) {
+        return checksums[chunk];
+    }
+
+    @Override
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.moviessync;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 受信中の動画（PartialMedia）を読むExoPlayerのデータソース
+ * 受信済みの範囲はそのまま読み、届いていない位置はチャンクが届くまで読み込みスレッドで待つ
+ * 受信は先頭から順なので、再生位置の近くのチャンクが先に届き、残りは再生中に後ろで受信が続く
+ */
+public class PartialMediaDataSource extends BaseDataSource {
+    // 次のチャンクを待つ上限（超えたら読み込みエラーにする）
+    private static final long STALL_TIMEOUT_MS = 30_000L;
+
+    public static class Factory implements DataSource.Factory {
+        private final PartialMedia media;
+
+        public Factory(PartialMedia media) {
+            this.media = media;
+        }
+
+        @Override
+        public DataSource createDataSource() {
+            return new PartialMediaDataSource(media);
+        }
+    }
+
+    private final PartialMedia media;
+    private Uri uri;
+    private long position;
+    private long bytesRemaining;
+    private boolean opened = false;
+
+    public PartialMediaDataSource(PartialMedia media) {
+        super(/* isNetwork= */ true);
+        this.media = media;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        uri = dataSpec.uri;
+        transferInitializing(dataSpec);
+        if (dataSpec.position > media.getSize()) {
+            throw new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+        }
+        position = dataSpec.position;
+        bytesRemaining = dataSpec.length != C.LENGTH_UNSET
+                ? Math.min(dataSpec.length, media.getSize() - position)
+                : media.getSize() - position;
+        opened = true;
+        transferStarted(dataSpec);
+        return bytesRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (bytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+        int read;
+        try {
+            read = media.read(position, ByteBuffer.wrap(buffer, offset, (int) Math.min(length, bytesRemaining)), STALL_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            // 読み込みの取り消し（シークや解放）
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (read < 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+        if (read == 0) {
+            throw new IOException("Media " + media.getMediaId() + " stalled at " + position);
+        }
+        position += read;
+        bytesRemaining -= read;
+        bytesTransferred(read);
+        return read;
+    }
+
+    @Override
+    public Uri getUri() {
+        return uri;
+    }
+
+    @Override
+    public void close() {
+        uri = null;
+        if (opened) {
+            opened = false;
+            transferEnded();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.moviessync;
+
+import java.util.Arrays;
+
+/**
+ * 再生位置のずれを閉ループで補正する
+ * 共有の開始時刻から求めた本来の再生位置と実際の再生位置を定期的に比べ、
+ * 小さなずれは再生速度をわずかに変えて吸収し、大きなずれだけシークで合わせる
+ * 時刻はすべてms。ExoPlayerには触らず、呼び出し側が結果を適用する
+ */
+public final class PlaybackDriftController {
+    // updateの結果
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_SET_SPEED = 1;
+    public static final int ACTION_SEEK = 2;
+
+    // 測定値のぶれ（getCurrentPositionの粒度など）を除くための中央値の窓
+    private static final int MEDIAN_WINDOW = 3;
+    // シーク先の先読み量の上限（シーク後の再開にかかる時間を学習した値）
+    private static final long MAX_SEEK_LEAD_MS = 1_000L;
+
+    // 調整可能なパラメータ
+    private long deadbandMs = 15L;
+    private long seekThresholdMs = 250L;
+    // このくらいの時間をかけてずれを解消する速度にする
+    private long correctionWindowMs = 2_000L;
+    private float maxSpeedAdjust = 0.05f;
+    // シーク後、再生が落ち着くまで測定しない時間
+    private long settleMs = 1_000L;
+
+    private final long[] errors = new long[MEDIAN_WINDOW];
+    private final long[] sorted = new long[MEDIAN_WINDOW];
+    private int errorCount = 0;
+    private int errorNext = 0;
+    private float speed = 1.0f;
+    private boolean correcting = false;
+    private long settleUntilMs = 0L;
+    private boolean measureSeekLead = false;
+    private long seekLeadMs = 0L;
+    private long lastErrorMs = 0L;
+    private int seekCount = 0;
+
+    public void setDeadbandMs(long deadbandMs) {
+        this.deadbandMs = deadbandMs;
+    }
+
+    public void setSeekThresholdMs(long seekThresholdMs) {
+        this.seekThresholdMs = seekThresholdMs;
+    }
+
+    public void setCorrectionWindowMs(long correctionWindowMs) {
+        this.correctionWindowMs = Math.max(1L, correctionWindowMs);
+    }
+
+    public void setMaxSpeedAdjust(float maxSpeedAdjust) {
+        this.maxSpeedAdjust = maxSpeedAdjust;
+    }
+
+    public void setSettleMs(long settleMs) {
+        this.settleMs = settleMs;
+    }
+
+    // 新しい再生の開始時に呼ぶ（学習したシークの先読み量は引き継ぐ）
+    public void reset() {
+        errorCount = 0;
+        errorNext = 0;
+        speed = 1.0f;
+        correcting = false;
+        settleUntilMs = 0L;
+        measureSeekLead = false;
+        lastErrorMs = 0L;
+    }
+
+    /**
+     * 1回分の測定を反映する
+     * actualMs: 実際の再生位置, expectedMs: 本来の再生位置, nowMs: 単調時計（シーク後の待ち時間の判定用）
+     * ACTION_SET_SPEEDならgetSpeed()を、ACTION_SEEKならgetSeekPositionMs(expectedMs)を適用すること
+     */
+    public int update(long actualMs, long expectedMs, long nowMs) {
+        if (nowMs < settleUntilMs) {
+            return ACTION_NONE;
+        }
+        long raw = actualMs - expectedMs;
+        if (measureSeekLead) {
+            // シーク直後のずれ（負なら遅れ）は再開にかかった時間。次回のシーク先に加える
+            measureSeekLead = false;
+            seekLeadMs = Math.max(0L, Math.min(MAX_SEEK_LEAD_MS, seekLeadMs - raw));
+        }
+        errors[errorNext] = raw;
+        errorNext = (errorNext + 1) % MEDIAN_WINDOW;
+        errorCount = Math.min(errorCount + 1, MEDIAN_WINDOW);
+        long error = median();
+        lastErrorMs = error;
+
+        if (Math.abs(raw) >= seekThresholdMs && Math.abs(error) >= seekThresholdMs) {
+            seekCount++;
+            errorCount = 0;
+            errorNext = 0;
+            correcting = false;
+            speed = 1.0f;
+            settleUntilMs = nowMs + settleMs;
+            measureSeekLead = true;
+            return ACTION_SEEK;
+        }
+
+        float target;
+        // ヒステリシス: 補正中はデッドバンドの半分まで詰めてから止める
+        long stopBand = correcting ? deadbandMs / 2 : deadbandMs;
+        if (Math.abs(error) <= stopBand) {
+            correcting = false;
+            target = 1.0f;
+        } else {
+            correcting = true;
+            // 先行していれば遅く、遅れていれば速く再生する
+            float adjust = -(float) error / correctionWindowMs;
+            target = 1.0f + Math.max(-maxSpeedAdjust, Math.min(maxSpeedAdjust, adjust));
+        }
+        if (target == speed) {
+            return ACTION_NONE;
+        }
+        speed = target;
+        return ACTION_SET_SPEED;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    // シーク先（再開までにかかる時間の分だけ先へ）
+    public long getSeekPositionMs(long expectedMs) {
+        return expectedMs + seekLeadMs;
+    }
+
+    // 直近の残差（ms、正なら先行）
+    public long getLastErrorMs() {
+        return lastErrorMs;
+    }
+
+    public long getSeekLeadMs() {
+        return seekLeadMs;
+    }
+
+    public int getSeekCount() {
+        return seekCount;
+    }
+
+    private long median() {
+        System.arraycopy(errors, 0, sorted, 0, errorCount);
+        Arrays.sort(sorted, 0, errorCount);
+        return sorted[errorCount / 2];
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.moviessync;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.Arrays;
+
+/**
+ * 再生開始の時刻合わせ
+ * 専用の高優先度スレッドで目標の少し前まで粗く待ち、そこからはvsyncごとに目標までの残りを確認して
+ * 目標に最も近いフレーム境界でトリガーをメインスレッドの先頭へ差し込む（メインスレッドのUI処理やGCで開始が遅れないように）
+ * 時刻はローカル時刻（SystemClock.elapsedRealtimeNanos）
+ */
+public class PlaybackStartScheduler {
+    private static final String TAG = "PlaybackStartScheduler";
+    // 細かい待ちに切り替える目標までの残り時間（最低値。フレーム間隔の3倍の方が長ければそちら）
+    private static final long MIN_FINE_WINDOW_NANOS = 50_000_000L;
+    // 開始のずれの記録数
+    private static final int SKEW_HISTORY = 32;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler;
+    // フレーム間隔（ns、vsyncの間隔を測って更新する）
+    private volatile long frameIntervalNanos;
+
+    // 以下、スケジューラスレッド専用
+    private Runnable pendingTrigger;
+    private long targetNanos;
+    private long lastFrameNanos = 0L;
+    private Choreographer choreographer;
+    private Runnable coarseWait;
+
+    // 開始のずれ（実際にトリガーを実行した時刻 - 目標、ns）の履歴
+    private final long[] skews = new long[SKEW_HISTORY];
+    private int skewCount = 0;
+    private int skewNext = 0;
+    private volatile long lastSkewNanos = 0L;
+
+    public PlaybackStartScheduler(Handler mainHandler, float refreshRate) {
+        this.mainHandler = mainHandler;
+        this.frameIntervalNanos = (long) (1_000_000_000L / (refreshRate > 0 ? refreshRate : 60f));
+        thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * targetNanosにtriggerをメインスレッドで実行する（前の予約は取り消す）
+     * triggerでは最後の1手（play()など）だけを行い、準備は事前に済ませておくこと
+     */
+    public void schedule(final long targetNanos, final Runnable trigger) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelOnThread();
+                PlaybackStartScheduler.this.targetNanos = targetNanos;
+                pendingTrigger = trigger;
+                long fineWindow = Math.max(MIN_FINE_WINDOW_NANOS, frameIntervalNanos * 3);
+                long coarseNanos = targetNanos - fineWindow - SystemClock.elapsedRealtimeNanos();
+                if (coarseNanos > 0) {
+                    // 粗い待ち: 専用スレッドなので他の処理に邪魔されない
+                    coarseWait = new Runnable() {
+                        @Override
+                        public void run() {
+                            coarseWait = null;
+                            beginFineWait();
+                        }
+                    };
+                    handler.postDelayed(coarseWait, coarseNanos / 1_000_000L);
+                } else {
+                    beginFineWait();
+                }
+            }
+        });
+    }
+
+    public void cancel() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelOnThread();
+            }
+        });
+    }
+
+    public void quit() {
+        cancel();
+        thread.quitSafely();
+    }
+
+    // 直近の開始のずれ（ms、正なら目標より遅れて開始）
+    public double getLastSkewMs() {
+        return lastSkewNanos / 1e6;
+    }
+
+    // 記録した開始のずれの絶対値のパーセンタイル（ms、記録がなければ0）
+    public synchronized double getSkewPercentileMs(double percentile) {
+        if (skewCount == 0) {
+            return 0;
+        }
+        long[] sorted = new long[skewCount];
+        for (int i = 0; i < skewCount; i++) {
+            sorted[i] = Math.abs(skews[i]);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.min(skewCount - 1, Math.round(percentile / 100.0 * (skewCount - 1)));
+        return sorted[index] / 1e6;
+    }
+
+    private void cancelOnThread() {
+        pendingTrigger = null;
+        lastFrameNanos = 0L;
+        if (coarseWait != null) {
+            handler.removeCallbacks(coarseWait);
+            coarseWait = null;
+        }
+        if (choreographer != null) {
+            choreographer.removeFrameCallback(frameCallback);
+        }
+    }
+
+    private void beginFineWait() {
+        if (choreographer == null) {
+            // このスレッドのルーパーにvsyncを届けてもらう
+            choreographer = Choreographer.getInstance();
+        }
+        lastFrameNanos = 0L;
+        choreographer.postFrameCallback(frameCallback);
+    }
+
+    /**
+     * vsyncごとに呼ばれる。次のvsyncより今回の方が目標に近ければここでトリガーする
+     */
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (pendingTrigger == null) {
+                return;
+            }
+            // frameTimeNanosはSystem.nanoTime基準なのでelapsedRealtimeNanos基準へ直す
+            long vsyncNanos = frameTimeNanos + (SystemClock.elapsedRealtimeNanos() - System.nanoTime());
+            if (lastFrameNanos > 0L) {
+                long interval = vsyncNanos - lastFrameNanos;
+                // フレーム落ちで間隔が伸びた分は無視する
+                if (interval > 0 && interval < frameIntervalNanos * 3 / 2) {
+                    frameIntervalNanos = (frameIntervalNanos * 7 + interval) / 8;
+                }
+            }
+            lastFrameNanos = vsyncNanos;
+            if (targetNanos - vsyncNanos > frameIntervalNanos / 2) {
+                choreographer.postFrameCallback(this);
+                return;
+            }
+            trigger();
+        }
+    };
+
+    // メインスレッドのキューの先頭へ非同期メッセージとして差し込む（同期バリアも越える）
+    private void trigger() {
+        final Runnable trigger = pendingTrigger;
+        final long target = targetNanos;
+        pendingTrigger = null;
+        Message message = Message.obtain(mainHandler, new Runnable() {
+            @Override
+            public void run() {
+                long skew = SystemClock.elapsedRealtimeNanos() - target;
+                trigger.run();
+                recordSkew(skew);
+                Log.d(TAG, "Playback started, skew=" + (skew / 1_000L) + "us frame=" + (frameIntervalNanos / 1_000L) + "us");
+            }
+        });
+        message.setAsynchronous(true);
+        mainHandler.sendMessageAtFrontOfQueue(message);
+    }
+
+    private synchronized void recordSkew(long skewNanos) {
+        lastSkewNanos = skewNanos;
+        skews[skewNext] = skewNanos;
+        skewNext = (skewNext + 1) % SKEW_HISTORY;
+        skewCount = Math.min(skewCount + 1, SKEW_HISTORY);
+    }
+}
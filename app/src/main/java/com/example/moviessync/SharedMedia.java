@@ -0,0 +1,147 @@
+package com.example.moviessync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * コーディネーターが配信する動画ファイル
+ * 固定長のチャンクに分け、チャンクごとのチェックサム（CRC32）と内容のハッシュ（SHA-256）を配信前に1回だけ計算しておく
+ * 動画のIDは内容のハッシュから決まるので、同じ内容ならメンバーは前に受信したものをそのまま使える
+ * 配信中はファイルから直接ソケットへ送る（transferTo）ので、メンバー数が増えても内容をコピーしない
+ */
+public final class SharedMedia implements MediaSource {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    // ハッシュ計算でまとめてメモリにマップする範囲（チャンク数）
+    private static final int MAP_WINDOW_CHUNKS = 64;
+
+    private final long mediaId;
+    private final String contentHash;
+    private final String name;
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private final int[] checksums;
+
+    private SharedMedia(String contentHash, String name, FileChannel channel, long size, int chunkSize, int[] checksums) {
+        this.contentHash = contentHash;
+        this.mediaId = mediaIdOf(contentHash);
+        this.name = name;
+        this.channel = channel;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.checksums = checksums;
+    }
+
+    /**
+     * channelの内容を配信用に開く（ファイルを少しずつメモリにマップし、チェックサムとハッシュを1回の走査で求める）
+     * channelはcloseで閉じる
+     */
+    public static SharedMedia open(String name, FileChannel channel, int chunkSize) throws IOException {
+        long size = channel.size();
+        int chunks = chunkCount(size, chunkSize);
+        int[] checksums = new int[chunks];
+        MessageDigest digest = newDigest();
+        CRC32 crc = new CRC32();
+        long windowSize = (long) chunkSize * MAP_WINDOW_CHUNKS;
+        for (long windowStart = 0; windowStart < size; windowStart += windowSize) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+            int first = (int) (windowStart / chunkSize);
+            for (int i = first; i < chunks && (long) i * chunkSize < windowStart + window.capacity(); i++) {
+                int start = (int) ((long) i * chunkSize - windowStart);
+                ByteBuffer chunk = window.duplicate();
+                chunk.limit(start + (int) Math.min(chunkSize, size - (long) i * chunkSize)).position(start);
+                crc.reset();
+                crc.update(chunk.duplicate());
+                checksums[i] = (int) crc.getValue();
+                digest.update(chunk);
+            }
+        }
+        return new SharedMedia(toHex(digest.digest()), name, channel, size, chunkSize, checksums);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    // 配信用のID（ハッシュの先頭64ビット、正の値）
+    public static long mediaIdOf(String contentHash) {
+        return Long.parseUnsignedLong(contentHash.substring(0, 16), 16) & Long.MAX_VALUE;
+    }
+
+    public static int chunkCount(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    @Override
+    public long getMediaId() {
+        return mediaId;
+    }
+
+    // 内容のハッシュ（SHA-256、16進）
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public int getChunkCount() {
+        return checksums.length;
+    }
+
+    @Override
+    public int getChecksum(int chunk) {
+        return checksums[chunk];
+    }
+
+    // チャンクの長さ（最後のチャンクだけ短い）
+    @Override
+    public int getChunkLength(int chunk) {
+        return (int) Math.min(chunkSize, size - (long) chunk * chunkSize);
+    }
+
+    @Override
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    // 元の動画なので全チャンクを最初から送れる
+    @Override
+    public boolean awaitChunk(int chunk, long timeoutMs) {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.moviessync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+
+/**
+ * メンバー用の開始指示のUDPマルチキャスト受信（StartAnnouncerと対）
+ * 同じ開始指示は数回届くので、開始番号ごとに最初の1回だけ通知する
+ */
+public class StartAnnounceListener implements Runnable {
+    private static final String TAG = "StartAnnounceListener";
+
+    public interface Callback {
+        // 受信スレッドから呼ばれる（receivedAtNanosはelapsedRealtimeNanos）
+        void onAnnouncement(StartAnnouncer.Announcement announcement, long receivedAtNanos);
+    }
+
+    private final InetAddress address;
+    private final int port;
+    private final NetworkInterface networkInterface;
+    private final long session;
+    private final Callback callback;
+    private final byte[] bytes = new byte[64];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private volatile MulticastSocket socket;
+    private volatile boolean running = false;
+    // 最後に通知した開始番号（受信スレッド専用）
+    private int lastStartId = 0;
+
+    public StartAnnounceListener(InetAddress address, int port, NetworkInterface networkInterface, long session, Callback callback) {
+        this.address = address;
+        this.port = port;
+        this.networkInterface = networkInterface;
+        this.session = session;
+        this.callback = callback;
+    }
+
+    /**
+     * 待ち受けを開始する（runの前に呼べば、以降に送られた開始指示を取りこぼさない）
+     */
+    public synchronized void bind() throws IOException {
+        if (socket != null) {
+            return;
+        }
+        MulticastSocket s = new MulticastSocket(null);
+        try {
+            s.setReuseAddress(true);
+            s.bind(new InetSocketAddress(port));
+            if (address.isMulticastAddress()) {
+                s.joinGroup(new InetSocketAddress(address, 0), networkInterface);
+            }
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+        running = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            bind();
+            Log.d(TAG, "Listening for start announcements on " + address + ":" + getLocalPort());
+            DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+            while (running) {
+                packet.setLength(bytes.length);
+                socket.receive(packet);
+                long receivedAtNanos = SystemClock.elapsedRealtimeNanos();
+                buffer.clear();
+                buffer.limit(packet.getLength());
+                StartAnnouncer.Announcement announcement = StartAnnouncer.decode(buffer, session);
+                if (announcement == null || announcement.startId <= lastStartId) {
+                    continue;
+                }
+                lastStartId = announcement.startId;
+                callback.onAnnouncement(announcement, receivedAtNanos);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.e(TAG, "Error receiving start announcements", e);
+            }
+        } finally {
+            running = false;
+            MulticastSocket s = socket;
+            if (s != null) {
+                s.close();
+            }
+        }
+    }
+
+    public int getLocalPort() {
+        MulticastSocket s = socket;
+        return s != null ? s.getLocalPort() : port;
+    }
+
+    public void stop() {
+        running = false;
+        MulticastSocket s = socket;
+        if (s != null) {
+            s.close();
+        }
+    }
+}
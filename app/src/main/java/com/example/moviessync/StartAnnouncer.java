@@ -0,0 +1,112 @@
+package com.example.moviessync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+
+/**
+ * コーディネーター用の開始指示のUDPマルチキャスト送信（StartAnnounceListenerと対）
+ * メンバーごとにTCPへ書くとリストの後ろのメンバーほど受け取りが遅れるので、1つのパケットで全員へ同時に届ける
+ * 取りこぼしに備えて少し間を空けて数回送る。受け取ったメンバーはTCPでSTART_ACKを返し、
+ * 返さなかったメンバーにだけコーディネーターがTCPで送り直す
+ *
+ * パケット構成（ビッグエンディアン）:
+ *   u8 magic, u8 version, i64 session, i32 start_id, i64 target_epoch_ms, i64 loop_duration_ms, i64 loop_gap_ms
+ *   sessionはコーディネーターごとの値（CONNECTEDで通知）。同じネットワークの別のグループの開始指示は無視する
+ */
+public class StartAnnouncer implements Closeable {
+    static final byte MAGIC = 'A';
+    static final byte VERSION = 1;
+    static final int PACKET_SIZE = 38;
+    // 同じ開始指示を送る回数と間隔
+    static final int REPEAT_COUNT = 3;
+    static final long REPEAT_INTERVAL_MS = 5L;
+
+    /**
+     * 受け取った開始指示
+     */
+    public static final class Announcement {
+        public final int startId;
+        public final long targetEpochMs;
+        public final long loopDurationMs;
+        public final long loopGapMs;
+
+        Announcement(int startId, long targetEpochMs, long loopDurationMs, long loopGapMs) {
+            this.startId = startId;
+            this.targetEpochMs = targetEpochMs;
+            this.loopDurationMs = loopDurationMs;
+            this.loopGapMs = loopGapMs;
+        }
+    }
+
+    private final MulticastSocket socket;
+    private final InetAddress address;
+    private final int port;
+    private final long session;
+    private final byte[] bytes = new byte[PACKET_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    /**
+     * addressはマルチキャストグループ（ユニキャストのアドレスも可）。networkInterfaceがnullなら既定の経路で送る
+     */
+    public StartAnnouncer(InetAddress address, int port, NetworkInterface networkInterface, long session) throws IOException {
+        this.address = address;
+        this.port = port;
+        this.session = session;
+        socket = new MulticastSocket();
+        try {
+            NetworkUtils.markControl(socket);
+            socket.setTimeToLive(1);
+            if (networkInterface != null) {
+                socket.setNetworkInterface(networkInterface);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 開始指示を送る（REPEAT_COUNT回、呼び出し元のスレッドで間隔を空けて送る）
+     */
+    public synchronized void announce(int startId, long targetEpochMs, long loopDurationMs, long loopGapMs)
+            throws IOException, InterruptedException {
+        buffer.clear();
+        buffer.put(MAGIC).put(VERSION).putLong(session).putInt(startId)
+                .putLong(targetEpochMs).putLong(loopDurationMs).putLong(loopGapMs);
+        DatagramPacket packet = new DatagramPacket(bytes, PACKET_SIZE, address, port);
+        for (int i = 0; i < REPEAT_COUNT; i++) {
+            if (i > 0) {
+                Thread.sleep(REPEAT_INTERVAL_MS);
+            }
+            socket.send(packet);
+        }
+    }
+
+    /**
+     * パケットを読む。形式が違う・別のグループのものならnull
+     */
+    static Announcement decode(ByteBuffer packet, long session) {
+        if (packet.remaining() < PACKET_SIZE || packet.get() != MAGIC || packet.get() != VERSION
+                || packet.getLong() != session) {
+            return null;
+        }
+        int startId = packet.getInt();
+        long targetEpochMs = packet.getLong();
+        long loopDurationMs = packet.getLong();
+        long loopGapMs = packet.getLong();
+        if (startId <= 0 || targetEpochMs <= 0) {
+            return null;
+        }
+        return new Announcement(startId, targetEpochMs, loopDurationMs, loopGapMs);
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.moviessync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 二段階開始の待ち合わせ（コーディネーター用）
+ * 準備指示を出した参加者全員からREADYが揃うか、タイムアウトで締め切るまでを管理する
+ * 締め切りは完了とタイムアウトのどちらから呼ばれても1回だけ成立する
+ */
+final class StartBarrier<K> {
+    private final int startId;
+    private final long beganAtMs;
+    // まだREADYを返していない参加者
+    private final Set<K> waiting;
+    private final int participantCount;
+    private long lastReadyAtMs;
+    private boolean closed = false;
+
+    StartBarrier(int startId, Collection<K> participants, long nowMs) {
+        this.startId = startId;
+        this.beganAtMs = nowMs;
+        this.lastReadyAtMs = nowMs;
+        this.waiting = new LinkedHashSet<>(participants);
+        this.participantCount = waiting.size();
+    }
+
+    int getStartId() {
+        return startId;
+    }
+
+    /**
+     * READYを記録する。この開始のものでなければ無視。全員揃ったらtrue
+     */
+    synchronized boolean markReady(K participant, int startId, long nowMs) {
+        if (closed || startId != this.startId || !waiting.remove(participant)) {
+            return false;
+        }
+        lastReadyAtMs = nowMs;
+        return waiting.isEmpty();
+    }
+
+    // 切断した参加者を待つのをやめる。残りが全員揃っていればtrue
+    synchronized boolean remove(K participant) {
+        if (closed || !waiting.remove(participant)) {
+            return false;
+        }
+        return waiting.isEmpty();
+    }
+
+    synchronized boolean isAllReady() {
+        return waiting.isEmpty();
+    }
+
+    // 締め切る。最初の1回だけtrue
+    synchronized boolean close() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    // 締め切り時点でREADYを返していない参加者
+    synchronized List<K> getStragglers() {
+        return new ArrayList<>(waiting);
+    }
+
+    synchronized int getReadyCount() {
+        return participantCount - waiting.size();
+    }
+
+    // 最も遅いREADYまでにかかった時間
+    synchronized long getSlowestReadyMs() {
+        return lastReadyAtMs - beganAtMs;
+    }
+}
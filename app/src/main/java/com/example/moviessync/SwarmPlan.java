@@ -0,0 +1,29 @@
+package com.example.moviessync;
+
+/**
+ * 動画の中継の木（コーディネーターを根とするk分木）
+ * 受信するメンバーに1から順に番号を振り、番号pのメンバーは番号(p-1)/kのメンバー（0ならコーディネーター）から受け取る
+ * 各端末が送るのは最大k台分なので、全体の時間は台数ではなく木の深さ（log_k 台数）に応じて伸びる
+ */
+final class SwarmPlan {
+    // 1台が中継する先の数
+    static final int FANOUT = 2;
+
+    private SwarmPlan() {
+    }
+
+    // 番号position（1始まり）のメンバーの受信元の番号（0はコーディネーター）
+    static int parentOf(int position, int fanout) {
+        return (position - 1) / fanout;
+    }
+
+    // コーディネーターからの段数（直接受け取るメンバーは1）
+    static int depthOf(int position, int fanout) {
+        int depth = 0;
+        while (position > 0) {
+            position = parentOf(position, fanout);
+            depth++;
+        }
+        return depth;
+    }
+}
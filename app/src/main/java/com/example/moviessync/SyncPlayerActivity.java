@@ -14,6 +14,8 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Display;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
@@ -24,10 +26,13 @@ import android.widget.TextView;
 import androidx.appcompat.widget.SwitchCompat;
 import android.content.SharedPreferences;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.ExoPlayer;
 import com.google.android.exoplayer2.MediaItem;
 import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.ui.StyledPlayerView;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
@@ -64,12 +69,40 @@ public class SyncPlayerActivity extends AppCompatActivity {
     private Uri selectedVideoUri;
     private boolean isCoordinator;
     private BroadcastReceiver playCommandReceiver;
+    // 再生位置0に対応するサーバ時刻（ms、0なら未指定でずれ補正をしない）
+    private long playbackEpochMs = 0L;
+    private final PlaybackDriftController driftController = new PlaybackDriftController();
+    // ループの時刻表（nullならループ終了のたびにコーディネーターへ次の開始を依頼する）
+    private LoopClock loopClock;
+    // 再生開始の時刻合わせ（専用スレッドで待ち、play()だけをメインスレッドで実行）
+    private PlaybackStartScheduler startScheduler;
+    // 二段階開始: 準備中の開始番号（READY待ち）と、準備が完了した開始番号
+    private int awaitingReadyStartId = 0;
+    private int preparedStartId = 0;
+    // 再生中のループの開始番号（ループ終了の通知に添える）
+    private int playingStartId = 0;
+    private boolean firstFrameRendered = false;
+    // 予約中の開始の計測用（開始番号、目標・開始指示の受信・予約のローカル時刻ns。目標0なら予約なし）
+    private int scheduledStartId = 0;
+    private long scheduledTargetNanos = 0L;
+    private long startReceivedAtNanos = 0L;
+    private long startArmedAtNanos = 0L;
 
     // 動画選択用のActivityResultLauncher
     private ActivityResultLauncher<String> videoPickerLauncher;
     
     private static final String PREFS_NAME = "MoviesSyncPrefs";
     private static final String PREF_TOAST_ENABLED = "toast_enabled";
+    // 再生位置のずれを確認する間隔
+    private static final long DRIFT_CHECK_INTERVAL_MS = 500L;
+    // 終端付近は次のループの準備に入るので補正しない
+    private static final long DRIFT_END_MARGIN_MS = 500L;
+    // 開始時刻のこれだけ前に画面を切り替えておく（レイアウト処理を開始の瞬間に重ねない）
+    private static final long START_VIEW_LEAD_MS = 500L;
+    // 途中参加: シークと最初のフレームの準備にかける時間（学習したシークの先読み量に足す）と、
+    // ループの残りがこれより短ければ途中から加わらずに次のループを待つ
+    private static final long CATCH_UP_LEAD_MS = 1_000L;
+    private static final long CATCH_UP_MIN_REMAINING_MS = 2_000L;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -92,6 +125,7 @@ public class SyncPlayerActivity extends AppCompatActivity {
         videoContainer = findViewById(R.id.videoContainer);
         switchToastEnabled = findViewById(R.id.switchToastEnabled);
         initializePlayer();
+        startScheduler = new PlaybackStartScheduler(handler, displayRefreshRate());
         
         // トースト表示設定を読み込み
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
@@ -114,12 +148,12 @@ public class SyncPlayerActivity extends AppCompatActivity {
                 new ActivityResultContracts.GetContent(),
                 uri -> {
                     if (uri != null) {
-                        selectedVideoUri = uri;
                         String fileName = getFileName(uri);
-                        tvVideoInfo.setText("動画: " + fileName);
-                        btnPlay.setEnabled(true);
-
-                        prepareSelectedMediaItem();
+                        selectVideo(uri, fileName);
+                        if (isCoordinator && groupService != null) {
+                            // 同じ動画をメンバーへ配信する（メンバーが自分で選ぶ必要はない）
+                            groupService.shareMedia(uri, fileName);
+                        }
                     }
                 }
         );
@@ -201,6 +235,10 @@ public class SyncPlayerActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         stopUpdatingMemberCount();
+        startScheduler.cancel();
+        scheduledTargetNanos = 0L;
+        handler.removeCallbacks(showPlaybackViewRunnable);
+        stopDriftCorrection();
         if (exoPlayer != null) {
             exoPlayer.pause();
         }
@@ -212,10 +250,14 @@ public class SyncPlayerActivity extends AppCompatActivity {
         if (playCommandReceiver != null) {
             unregisterReceiver(playCommandReceiver);
         }
+        if (groupService != null) {
+            groupService.setCommandListener(null);
+        }
         if (groupServiceConnection != null) {
             unbindService(groupServiceConnection);
         }
         stopService(new Intent(this, GroupSyncService.class));
+        startScheduler.quit();
         releasePlayer();
     }
 
@@ -244,6 +286,8 @@ public class SyncPlayerActivity extends AppCompatActivity {
         public void onServiceConnected(ComponentName name, IBinder service) {
             GroupSyncService.LocalBinder binder = (GroupSyncService.LocalBinder) service;
             groupService = binder.getService();
+            // 以降の指示はブロードキャストを通さずに直接受け取る
+            groupService.setCommandListener(commandListener);
             tvStatus.setText(isCoordinator ? "参加待ち中" : "グループ接続中");
             
             // コーディネーターの場合、QRコードを再生成（Service接続後にIPアドレスが確定しているため）
@@ -259,6 +303,14 @@ public class SyncPlayerActivity extends AppCompatActivity {
         }
     };
 
+    private void selectVideo(Uri uri, String fileName) {
+        selectedVideoUri = uri;
+        tvVideoInfo.setText("動画: " + fileName);
+        btnPlay.setEnabled(true);
+
+        prepareSelectedMediaItem();
+    }
+
     // メンバー数更新を開始
     private void startUpdatingMemberCount() {
         updateMemberCountRunnable = new Runnable() {
@@ -266,7 +318,39 @@ public class SyncPlayerActivity extends AppCompatActivity {
             public void run() {
                 if (groupService != null) {
                     int count = groupService.getConnectedMemberCount();
-                    tvConnectedMembers.setText("接続メンバー: " + count);
+                    String text = "接続メンバー: " + count;
+                    int slow = groupService.getSlowMemberCount();
+                    int evicted = groupService.getEvictedMemberCount();
+                    int timedOut = groupService.getTimedOutMemberCount();
+                    if (slow > 0 || evicted > 0 || timedOut > 0) {
+                        text += "（遅延 " + slow + " / 切断 " + evicted + " / 応答なし " + timedOut + "）";
+                    }
+                    for (String line : groupService.getLivenessLines()) {
+                        text += "\n" + line;
+                    }
+                    int receivers = groupService.getMediaReceiverCount();
+                    if (receivers > 0) {
+                        text += "\n動画の配信: " + groupService.getMediaCompletedCount() + " / " + receivers + " 完了";
+                        int headPending = groupService.getMediaHeadPendingCount();
+                        if (headPending > 0) {
+                            text += "（先頭の受信待ち " + headPending + "）";
+                        }
+                    }
+                    long mediaTotal = groupService.getMediaTotalBytes();
+                    if (mediaTotal > 0 && groupService.getMediaReceivedBytes() < mediaTotal) {
+                        text += "\n動画を受信中: " + (groupService.getMediaReceivedBytes() * 100 / mediaTotal) + "%";
+                    }
+                    LatencyStats direct = groupService.getDispatchStats(true);
+                    LatencyStats broadcast = groupService.getDispatchStats(false);
+                    if (direct.getCount() > 0 || broadcast.getCount() > 0) {
+                        text += "\n受信→予約 p95: 直接 " + direct.percentile(95) + "μs / ブロードキャスト " + broadcast.percentile(95) + "μs";
+                    }
+                    LeadTime lead = groupService.getLastLeadTime();
+                    if (lead != null) {
+                        text += "\nリード " + lead.leadMs + "ms（最遅: " + lead.slowestName
+                                + " 往復 " + lead.slowestRttUs / 1_000L + "ms / 開始 " + lead.slowestStartUs / 1_000L + "ms）";
+                    }
+                    tvConnectedMembers.setText(text);
                 }
                 handler.postDelayed(this, 1000);
             }
@@ -281,23 +365,181 @@ public class SyncPlayerActivity extends AppCompatActivity {
         }
     }
 
-    // 動画再生開始
+    // 動画再生開始（開始時刻の指定がない場合はすぐに開始）
     private void startPlayback() {
         android.util.Log.d("SyncPlayerActivity", "startPlayback called - selectedVideoUri: " + selectedVideoUri + ", exoPlayer: " + exoPlayer);
-        if (selectedVideoUri != null && exoPlayer != null && playerView != null && videoContainer != null) {
-            videoContainer.setVisibility(View.VISIBLE);
-            hideControlUI();
-            hideSystemUI();
-            ensureMediaPrepared();
-            exoPlayer.pause();
-            exoPlayer.seekTo(0);
-            exoPlayer.play();
-            android.util.Log.d("SyncPlayerActivity", "ExoPlayer playback started");
+        if (preparePlayback()) {
+            showPlaybackView();
+            triggerPlayback();
         } else {
             android.util.Log.w("SyncPlayerActivity", "Cannot start playback - selectedVideoUri: " + selectedVideoUri + ", exoPlayer: " + exoPlayer);
         }
     }
+
+    /**
+     * 開始時刻の前に済ませておく準備（先頭へシークして一時停止）
+     * 開始の瞬間にはplay()だけを呼べばよい状態にする
+     */
+    private boolean preparePlayback() {
+        if (selectedVideoUri == null || exoPlayer == null || playerView == null || videoContainer == null) {
+            return false;
+        }
+        ensureMediaPrepared();
+        exoPlayer.pause();
+        exoPlayer.seekTo(0);
+        exoPlayer.setPlaybackParameters(PlaybackParameters.DEFAULT);
+        return true;
+    }
+
+    // 準備指示（二段階開始の1段目）: 先頭で一時停止し、最初のフレームが描画されたらREADYを返す
+    private void onPrepareCommand(int startId) {
+        stopDriftCorrection();
+        startScheduler.cancel();
+        scheduledTargetNanos = 0L;
+        handler.removeCallbacks(showPlaybackViewRunnable);
+        applyLoopClock(null);
+        preparedStartId = 0;
+        if (startId == 0 || !preparePlayback()) {
+            // 動画未選択などで準備できない。コーディネーターはタイムアウトで待つのをやめる
+            awaitingReadyStartId = 0;
+            return;
+        }
+        awaitingReadyStartId = startId;
+        firstFrameRendered = false;
+        checkPreparedForStart();
+    }
+
+    private boolean isPreparedAtStart() {
+        return exoPlayer != null && firstFrameRendered
+                && exoPlayer.getPlaybackState() == Player.STATE_READY
+                && !exoPlayer.isPlaying()
+                && exoPlayer.getCurrentPosition() == 0L;
+    }
+
+    // 準備が整っていればREADYを返す（プレイヤーの状態が変わるたびに呼ぶ）
+    private void checkPreparedForStart() {
+        if (awaitingReadyStartId == 0 || !isPreparedAtStart()) {
+            return;
+        }
+        int startId = awaitingReadyStartId;
+        awaitingReadyStartId = 0;
+        preparedStartId = startId;
+        android.util.Log.d("SyncPlayerActivity", "Prepared for start #" + startId);
+        if (groupService != null) {
+            groupService.notifyReady(startId);
+        }
+    }
+
+    private void showPlaybackView() {
+        videoContainer.setVisibility(View.VISIBLE);
+        hideControlUI();
+        hideSystemUI();
+    }
+
+    private final Runnable showPlaybackViewRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (videoContainer != null) {
+                showPlaybackView();
+            }
+        }
+    };
+
+    // 開始時刻に実行する最後の1手
+    private void triggerPlayback() {
+        if (exoPlayer == null) {
+            return;
+        }
+        exoPlayer.play();
+        android.util.Log.d("SyncPlayerActivity", "ExoPlayer playback started");
+        startDriftCorrection();
+        if (scheduledTargetNanos > 0L) {
+            // 受信から予約まで・実際の開始までの時間と目標とのずれを報告（次回以降のリードタイムに使われる）
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (groupService != null) {
+                groupService.reportStart(scheduledStartId, (startArmedAtNanos - startReceivedAtNanos) / 1_000L,
+                        (now - startReceivedAtNanos) / 1_000L, (now - scheduledTargetNanos) / 1_000L);
+            }
+            scheduledTargetNanos = 0L;
+        }
+    }
+
+    private final Runnable triggerPlaybackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            triggerPlayback();
+        }
+    };
+
+    // 直近の再生開始の目標時刻とのずれ（ms、正なら遅れ）
+    public double getStartSkewMs() {
+        return startScheduler.getLastSkewMs();
+    }
     
+    // 再生位置のずれ補正を開始（開始時刻が共有されている場合のみ）
+    private void startDriftCorrection() {
+        handler.removeCallbacks(driftCorrectionRunnable);
+        driftController.reset();
+        if (playbackEpochMs > 0) {
+            handler.postDelayed(driftCorrectionRunnable, DRIFT_CHECK_INTERVAL_MS);
+        }
+    }
+
+    private void stopDriftCorrection() {
+        handler.removeCallbacks(driftCorrectionRunnable);
+        if (exoPlayer != null && driftController.getSpeed() != 1.0f) {
+            exoPlayer.setPlaybackParameters(PlaybackParameters.DEFAULT);
+        }
+        driftController.reset();
+    }
+
+    /**
+     * 本来の再生位置（共有の開始時刻からの経過）と実際の再生位置を比べ、
+     * 小さなずれは再生速度で、大きなずれはシークで補正する
+     */
+    private final Runnable driftCorrectionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (exoPlayer == null || playbackEpochMs <= 0) {
+                return;
+            }
+            if (exoPlayer.isPlaying()) {
+                long serverNowNs = TimeSyncManager.getInstance(getApplicationContext()).nowServerNanos();
+                long expectedMs = (serverNowNs - playbackEpochMs * 1_000_000L) / 1_000_000L;
+                long durationMs = exoPlayer.getDuration();
+                if (loopClock != null) {
+                    // ループの切り替わり直後は前のループの位置と比べてしまうので見送る
+                    expectedMs = loopClock.positionAt(serverNowNs / 1_000_000L);
+                    durationMs = loopClock.getDurationMs();
+                    if (expectedMs < DRIFT_END_MARGIN_MS) {
+                        expectedMs = -1L;
+                    }
+                }
+                if (expectedMs >= 0 && (durationMs == C.TIME_UNSET || expectedMs < durationMs - DRIFT_END_MARGIN_MS)) {
+                    long actualMs = exoPlayer.getCurrentPosition();
+                    int action = driftController.update(actualMs, expectedMs, android.os.SystemClock.elapsedRealtime());
+                    if (action == PlaybackDriftController.ACTION_SEEK) {
+                        long seekMs = driftController.getSeekPositionMs(expectedMs);
+                        exoPlayer.setPlaybackParameters(PlaybackParameters.DEFAULT);
+                        exoPlayer.seekTo(seekMs);
+                        android.util.Log.w("SyncPlayerActivity", "Drift " + driftController.getLastErrorMs()
+                                + "ms, seeking to " + seekMs + "ms (lead " + driftController.getSeekLeadMs() + "ms)");
+                    } else if (action == PlaybackDriftController.ACTION_SET_SPEED) {
+                        exoPlayer.setPlaybackParameters(new PlaybackParameters(driftController.getSpeed()));
+                        android.util.Log.d("SyncPlayerActivity", "Drift " + driftController.getLastErrorMs()
+                                + "ms, speed " + driftController.getSpeed());
+                    }
+                }
+            }
+            handler.postDelayed(this, DRIFT_CHECK_INTERVAL_MS);
+        }
+    };
+
+    // 直近の再生位置のずれ（ms、正なら先行）
+    public long getPlaybackDriftMs() {
+        return driftController.getLastErrorMs();
+    }
+
     // コントロールUIを非表示
     private void hideControlUI() {
         if (tvStatus != null) tvStatus.setVisibility(View.GONE);
@@ -324,46 +566,31 @@ public class SyncPlayerActivity extends AppCompatActivity {
         }
     }
 
-    // 再生コマンド受信用のBroadcastReceiverを登録
+    // Serviceから直接受け取る指示（受信したスレッドから呼ばれるので、メインスレッドのキューの先頭へ積む）
+    private final GroupSyncService.CommandListener commandListener = new GroupSyncService.CommandListener() {
+        @Override
+        public void onCommand(final Intent command) {
+            handler.postAtFrontOfQueue(new Runnable() {
+                @Override
+                public void run() {
+                    handleCommand(command, true);
+                }
+            });
+        }
+    };
+
+    // 再生コマンド受信用のBroadcastReceiverを登録（Serviceにバインドしていない間の予備）
     private void registerPlayCommandReceiver() {
         playCommandReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 android.util.Log.d("SyncPlayerActivity", "BroadcastReceiver received action: " + intent.getAction());
-                if (GroupSyncService.ACTION_PLAY.equals(intent.getAction())) {
-					long targetEpochMs = intent.getLongExtra(GroupSyncService.EXTRA_TARGET_EPOCH_MS, 0L);
-					long delayMs = 0L;
-					if (targetEpochMs > 0) {
-						long serverNow = TimeSyncManager.getInstance(getApplicationContext()).nowServerMillis();
-						delayMs = Math.max(0L, targetEpochMs - serverNow);
-					}
-					android.util.Log.d("SyncPlayerActivity", "ACTION_PLAY received, scheduling playback delayMs=" + delayMs + ", targetEpochMs=" + targetEpochMs);
-					// 受信トースト
-					try {
-						String msg;
-						if (targetEpochMs > 0) {
-							String hhmmss = new java.text.SimpleDateFormat("HH:mm:ss").format(new java.util.Date(targetEpochMs));
-							msg = "再生開始信号を受信（" + hhmmss + "）";
-						} else {
-							msg = "再生開始信号を受信";
-						}
-						showToastIfEnabled(msg);
-					} catch (Exception ignore) {}
-					ensureMediaPrepared();
-					if (exoPlayer != null) {
-						exoPlayer.pause();
-						exoPlayer.seekTo(0);
-					}
-					handler.postDelayed(new Runnable() {
-						@Override
-						public void run() {
-							startPlayback();
-						}
-					}, delayMs);
-                }
+                handleCommand(intent, false);
             }
         };
         IntentFilter filter = new IntentFilter(GroupSyncService.ACTION_PLAY);
+        filter.addAction(GroupSyncService.ACTION_PREPARE);
+        filter.addAction(GroupSyncService.ACTION_MEDIA_READY);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             registerReceiver(playCommandReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
         } else {
@@ -371,6 +598,105 @@ public class SyncPlayerActivity extends AppCompatActivity {
         }
     }
 
+    // 表示先の画面のリフレッシュレート（分からなければ0、スケジューラは60Hzとみなす）
+    private float displayRefreshRate() {
+        Display display;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            display = getDisplay();
+        } else {
+            display = defaultDisplay();
+        }
+        return display != null ? display.getRefreshRate() : 0f;
+    }
+
+    // R未満ではActivityから画面を直接取れないので、WindowManagerの既定の画面を使う
+    @SuppressWarnings("deprecation")
+    private Display defaultDisplay() {
+        return getWindowManager().getDefaultDisplay();
+    }
+
+    // Serviceからの指示を処理する（directはリスナー経由ならtrue、ブロードキャスト経由ならfalse）
+    private void handleCommand(Intent intent, boolean direct) {
+        if (GroupSyncService.ACTION_MEDIA_READY.equals(intent.getAction())) {
+            // コーディネーターから受信した動画を選択する
+            String name = intent.getStringExtra(GroupSyncService.EXTRA_MEDIA_NAME);
+            Uri uri = Uri.parse(intent.getStringExtra(GroupSyncService.EXTRA_MEDIA_URI));
+            selectVideo(uri, name != null ? name : "動画ファイル");
+            showToastIfEnabled(GroupSyncService.STREAM_SCHEME.equals(uri.getScheme()) ? "動画を受信しながら再生します" : "動画を受信しました");
+            return;
+        }
+        if (GroupSyncService.ACTION_PREPARE.equals(intent.getAction())) {
+            onPrepareCommand(intent.getIntExtra(GroupSyncService.EXTRA_START_ID, 0));
+            return;
+        }
+        if (GroupSyncService.ACTION_PLAY.equals(intent.getAction())) {
+			long targetEpochMs = intent.getLongExtra(GroupSyncService.EXTRA_TARGET_EPOCH_MS, 0L);
+			int startId = intent.getIntExtra(GroupSyncService.EXTRA_START_ID, 0);
+			long loopDurationMs = intent.getLongExtra(GroupSyncService.EXTRA_LOOP_DURATION_MS, 0L);
+			LoopClock clock = targetEpochMs > 0 && loopDurationMs > 0
+					? new LoopClock(targetEpochMs, loopDurationMs, intent.getLongExtra(GroupSyncService.EXTRA_LOOP_GAP_MS, 0L))
+					: null;
+			// 再接続で送り直された時刻表が再生中のものと同じなら、今のループを止めずにそのまま続ける
+			if (startId == 0 && clock != null && clock.isSameScheduleAs(loopClock) && exoPlayer != null && exoPlayer.isPlaying()) {
+				android.util.Log.d("SyncPlayerActivity", "ACTION_PLAY matches the running loop schedule, keeping playback");
+				return;
+			}
+			// 準備指示で先頭に合わせ済みなら、シークし直して最初のフレームを捨てないようにする
+			boolean prepared = startId != 0 && startId == preparedStartId && isPreparedAtStart();
+			awaitingReadyStartId = 0;
+			preparedStartId = 0;
+			long delayMs = 0L;
+			long targetLocalNanos = 0L;
+			long serverNowNs = 0L;
+			if (targetEpochMs > 0) {
+				TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+				serverNowNs = timeSync.nowServerNanos();
+				delayMs = Math.max(0L, (targetEpochMs * 1_000_000L - serverNowNs) / 1_000_000L);
+				// サーバ時刻の目標をローカルの単調時計へ変換（待ちはこちらで行う）
+				targetLocalNanos = timeSync.toLocalNanos(targetEpochMs * 1_000_000L);
+			}
+			android.util.Log.d("SyncPlayerActivity", "ACTION_PLAY received, scheduling playback delayMs=" + delayMs + ", targetEpochMs=" + targetEpochMs);
+			// 受信トースト
+			try {
+				String msg;
+				if (targetEpochMs > 0) {
+					String hhmmss = new java.text.SimpleDateFormat("HH:mm:ss").format(new java.util.Date(targetEpochMs));
+					msg = "再生開始信号を受信（" + hhmmss + "）";
+				} else {
+					msg = "再生開始信号を受信";
+				}
+				showToastIfEnabled(msg);
+			} catch (Exception ignore) {}
+			stopDriftCorrection();
+			startScheduler.cancel();
+			handler.removeCallbacks(showPlaybackViewRunnable);
+			scheduledTargetNanos = 0L;
+			playbackEpochMs = targetEpochMs;
+			playingStartId = startId;
+			applyLoopClock(clock);
+			if (targetEpochMs <= 0) {
+				startPlayback();
+			} else if (clock != null && targetEpochMs * 1_000_000L < serverNowNs) {
+				// 再生中のループへの途中参加（開始時刻が過去）
+				joinRunningLoop();
+			} else if (prepared || preparePlayback()) {
+				// 準備と画面の切り替えは先に済ませ、開始時刻にはplay()だけを実行する
+				handler.postDelayed(showPlaybackViewRunnable, Math.max(0L, delayMs - START_VIEW_LEAD_MS));
+				scheduledStartId = startId;
+				scheduledTargetNanos = targetLocalNanos;
+				startReceivedAtNanos = intent.getLongExtra(GroupSyncService.EXTRA_RECEIVED_AT_NANOS, 0L);
+				startArmedAtNanos = SystemClock.elapsedRealtimeNanos();
+				if (startReceivedAtNanos <= 0L) {
+					startReceivedAtNanos = startArmedAtNanos;
+				}
+				startScheduler.schedule(targetLocalNanos, triggerPlaybackRunnable);
+				if (groupService != null && intent.hasExtra(GroupSyncService.EXTRA_RECEIVED_AT_NANOS)) {
+					groupService.recordDispatchLatency(direct, (startArmedAtNanos - startReceivedAtNanos) / 1_000L);
+				}
+			}
+        }
+    }
+
     // QRコードを生成して表示
     private void generateAndDisplayQrCode() {
         String ipAddress = NetworkUtils.getLocalIpAddress(this);
@@ -434,7 +760,7 @@ public class SyncPlayerActivity extends AppCompatActivity {
             return;
         }
         exoPlayer = new ExoPlayer.Builder(this).build();
-        exoPlayer.setRepeatMode(Player.REPEAT_MODE_OFF);
+        exoPlayer.setRepeatMode(loopClock != null && loopClock.isGapless() ? Player.REPEAT_MODE_ONE : Player.REPEAT_MODE_OFF);
         exoPlayer.setPlayWhenReady(false);
         exoPlayer.addListener(playerListener);
         if (playerView != null) {
@@ -443,6 +769,7 @@ public class SyncPlayerActivity extends AppCompatActivity {
     }
 
     private void releasePlayer() {
+        handler.removeCallbacks(driftCorrectionRunnable);
         if (exoPlayer != null) {
             exoPlayer.removeListener(playerListener);
             exoPlayer.release();
@@ -459,11 +786,22 @@ public class SyncPlayerActivity extends AppCompatActivity {
             return;
         }
         selectedMediaItem = MediaItem.fromUri(selectedVideoUri);
-        exoPlayer.setMediaItem(selectedMediaItem, /* resetPosition= */ true);
+        setSelectedMediaItem();
         exoPlayer.prepare();
         exoPlayer.pause();
     }
 
+    // 受信中の動画は受信済みのチャンクから読むデータソースを通して再生する（届いていない位置は届くまで待つ）
+    private void setSelectedMediaItem() {
+        PartialMedia streaming = groupService != null ? groupService.getStreamingMedia(selectedVideoUri) : null;
+        if (streaming == null) {
+            exoPlayer.setMediaItem(selectedMediaItem, /* resetPosition= */ true);
+            return;
+        }
+        exoPlayer.setMediaSource(new ProgressiveMediaSource.Factory(new PartialMediaDataSource.Factory(streaming))
+                .createMediaSource(selectedMediaItem), /* resetPosition= */ true);
+    }
+
     private void ensureMediaPrepared() {
         if (exoPlayer == null || selectedVideoUri == null) {
             return;
@@ -474,23 +812,88 @@ public class SyncPlayerActivity extends AppCompatActivity {
         }
         MediaItem currentItem = exoPlayer.getCurrentMediaItem();
         if (currentItem == null || currentItem != selectedMediaItem) {
-            exoPlayer.setMediaItem(selectedMediaItem, /* resetPosition= */ true);
+            setSelectedMediaItem();
             exoPlayer.prepare();
         } else if (exoPlayer.getPlaybackState() == Player.STATE_IDLE) {
             exoPlayer.prepare();
         }
     }
 
+    /**
+     * ループの時刻表を切り替える
+     * 間隔なしならプレイヤーのリピートで途切れずにつなぎ（ずれは補正で吸収）、間隔ありなら終了ごとに次の開始を予約する
+     */
+    private void applyLoopClock(LoopClock clock) {
+        loopClock = clock;
+        if (exoPlayer != null) {
+            exoPlayer.setRepeatMode(clock != null && clock.isGapless() ? Player.REPEAT_MODE_ONE : Player.REPEAT_MODE_OFF);
+        }
+    }
+
+    /**
+     * 途中参加: 再生中のループに今の位置から加わる
+     * シークと準備にかかる時間だけ先の位置で一時停止して待ち、その位置が来る時刻にplay()だけを実行する
+     * ループの残りが短いか間隔中なら次のループの開始を待つ。加わった後の小さなずれは通常の補正で詰める
+     */
+    private void joinRunningLoop() {
+        TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+        long nowMs = timeSync.nowServerMillis();
+        long leadMs = CATCH_UP_LEAD_MS + driftController.getSeekLeadMs();
+        long joinAtMs = nowMs + leadMs;
+        long positionMs = loopClock.positionAt(joinAtMs);
+        if (positionMs < 0 || loopClock.getDurationMs() - positionMs < CATCH_UP_MIN_REMAINING_MS) {
+            long nextStartMs = loopClock.nextStartAt(nowMs);
+            scheduleNextLoop();
+            handler.postDelayed(showPlaybackViewRunnable, Math.max(0L, nextStartMs - nowMs - START_VIEW_LEAD_MS));
+            return;
+        }
+        if (!preparePlayback()) {
+            return;
+        }
+        exoPlayer.seekTo(positionMs);
+        handler.postDelayed(showPlaybackViewRunnable, Math.max(0L, leadMs - START_VIEW_LEAD_MS));
+        startScheduler.schedule(timeSync.toLocalNanos(joinAtMs * 1_000_000L), triggerPlaybackRunnable);
+        android.util.Log.d("SyncPlayerActivity", "Joining loop " + loopClock.loopIndexAt(joinAtMs) + " at " + positionMs
+                + "ms in " + leadMs + "ms");
+    }
+
+    // 次のループの開始時刻まで先頭で一時停止して待つ（コーディネーターとの通信なし）
+    private void scheduleNextLoop() {
+        if (!preparePlayback()) {
+            return;
+        }
+        TimeSyncManager timeSync = TimeSyncManager.getInstance(getApplicationContext());
+        long nextStartMs = loopClock.nextStartAt(timeSync.nowServerMillis());
+        startScheduler.schedule(timeSync.toLocalNanos(nextStartMs * 1_000_000L), triggerPlaybackRunnable);
+        android.util.Log.d("SyncPlayerActivity", "Next loop " + loopClock.loopIndexAt(nextStartMs) + " at " + nextStartMs);
+    }
+
     private final Player.Listener playerListener = new Player.Listener() {
+        @Override
+        public void onRenderedFirstFrame() {
+            firstFrameRendered = true;
+            checkPreparedForStart();
+        }
+
         @Override
         public void onPlaybackStateChanged(int playbackState) {
+            checkPreparedForStart();
+            if (playbackState == Player.STATE_READY && isCoordinator && groupService != null
+                    && exoPlayer != null && exoPlayer.getDuration() != C.TIME_UNSET) {
+                // ループの時刻表は開始時にコーディネーターの動画の長さで配布する
+                groupService.setMediaDuration(exoPlayer.getDuration());
+            }
             if (playbackState == Player.STATE_ENDED) {
-                android.util.Log.d("SyncPlayerActivity", "Playback ended, notifying group service");
+                android.util.Log.d("SyncPlayerActivity", "Playback ended (last drift "
+                        + driftController.getLastErrorMs() + "ms, seeks " + driftController.getSeekCount() + ")");
+                stopDriftCorrection();
                 if (exoPlayer != null) {
                     exoPlayer.pause();
                 }
-                if (groupService != null) {
-                    groupService.notifyLoopFinished();
+                if (loopClock != null) {
+                    scheduleNextLoop();
+                } else if (groupService != null) {
+                    groupService.notifyLoopFinished(playingStartId);
                 }
             }
         }
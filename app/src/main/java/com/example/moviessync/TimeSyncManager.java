@@ -4,24 +4,93 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.SystemClock;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Arrays;
 
+/**
+ * サーバ（コーディネーター）時刻への変換を管理する
+ * ローカル時刻はSystemClock.elapsedRealtimeNanos()（単調増加、NTPやキャリアによる時刻補正の影響を受けない）を基準とし、
+ * サーバ時刻 = ローカル時刻 + オフセット + ドリフト率 × 経過時間 で求める
+ * サンプルとモデルの単位はマイクロ秒
+ */
 public final class TimeSyncManager {
 	private static final String PREF = "time_sync_prefs";
-	private static final String KEY_OFFSET_MS = "offset_ms";
+	private static final String KEY_OFFSET_US = "offset_us";
+	private static final String KEY_WALL_OFFSET_MS = "offset_ms";
+	private static final String KEY_ERROR_US = "error_us";
 	private static final String KEY_HAS_SAMPLE = "has_sample";
+	private static final String KEY_DRIFT_RATE = "drift_rate";
+	private static final String KEY_REF_LOCAL_US = "ref_local_us";
+	private static final String KEY_SAVED_ELAPSED_MS = "saved_elapsed_ms";
+	private static final String KEY_SAVED_BOOT_WALL_MS = "saved_boot_wall_ms";
 	private static final double ALPHA = 0.25;
+	// バースト1回あたりの最大サンプル数
+	public static final int MAX_BURST_SAMPLES = 16;
+	// 通常メッセージの時刻ヘッダから得たサンプルをこの数ためたら推定に反映する
+	public static final int PASSIVE_BATCH_SAMPLES = 8;
+	// RTTの下限からこの幅（またはRTTのばらつきの半分）までのサンプルを採用する
+	private static final long MIN_DELAY_SPREAD_US = 2_000L;
+	// ドリフト推定に使う直近のバースト結果の数と、傾きを求めるのに必要な最小期間
+	private static final int DRIFT_WINDOW = 8;
+	private static final long MIN_DRIFT_SPAN_US = 60_000_000L;
+	// 水晶発振器のずれとしてあり得る上限（500ppm）
+	private static final double MAX_DRIFT_RATE = 500e-6;
+	// 予測との差がこれ以下なら推定が安定しているとみなす
+	private static final long STABLE_RESIDUAL_US = 2_000L;
+	// 予測との差がこれを超えたら（コーディネーターの再起動など）履歴を捨ててやり直す
+	private static final long RESET_RESIDUAL_US = 100_000L;
+	// 保存時と起動時刻（壁時計 - 経過時間）がこれ以上ずれていれば再起動をはさんだとみなす
+	private static final long SAME_BOOT_TOLERANCE_MS = 60_000L;
+	// 同じ起動中の推定がこの時間以内（または再同期の間隔内）なら、再接続時にバーストなしで使い続ける
+	private static final long WARM_START_MAX_AGE_MS = 60_000L;
+	public static final long MIN_RESYNC_INTERVAL_MS = 5_000L;
+	public static final long MAX_RESYNC_INTERVAL_MS = 5 * 60_000L;
 
 	private static volatile TimeSyncManager instance;
 
 	private final SharedPreferences prefs;
-	private final AtomicLong offsetMs = new AtomicLong(0);
+	// ローカル時刻→サーバ時刻の変換モデル（1回の読み出しで一貫した値を得るため不変オブジェクト）
+	private volatile ClockModel model;
+	private volatile long errorBoundUs = Long.MAX_VALUE;
 	private volatile boolean hasSample = false;
 
+	// ドリフト推定用の履歴（リングバッファ、ローカル時刻とオフセット）
+	private final long[] windowTimes = new long[DRIFT_WINDOW];
+	private final long[] windowOffsets = new long[DRIFT_WINDOW];
+	private int windowCount = 0;
+	private int windowNext = 0;
+	private long resyncIntervalMs = MIN_RESYNC_INTERVAL_MS;
+	private volatile long lastResidualUs = 0L;
+
+	// バースト中のサンプル（offset, delay）
+	private final long[] burstOffsets = new long[MAX_BURST_SAMPLES];
+	private final long[] burstDelays = new long[MAX_BURST_SAMPLES];
+	private int burstCount = 0;
+	// 時刻ヘッダから受動的に集めたサンプル（バーストとは別に保持する）
+	private final long[] passiveOffsets = new long[PASSIVE_BATCH_SAMPLES];
+	private final long[] passiveDelays = new long[PASSIVE_BATCH_SAMPLES];
+	private int passiveCount = 0;
+	// 最後に推定を反映したローカル時刻（μs）
+	private volatile long lastEstimateLocalUs = 0L;
+
 	private TimeSyncManager(Context context) {
 		this.prefs = context.getApplicationContext().getSharedPreferences(PREF, Context.MODE_PRIVATE);
+		model = wallClockModel(0L);
 		if (prefs.getBoolean(KEY_HAS_SAMPLE, false)) {
-			offsetMs.set(prefs.getLong(KEY_OFFSET_MS, 0L));
+			long savedElapsedMs = prefs.getLong(KEY_SAVED_ELAPSED_MS, Long.MAX_VALUE);
+			long savedBootWallMs = prefs.getLong(KEY_SAVED_BOOT_WALL_MS, 0L);
+			long elapsedMs = SystemClock.elapsedRealtime();
+			long bootWallMs = System.currentTimeMillis() - elapsedMs;
+			if (elapsedMs >= savedElapsedMs && Math.abs(bootWallMs - savedBootWallMs) < SAME_BOOT_TOLERANCE_MS) {
+				// 同じ起動中なら単調時計基準のモデルをそのまま使える
+				model = new ClockModel(prefs.getLong(KEY_OFFSET_US, 0L),
+					Double.longBitsToDouble(prefs.getLong(KEY_DRIFT_RATE, 0L)),
+					prefs.getLong(KEY_REF_LOCAL_US, 0L));
+				lastEstimateLocalUs = savedElapsedMs * 1_000L;
+			} else {
+				// 再起動をはさんだ場合は壁時計基準のオフセットから復元する
+				model = wallClockModel(prefs.getLong(KEY_WALL_OFFSET_MS, 0L));
+			}
+			errorBoundUs = prefs.getLong(KEY_ERROR_US, Long.MAX_VALUE);
 			hasSample = true;
 		}
 	}
@@ -37,35 +106,318 @@ public final class TimeSyncManager {
 		return instance;
 	}
 
+	// 時刻同期のタイムスタンプに使うローカル時刻（μs、単調増加）
+	public static long localMicros() {
+		return SystemClock.elapsedRealtimeNanos() / 1_000L;
+	}
+
+	/**
+	 * コーディネーター自身を時刻の基準にする
+	 * 壁時計は開始時に1度だけ読み、以降は単調時計で進める（途中の時刻補正の影響を受けない）
+	 */
+	public void useAsReference() {
+		model = wallClockModel(0L);
+		errorBoundUs = 0L;
+		hasSample = true;
+	}
+
+	// 壁時計 + wallOffsetMs を現在のローカル単調時計に対応づけたモデル
+	private static ClockModel wallClockModel(long wallOffsetMs) {
+		long localUs = localMicros();
+		long serverUs = (System.currentTimeMillis() + wallOffsetMs) * 1_000L;
+		return new ClockModel(serverUs - localUs, 0.0, localUs);
+	}
+
 	public long nowServerMillis() {
-		return System.currentTimeMillis() + offsetMs.get();
+		return nowServerNanos() / 1_000_000L;
 	}
 
+	// 再生スケジューラ用の高分解能なサーバ時刻（ns）
+	public long nowServerNanos() {
+		return toServerNanos(SystemClock.elapsedRealtimeNanos());
+	}
+
+	// ローカル時刻（elapsedRealtimeNanos）→サーバ時刻（ns）。前回の同期からの経過分はドリフト率で外挿する
+	public long toServerNanos(long localNanos) {
+		return model.toServerNanos(localNanos);
+	}
+
+	// サーバ時刻（ns）→ローカル時刻（elapsedRealtimeNanos）
+	public long toLocalNanos(long serverNanos) {
+		return model.toLocalNanos(serverNanos);
+	}
+
+	// クライアントの壁時計の時刻をサーバ時刻（ms）へ変換
 	public long toServerTime(long clientTimeMillis) {
-		return clientTimeMillis + offsetMs.get();
+		return nowServerMillis() + (clientTimeMillis - System.currentTimeMillis());
 	}
 
 	public boolean hasValidSample() {
 		return hasSample;
 	}
 
+	// 壁時計基準のオフセット（ms）
+	public long getOffsetMs() {
+		return nowServerMillis() - System.currentTimeMillis();
+	}
+
+	// 推定したクロックのずれ（ppm、正ならクライアントが遅れていく）
+	public double getDriftPpm() {
+		return model.rate * 1e6;
+	}
+
+	// 直近のバースト結果と、それまでのモデルによる予測との差（ms）
+	public long getLastResidualMs() {
+		return lastResidualUs / 1_000L;
+	}
+
+	// 次の再同期までの間隔（推定が不安定なら短く、収束したら長くなる）
+	public synchronized long getResyncIntervalMs() {
+		return resyncIntervalMs;
+	}
+
+	// 最後にサンプルから推定を反映してからの経過時間（ms）。未反映ならLong.MAX_VALUE
+	public long getMillisSinceLastEstimate() {
+		long last = lastEstimateLocalUs;
+		return last == 0L ? Long.MAX_VALUE : (localMicros() - last) / 1_000L;
+	}
+
+	/**
+	 * 再接続直後にバーストなしで使える推定があるか
+	 * 同じ起動中に（プロセスの再起動をはさんでも保存から復元して）求めた推定で、古すぎないもの
+	 */
+	public boolean isWarm() {
+		return hasSample && errorBoundUs != Long.MAX_VALUE
+			&& getMillisSinceLastEstimate() <= Math.max(WARM_START_MAX_AGE_MS, getResyncIntervalMs());
+	}
+
+	// 推定オフセットの誤差上限（ms、切り上げ）。未同期ならLong.MAX_VALUE
+	public long getErrorBoundMs() {
+		long error = errorBoundUs;
+		return error == Long.MAX_VALUE ? error : (error + 999L) / 1_000L;
+	}
+
 	// Member側で使用：サーバから受け取ったserverNowMillisとRTT(tRecv-tSend)からオフセットを更新
+	// （受信・送信時刻を返さない旧コーディネーター用）
 	public void updateOffsetSample(long tSendElapsedMs, long tRecvElapsedMs, long serverNowMillis) {
-		long rttMs = Math.max(0, tRecvElapsedMs - tSendElapsedMs);
-		long clientMidpoint = System.currentTimeMillis() - rttMs / 2;
-		long sampleOffset = serverNowMillis - clientMidpoint;
+		long rttUs = Math.max(0, tRecvElapsedMs - tSendElapsedMs) * 1_000L;
+		long localUs = localMicros();
+		long sampleOffset = serverNowMillis * 1_000L - (localUs - rttUs / 2);
 
-		long prev = offsetMs.get();
+		ClockModel current = model;
+		long prev = current.offsetAt(localUs);
 		long updated;
 		if (hasSample) {
 			updated = (long) Math.round(prev * (1.0 - ALPHA) + sampleOffset * ALPHA);
 		} else {
 			updated = sampleOffset;
 		}
-		offsetMs.set(updated);
+		apply(new ClockModel(updated, current.rate, localUs), rttUs / 2 + 1_000L);
+	}
+
+	// バーストを開始（以前のサンプルは破棄）
+	public synchronized void beginBurst() {
+		burstCount = 0;
+	}
+
+	/**
+	 * NTP方式の1サンプルを追加（μs）
+	 * t0: クライアント送信, t1: サーバ受信, t2: サーバ送信, t3: クライアント受信
+	 * サーバ内の処理時間(t2-t1)はRTTに含めない
+	 */
+	public synchronized void addBurstSample(long t0, long t1, long t2, long t3) {
+		if (burstCount >= MAX_BURST_SAMPLES) {
+			return;
+		}
+		burstOffsets[burstCount] = ((t1 - t0) + (t2 - t3)) / 2;
+		burstDelays[burstCount] = Math.max(0, (t3 - t0) - (t2 - t1));
+		burstCount++;
+	}
+
+	/**
+	 * 通常メッセージの時刻ヘッダから得たサンプルを追加（μs、意味はaddBurstSampleと同じ）
+	 * PASSIVE_BATCH_SAMPLES個たまるごとにバーストと同じフィルタで推定し、反映したらtrue
+	 */
+	public synchronized boolean addPassiveSample(long t0, long t1, long t2, long t3) {
+		passiveOffsets[passiveCount] = ((t1 - t0) + (t2 - t3)) / 2;
+		passiveDelays[passiveCount] = Math.max(0, (t3 - t0) - (t2 - t1));
+		passiveCount++;
+		if (passiveCount < PASSIVE_BATCH_SAMPLES) {
+			return false;
+		}
+		Estimate estimate = estimate(passiveOffsets, passiveDelays, passiveCount);
+		passiveCount = 0;
+		applyEstimate(estimate);
+		return true;
+	}
+
+	public synchronized int getBurstSampleCount() {
+		return burstCount;
+	}
+
+	/**
+	 * バーストのサンプルをフィルタして推定値を反映する。サンプルが無ければfalse
+	 */
+	public synchronized boolean finishBurst() {
+		Estimate estimate = estimate(burstOffsets, burstDelays, burstCount);
+		burstCount = 0;
+		if (estimate == null) {
+			return false;
+		}
+		applyEstimate(estimate);
+		return true;
+	}
+
+	// 推定値を履歴に加えてモデルを更新し、再同期間隔を調整する
+	private void applyEstimate(Estimate estimate) {
+		long now = localMicros();
+		long residual = hasSample ? estimate.offset - model.offsetAt(now) : Long.MAX_VALUE;
+		lastResidualUs = hasSample ? residual : 0L;
+		if (Math.abs(residual) > RESET_RESIDUAL_US) {
+			windowCount = 0;
+			windowNext = 0;
+		}
+
+		windowTimes[windowNext] = now;
+		windowOffsets[windowNext] = estimate.offset;
+		windowNext = (windowNext + 1) % DRIFT_WINDOW;
+		windowCount = Math.min(windowCount + 1, DRIFT_WINDOW);
+		apply(fit(windowTimes, windowOffsets, windowCount, now, estimate.offset), estimate.error);
+
+		// 予測が外れている間は間隔を半分に、当たっていれば倍にする
+		if (Math.abs(residual) > Math.max(STABLE_RESIDUAL_US, estimate.error)) {
+			resyncIntervalMs = Math.max(MIN_RESYNC_INTERVAL_MS, resyncIntervalMs / 2);
+		} else {
+			resyncIntervalMs = Math.min(MAX_RESYNC_INTERVAL_MS, resyncIntervalMs * 2);
+		}
+		lastEstimateLocalUs = now;
+	}
+
+	private void apply(ClockModel updated, long errorUs) {
+		model = updated;
+		errorBoundUs = errorUs;
 		hasSample = true;
-		prefs.edit().putLong(KEY_OFFSET_MS, updated).putBoolean(KEY_HAS_SAMPLE, true).apply();
+		long elapsedMs = SystemClock.elapsedRealtime();
+		long wallMs = System.currentTimeMillis();
+		prefs.edit()
+			.putLong(KEY_OFFSET_US, updated.offsetUs)
+			.putLong(KEY_DRIFT_RATE, Double.doubleToLongBits(updated.rate))
+			.putLong(KEY_REF_LOCAL_US, updated.refLocalUs)
+			.putLong(KEY_WALL_OFFSET_MS, nowServerMillis() - wallMs)
+			.putLong(KEY_SAVED_ELAPSED_MS, elapsedMs)
+			.putLong(KEY_SAVED_BOOT_WALL_MS, wallMs - elapsedMs)
+			.putLong(KEY_ERROR_US, errorUs)
+			.putBoolean(KEY_HAS_SAMPLE, true)
+			.apply();
 	}
-}
 
+	/**
+	 * server(t) = t + offsetUs + rate × (t - refLocalUs)
+	 * tはローカル単調時計（μs）
+	 */
+	static final class ClockModel {
+		final long offsetUs;
+		final double rate;
+		final long refLocalUs;
+
+		ClockModel(long offsetUs, double rate, long refLocalUs) {
+			this.offsetUs = offsetUs;
+			this.rate = rate;
+			this.refLocalUs = refLocalUs;
+		}
+
+		long offsetAt(long localMicros) {
+			return offsetUs + Math.round(rate * (localMicros - refLocalUs));
+		}
+
+		long toServerNanos(long localNanos) {
+			return localNanos + offsetUs * 1_000L + Math.round(rate * (localNanos - refLocalUs * 1_000L));
+		}
 
+		long toLocalNanos(long serverNanos) {
+			// 差分だけをdoubleで扱い、エポック基準の大きな値で精度を落とさない
+			long sinceRef = serverNanos - offsetUs * 1_000L - refLocalUs * 1_000L;
+			return refLocalUs * 1_000L + Math.round(sinceRef / (1.0 + rate));
+		}
+	}
+
+	/**
+	 * 履歴に最小二乗で直線をあてはめ、refLocalUs時点のオフセットとドリフト率を求める
+	 * 期間が短いうちは傾きが信用できないので、最新の推定値をそのまま使う
+	 */
+	static ClockModel fit(long[] times, long[] offsets, int count, long refLocalUs, long latestOffset) {
+		if (count < 3) {
+			return new ClockModel(latestOffset, 0.0, refLocalUs);
+		}
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		double meanT = 0;
+		double meanO = 0;
+		for (int i = 0; i < count; i++) {
+			minTime = Math.min(minTime, times[i]);
+			maxTime = Math.max(maxTime, times[i]);
+			meanT += times[i] - refLocalUs;
+			meanO += offsets[i] - latestOffset;
+		}
+		if (maxTime - minTime < MIN_DRIFT_SPAN_US) {
+			return new ClockModel(latestOffset, 0.0, refLocalUs);
+		}
+		meanT /= count;
+		meanO /= count;
+		double cov = 0;
+		double var = 0;
+		for (int i = 0; i < count; i++) {
+			double dt = (times[i] - refLocalUs) - meanT;
+			cov += dt * ((offsets[i] - latestOffset) - meanO);
+			var += dt * dt;
+		}
+		double rate = Math.max(-MAX_DRIFT_RATE, Math.min(MAX_DRIFT_RATE, cov / var));
+		long offset = latestOffset + Math.round(meanO - rate * meanT);
+		return new ClockModel(offset, rate, refLocalUs);
+	}
+
+	// オフセットの推定値と誤差上限（μs）
+	static final class Estimate {
+		final long offset;
+		final long error;
+		final int used;
+
+		Estimate(long offset, long error, int used) {
+			this.offset = offset;
+			this.error = error;
+			this.used = used;
+		}
+	}
+
+	/**
+	 * RTTの小さいサンプルを残して外れ値を除き、オフセットを推定する
+	 * RTTの下限 + max(MIN_DELAY_SPREAD_US, (RTT中央値 - 下限) / 2) を超えるサンプルは
+	 * キューイング遅延が片側に偏っている可能性が高いので捨てる
+	 */
+	static Estimate estimate(long[] offsets, long[] delays, int count) {
+		if (count <= 0) {
+			return null;
+		}
+		long[] sortedDelays = Arrays.copyOf(delays, count);
+		Arrays.sort(sortedDelays);
+		long minDelay = sortedDelays[0];
+		long medianDelay = sortedDelays[count / 2];
+		long limit = minDelay + Math.max(MIN_DELAY_SPREAD_US, (medianDelay - minDelay) / 2);
+
+		long[] accepted = new long[count];
+		int used = 0;
+		long maxAcceptedDelay = minDelay;
+		for (int i = 0; i < count; i++) {
+			if (delays[i] <= limit) {
+				accepted[used++] = offsets[i];
+				maxAcceptedDelay = Math.max(maxAcceptedDelay, delays[i]);
+			}
+		}
+		Arrays.sort(accepted, 0, used);
+		long offset = accepted[used / 2];
+		// 誤差上限: 片道遅延の非対称性(最大RTT/2) + 採用サンプル間のオフセットのばらつき
+		long dispersion = (accepted[used - 1] - accepted[0] + 1) / 2;
+		long error = (maxAcceptedDelay + 1) / 2 + dispersion;
+		return new Estimate(offset, error, used);
+	}
+}
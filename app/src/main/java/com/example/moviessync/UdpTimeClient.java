@@ -0,0 +1,82 @@
+package com.example.moviessync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.function.LongSupplier;
+
+/**
+ * メンバー用のUDP時刻同期クライアント（UdpTimeServerと対）
+ * 1回のexchangeで NTP方式の4つのタイムスタンプ（μs）を得る
+ */
+public class UdpTimeClient implements Closeable {
+    private final DatagramSocket socket;
+    // ローカル時刻（μs）
+    private final LongSupplier localClockMicros;
+    private final byte[] sendBytes = new byte[UdpTimeServer.REQUEST_SIZE];
+    private final byte[] receiveBytes = new byte[64];
+    private final ByteBuffer sendBuffer = ByteBuffer.wrap(sendBytes);
+    private final ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveBytes);
+    private final DatagramPacket sendPacket;
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveBytes, receiveBytes.length);
+    private short seq = 0;
+
+    // 直近のexchangeの結果（t0: クライアント送信, t1: サーバ受信, t2: サーバ送信, t3: クライアント受信）
+    public long t0;
+    public long t1;
+    public long t2;
+    public long t3;
+
+    public UdpTimeClient(String host, int port, int timeoutMs, LongSupplier localClockMicros) throws IOException {
+        this.localClockMicros = localClockMicros;
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        socket = new DatagramSocket();
+        NetworkUtils.markControl(socket);
+        socket.connect(address);
+        socket.setSoTimeout(timeoutMs);
+        sendPacket = new DatagramPacket(sendBytes, sendBytes.length, address);
+    }
+
+    /**
+     * 要求を1つ送り応答を待つ。タイムアウトや不正な応答ならfalse
+     */
+    public boolean exchange() throws IOException {
+        seq++;
+        sendBuffer.clear();
+        sendBuffer.put(UdpTimeServer.MAGIC).put(UdpTimeServer.VERSION).putShort(seq);
+        long sendUs = localClockMicros.getAsLong();
+        sendBuffer.putLong(sendUs);
+        socket.send(sendPacket);
+        try {
+            while (true) {
+                receivePacket.setLength(receiveBytes.length);
+                socket.receive(receivePacket);
+                long recvUs = localClockMicros.getAsLong();
+                if (receivePacket.getLength() < UdpTimeServer.RESPONSE_SIZE
+                        || receiveBuffer.get(0) != UdpTimeServer.MAGIC
+                        || receiveBuffer.getShort(2) != seq) {
+                    // 遅れて届いた前回分などは捨てる
+                    continue;
+                }
+                t0 = receiveBuffer.getLong(4);
+                t1 = receiveBuffer.getLong(12);
+                t2 = receiveBuffer.getLong(20);
+                t3 = recvUs;
+                return t0 == sendUs;
+            }
+        } catch (SocketTimeoutException | PortUnreachableException e) {
+            // 応答なし、またはコーディネーター側のポートが閉じている
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.moviessync;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.function.LongSupplier;
+
+/**
+ * コーディネーター用のUDP時刻応答サーバ
+ * TCPの制御ストリーム（Nagle、フラッシュ、他メッセージの後ろでの待ち）を通らないので、
+ * RTTにネットワーク経路以外の待ち時間が混ざりにくい
+ *
+ * パケット構成（ビッグエンディアン）:
+ *   要求 u8 magic, u8 version, u16 seq, i64 client_send_us
+ *   応答 u8 magic, u8 version, u16 seq, i64 client_send_us, i64 server_recv_us, i64 server_send_us
+ */
+public class UdpTimeServer implements Runnable {
+    private static final String TAG = "UdpTimeServer";
+    static final byte MAGIC = 'T';
+    static final byte VERSION = 1;
+    static final int REQUEST_SIZE = 12;
+    static final int RESPONSE_SIZE = 28;
+
+    private final int port;
+    // サーバ時刻（μs）
+    private final LongSupplier serverClockMicros;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+    private volatile DatagramChannel channel;
+    private volatile boolean running = false;
+
+    public UdpTimeServer(int port, LongSupplier serverClockMicros) {
+        this.port = port;
+        this.serverClockMicros = serverClockMicros;
+    }
+
+    @Override
+    public void run() {
+        try {
+            channel = DatagramChannel.open();
+            channel.socket().setReuseAddress(true);
+            NetworkUtils.markControl(channel.socket());
+            channel.bind(new InetSocketAddress(port));
+            running = true;
+            Log.d(TAG, "UDP time service on port " + port);
+            while (running) {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                long recvUs = serverClockMicros.getAsLong();
+                if (from == null) {
+                    continue;
+                }
+                buffer.flip();
+                if (buffer.remaining() < REQUEST_SIZE || buffer.get(0) != MAGIC || buffer.get(1) != VERSION) {
+                    continue;
+                }
+                short seq = buffer.getShort(2);
+                long clientSendUs = buffer.getLong(4);
+                buffer.clear();
+                buffer.put(MAGIC).put(VERSION).putShort(seq).putLong(clientSendUs).putLong(recvUs);
+                // 送信時刻は送信直前に打つ
+                buffer.putLong(serverClockMicros.getAsLong());
+                buffer.flip();
+                channel.send(buffer, from);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.e(TAG, "Error in UDP time service", e);
+            }
+        } finally {
+            running = false;
+            close();
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void stop() {
+        running = false;
+        close();
+    }
+
+    private void close() {
+        DatagramChannel c = channel;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing UDP time service", e);
+            }
+        }
+    }
+}
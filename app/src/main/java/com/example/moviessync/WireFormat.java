@@ -0,0 +1,9 @@
+package com.example.moviessync;
+
+/**
+ * 接続ごとのワイヤーフォーマット（CONNECT/CONNECTEDのハンドシェイクで決定）
+ */
+public enum WireFormat {
+    JSON,    // 1行1メッセージのJSON（従来形式）
+    BINARY   // 長さプレフィックス付きバイナリ（BinaryCodec）
+}
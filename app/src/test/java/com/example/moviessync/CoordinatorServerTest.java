@@ -0,0 +1,489 @@
+package com.example.moviessync;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * CoordinatorServerのループバックテスト（ハンドシェイクと時刻ヘッダ）
+ */
+public class CoordinatorServerTest {
+    private static final int MEMBERS = 3;
+
+    private final List<MemberConnection> members = new ArrayList<>();
+    private final List<MemberConnection> timedOut = new ArrayList<>();
+    private final List<MemberConnection> slowReported = new ArrayList<>();
+    private final List<MemberConnection> evicted = new ArrayList<>();
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+    private final CountDownLatch connected = new CountDownLatch(MEMBERS);
+    private final AtomicLong clock = new AtomicLong(1_000_000L);
+    private CoordinatorServer server;
+    private Thread serverThread;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new CoordinatorServer(port, new CoordinatorServer.Callback() {
+            @Override
+            public void onMemberConnected(MemberConnection member) {
+                synchronized (members) {
+                    members.add(member);
+                }
+                connected.countDown();
+            }
+
+            @Override
+            public void onMessage(MemberConnection member, MessageProtocol.Message message) {
+            }
+
+            @Override
+            public void onMemberDisconnected(MemberConnection member) {
+                disconnected.countDown();
+            }
+
+            @Override
+            public void onSlowMember(MemberConnection member, boolean evict) {
+                List<MemberConnection> list = evict ? evicted : slowReported;
+                synchronized (list) {
+                    list.add(member);
+                }
+            }
+
+            @Override
+            public void onMemberTimedOut(MemberConnection member) {
+                synchronized (timedOut) {
+                    timedOut.add(member);
+                }
+            }
+        });
+        // 読むたびに進むサーバ時刻
+        server.setTimeSource(new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return clock.addAndGet(10L);
+            }
+        });
+        serverThread = new Thread(server);
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        serverThread.join(1000);
+    }
+
+    @Test
+    public void sharedFrame_isStampedPerMember() throws Exception {
+        SocketChannel[] clients = new SocketChannel[MEMBERS];
+        FrameDecoder[] decoders = new FrameDecoder[MEMBERS];
+        for (int i = 0; i < MEMBERS; i++) {
+            clients[i] = connect();
+            decoders[i] = new FrameDecoder();
+            MessageProtocol.Message connectedMessage = handshake(clients[i], decoders[i]);
+            assertTrue(MessageProtocol.negotiatedTimeHeader(connectedMessage, WireFormat.BINARY));
+            // メンバーごとに異なる送信時刻を送る
+            ByteBuffer frame = MessageProtocol.encodeFrame(WireFormat.BINARY, MessageType.READY, null, true);
+            BinaryCodec.stampTime(frame, 0, 500L + i, 0L, 0L);
+            writeFully(clients[i], frame);
+        }
+        assertTrue(connected.await(2, TimeUnit.SECONDS));
+        // READYが処理されるのを待つ（同じI/Oスレッドなので、以降の書き込みは読み込みの後になる）
+        Thread.sleep(200);
+
+        ByteBuffer shared = null;
+        synchronized (members) {
+            for (MemberConnection member : members) {
+                assertEquals(MessageProtocol.frameKind(WireFormat.BINARY, true), member.getFrameKind());
+                if (shared == null) {
+                    shared = member.encode(MessageType.PLAY_COMMAND, new org.json.JSONObject().put("target_epoch_ms", 77L));
+                }
+                member.sendEncoded(shared);
+            }
+        }
+
+        long[] txs = new long[MEMBERS];
+        for (int i = 0; i < MEMBERS; i++) {
+            MessageProtocol.Message message = receive(clients[i], decoders[i]);
+            assertEquals(MessageType.PLAY_COMMAND, message.type);
+            assertEquals(77L, message.getLong("target_epoch_ms"));
+            // 自分の送信時刻がエコーされ、サーバの受信時刻・送信時刻が入っている
+            assertEquals(500L + i, message.originUs);
+            assertTrue(message.originRecvUs > 1_000_000L);
+            assertTrue(message.txUs > message.originRecvUs);
+            txs[i] = message.txUs;
+            clients[i].close();
+        }
+        // 共有フレーム本体は書き換えていない
+        assertEquals(0L, shared.getLong(BinaryCodec.HEADER_SIZE));
+        assertNotEquals(txs[0], txs[1]);
+    }
+
+    @Test
+    public void reconnectingMemberResumesItsSession() throws Exception {
+        SocketChannel first = connect();
+        MessageProtocol.Message firstConnected = handshake(first, new FrameDecoder(), 0L);
+        long token = firstConnected.getLong(MessageProtocol.KEY_SESSION_TOKEN);
+        assertTrue(token > 0L);
+        MemberConnection original = awaitMember(0);
+        original.getStartStats().add(12_000L);
+        original.setMediaProgress(7L, 100L, 100L);
+
+        // こちらが切断に気づく前に同じセッションで再接続しても、古い接続を閉じて引き継ぐ
+        SocketChannel second = connect();
+        MessageProtocol.Message secondConnected = handshake(second, new FrameDecoder(), token);
+        assertEquals(token, secondConnected.getLong(MessageProtocol.KEY_SESSION_TOKEN));
+        MemberConnection resumed = awaitMember(1);
+        assertTrue(resumed.isResumed());
+        assertEquals(original.getMemberId(), resumed.getMemberId());
+        assertFalse(original.isOpen());
+        assertEquals(12_000L, resumed.getStartStats().getLast());
+        assertTrue(resumed.hasMedia(7L));
+        assertTrue(disconnected.await(1, TimeUnit.SECONDS));
+
+        // 知らないセッションには新しいセッションを発行する
+        SocketChannel stranger = connect();
+        MessageProtocol.Message strangerConnected = handshake(stranger, new FrameDecoder(), token + 1);
+        long issued = strangerConnected.getLong(MessageProtocol.KEY_SESSION_TOKEN);
+        assertTrue(issued > 0L);
+        assertNotEquals(token, issued);
+        MemberConnection newcomer = awaitMember(2);
+        assertFalse(newcomer.isResumed());
+        assertNotEquals(original.getMemberId(), newcomer.getMemberId());
+        first.close();
+        second.close();
+        stranger.close();
+    }
+
+    @Test
+    public void malformedInputClosesOnlyThatMember() throws Exception {
+        // 知らない種類のJSONメッセージ（ハンドシェイク前）
+        SocketChannel unknownType = connect();
+        writeFully(unknownType, ByteBuffer.wrap("{\"type\":\"BOGUS\"}\n".getBytes("UTF-8")));
+        assertClosedByServer(unknownType);
+
+        // ヘッダより短い長さのバイナリフレーム（ハンドシェイク後）
+        SocketChannel truncated = connect();
+        handshake(truncated, new FrameDecoder());
+        awaitMember(0);
+        writeFully(truncated, ByteBuffer.wrap(new byte[]{0x00, 0x01, (byte) MessageType.READY.ordinal()}));
+        assertClosedByServer(truncated);
+        assertTrue(disconnected.await(1, TimeUnit.SECONDS));
+        assertTrue(server.isRunning());
+
+        // 他のメンバーは接続でき、開始指示も届く
+        SocketChannel client = connect();
+        FrameDecoder decoder = new FrameDecoder();
+        handshake(client, decoder);
+        MemberConnection member = awaitMember(1);
+        member.sendEncoded(member.encode(MessageType.PLAY_COMMAND, new JSONObject().put("start_id", 7)));
+        MessageProtocol.Message play = receive(client, decoder);
+        assertEquals(MessageType.PLAY_COMMAND, play.type);
+        assertEquals(7L, play.getLong("start_id"));
+        unknownType.close();
+        truncated.close();
+        client.close();
+    }
+
+    @Test
+    public void stalledMemberIsEvictedWithoutHoldingUpOthers() throws Exception {
+        final SocketChannel client = connect();
+        final FrameDecoder decoder = new FrameDecoder();
+        handshake(client, decoder);
+        MemberConnection normal = awaitMember(0);
+        // 読まないメンバー（双方の送受信バッファを小さくして、すぐ送信キューに溜まるようにする）
+        SocketChannel stalledClient = SocketChannel.open();
+        stalledClient.socket().setReceiveBufferSize(4096);
+        stalledClient.connect(new InetSocketAddress("127.0.0.1", port));
+        handshake(stalledClient, new FrameDecoder());
+        MemberConnection stalled = awaitMember(1);
+        stalled.channel.socket().setSendBufferSize(4096);
+
+        final int frames = 2_000;
+        final AtomicLong lastReceived = new AtomicLong(0L);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        java.util.concurrent.Future<Boolean> reader = executor.submit(new java.util.concurrent.Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+                while (lastReceived.get() < frames) {
+                    buffer.clear();
+                    if (client.read(buffer) < 0) {
+                        return false;
+                    }
+                    buffer.flip();
+                    MessageProtocol.Message message;
+                    while ((message = decoder.next(buffer)) != null) {
+                        if (message.type != MessageType.PLAY_COMMAND) {
+                            continue;
+                        }
+                        // 取りこぼしも順序の入れ替わりもない
+                        assertEquals(lastReceived.get() + 1, message.getLong("start_id"));
+                        lastReceived.set(message.getLong("start_id"));
+                    }
+                }
+                return true;
+            }
+        });
+        try {
+            StringBuilder pad = new StringBuilder();
+            for (int i = 0; i < 256; i++) {
+                pad.append('x');
+            }
+            for (int i = 1; i <= frames; i++) {
+                ByteBuffer frame = normal.encode(MessageType.PLAY_COMMAND,
+                        new JSONObject().put("start_id", i).put("pad", pad.toString()));
+                normal.sendEncoded(frame);
+                stalled.sendEncoded(frame);
+                // 読んでいるメンバーのキューは上限に届かないよう、送信が追いつくのを待つ
+                while (normal.getOutboundDepth() >= MemberConnection.OUTBOUND_HIGH_WATER / 2) {
+                    Thread.sleep(1);
+                }
+            }
+            assertEquals(Boolean.TRUE, reader.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(frames, lastReceived.get());
+        assertFalse(stalled.isOpen());
+        assertTrue(normal.isOpen());
+        assertTrue(stalled.getOutboundPeak() <= MemberConnection.OUTBOUND_LIMIT);
+        synchronized (slowReported) {
+            assertTrue(slowReported.contains(stalled));
+        }
+        synchronized (evicted) {
+            assertEquals(1, evicted.size());
+            assertSame(stalled, evicted.get(0));
+        }
+        stalledClient.close();
+        client.close();
+    }
+
+    @Test
+    public void linkHandshakeReturnsToBlockingReads() throws Exception {
+        server.setHeartbeat(100L, 3);
+        // サーバのbind待ち
+        connect().close();
+        CoordinatorLink link = CoordinatorLink.connect("127.0.0.1", port);
+        try {
+            assertTrue(link.handshake(0L));
+            assertTrue(link.getSessionToken() > 0L);
+            // ハンドシェイクの後は通常の（期限なしの）受信に戻る
+            MessageProtocol.Message message = link.receive();
+            assertNotNull(message);
+            assertEquals(MessageType.HEARTBEAT, message.type);
+        } finally {
+            link.close();
+        }
+    }
+
+    @Test
+    public void linkHandshakeGivesUpOnSilentCoordinator() throws Exception {
+        // 接続は受け付けるがCONNECTEDを返さない相手
+        try (ServerSocketChannel silent = ServerSocketChannel.open()) {
+            silent.bind(new InetSocketAddress("127.0.0.1", 0));
+            CoordinatorLink link = CoordinatorLink.connect("127.0.0.1", silent.socket().getLocalPort());
+            long startedAt = System.nanoTime();
+            try {
+                link.handshake(0L, 200L);
+                fail("handshake must time out");
+            } catch (SocketTimeoutException expected) {
+                long elapsedMs = (System.nanoTime() - startedAt) / 1_000_000L;
+                assertTrue(elapsedMs >= 150L && elapsedMs < 2_000L);
+            } finally {
+                link.close();
+            }
+        }
+    }
+
+    @Test
+    public void silentMemberIsEvictedWhileHeartbeatingMemberStays() throws Exception {
+        server.setHeartbeat(100L, 3);
+        SocketChannel silent = connect();
+        handshake(silent, new FrameDecoder());
+        SocketChannel alive = connect();
+        FrameDecoder decoder = new FrameDecoder();
+        MessageProtocol.Message connectedMessage = handshake(alive, decoder);
+        assertEquals(100L, connectedMessage.getLong(MessageProtocol.KEY_HEARTBEAT_MS));
+        assertEquals(3, connectedMessage.getInt(MessageProtocol.KEY_HEARTBEAT_MISSES));
+
+        // 片方だけHEARTBEATを送り続ける（もう片方はWi-Fiから外れた端末のように何も送らない）
+        int heartbeats = 0;
+        long deadline = System.currentTimeMillis() + 800L;
+        while (System.currentTimeMillis() < deadline) {
+            writeFully(alive, MessageProtocol.encodeFrame(WireFormat.BINARY, MessageType.HEARTBEAT, null));
+            alive.configureBlocking(false);
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            while (alive.read(buffer) > 0) {
+                buffer.flip();
+                MessageProtocol.Message message;
+                while ((message = decoder.next(buffer)) != null) {
+                    if (message.type == MessageType.HEARTBEAT) {
+                        heartbeats++;
+                    }
+                }
+                buffer.clear();
+            }
+            alive.configureBlocking(true);
+            Thread.sleep(50);
+        }
+
+        assertTrue(disconnected.await(1, TimeUnit.SECONDS));
+        synchronized (timedOut) {
+            assertEquals(1, timedOut.size());
+            assertFalse(timedOut.get(0).isOpen());
+        }
+        synchronized (members) {
+            assertEquals(2, members.size());
+            assertTrue(members.get(0).isOpen() ^ members.get(1).isOpen());
+            for (MemberConnection member : members) {
+                if (member.isOpen()) {
+                    assertTrue(member.getHeartbeatsReceived() >= 10);
+                    assertTrue(member.getMillisSinceLastSeen() < 300L);
+                }
+            }
+        }
+        assertTrue("heartbeats from coordinator: " + heartbeats, heartbeats >= 4);
+        silent.close();
+        alive.close();
+    }
+
+    @Test
+    public void controlAndMediaSocketsAreMarked() throws Exception {
+        // 制御用の接続はコーディネーター側でもDSCP EFで送る
+        SocketChannel client = connect();
+        handshake(client, new FrameDecoder());
+        MemberConnection member = awaitMember(0);
+        assertEquals(NetworkUtils.TRAFFIC_CLASS_CONTROL, member.channel.socket().getTrafficClass());
+
+        // 動画転送はDSCP CS1、時刻同期のUDPは制御用と同じ
+        try (SocketChannel bulk = SocketChannel.open();
+             DatagramSocket udp = new DatagramSocket()) {
+            NetworkUtils.markBulk(bulk.socket());
+            assertEquals(NetworkUtils.TRAFFIC_CLASS_BULK, bulk.socket().getTrafficClass());
+            NetworkUtils.markControl(udp);
+            assertEquals(NetworkUtils.TRAFFIC_CLASS_CONTROL, udp.getTrafficClass());
+        }
+        client.close();
+    }
+
+    private SocketChannel connect() throws IOException {
+        IOException last = null;
+        for (int i = 0; i < 20; i++) {
+            try {
+                return SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            } catch (IOException e) {
+                // サーバのbind待ち
+                last = e;
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+            }
+        }
+        throw last;
+    }
+
+    private MemberConnection awaitMember(int index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (members) {
+                if (members.size() > index) {
+                    return members.get(index);
+                }
+            }
+            Thread.sleep(10);
+        }
+        fail("member " + index + " did not connect");
+        return null;
+    }
+
+    private static MessageProtocol.Message handshake(SocketChannel channel, FrameDecoder decoder) throws IOException {
+        return handshake(channel, decoder, 0L);
+    }
+
+    private static MessageProtocol.Message handshake(SocketChannel channel, FrameDecoder decoder, long sessionToken) throws IOException {
+        JSONObject offer = MessageProtocol.wireOffer();
+        if (sessionToken != 0L) {
+            try {
+                offer.put(MessageProtocol.KEY_SESSION_TOKEN, sessionToken);
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+        writeFully(channel, MessageProtocol.encodeFrame(WireFormat.JSON, MessageType.CONNECT, offer));
+        MessageProtocol.Message message = receive(channel, decoder);
+        assertEquals(MessageType.CONNECTED, message.type);
+        decoder.setFormat(MessageProtocol.negotiatedFormat(message));
+        return message;
+    }
+
+    private static MessageProtocol.Message receive(SocketChannel channel, FrameDecoder decoder) throws IOException {
+        // 1バイトずつ読み、次のメッセージの分を読み過ぎないようにする
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new IOException("closed");
+            }
+            one.flip();
+            MessageProtocol.Message message = decoder.next(one);
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+
+    // コーディネーターが接続を閉じるまで（届いたデータは読み捨てる）
+    private static void assertClosedByServer(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        ByteBuffer sink = ByteBuffer.allocate(1024);
+        long deadline = System.currentTimeMillis() + 1000L;
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            while (System.currentTimeMillis() < deadline) {
+                selector.select(50L);
+                selector.selectedKeys().clear();
+                sink.clear();
+                if (channel.read(sink) < 0) {
+                    return;
+                }
+            }
+        }
+        fail("connection was not closed by the coordinator");
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+}
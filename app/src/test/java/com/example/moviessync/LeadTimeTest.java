@@ -0,0 +1,72 @@
+package com.example.moviessync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 計測値からのリードタイム計算のテスト
+ */
+public class LeadTimeTest {
+
+    private static LatencyStats stats(long... samplesUs) {
+        LatencyStats stats = new LatencyStats(samplesUs.length);
+        for (long sample : samplesUs) {
+            stats.add(sample);
+        }
+        return stats;
+    }
+
+    @Test
+    public void percentileUsesNearestRankOverRecentSamples() {
+        LatencyStats stats = new LatencyStats(4);
+        assertEquals(-1L, stats.percentile(95));
+        stats.add(100L);
+        stats.add(400L);
+        stats.add(200L);
+        stats.add(300L);
+        assertEquals(200L, stats.percentile(50));
+        assertEquals(400L, stats.percentile(95));
+        assertEquals(100L, stats.percentile(25));
+
+        // 容量を超えたら古いものから捨てる
+        stats.add(10L);
+        assertEquals(4, stats.getCount());
+        assertEquals(10L, stats.getLast());
+        assertEquals(10L, stats.percentile(25));
+        assertEquals(200L, stats.percentile(50));
+    }
+
+    @Test
+    public void slowestDeviceDeterminesLead() {
+        LeadTime lead = new LeadTime.Calculator()
+                .add("self", null, stats(20_000L, 30_000L))
+                .add("near", stats(10_000L, 12_000L), stats(40_000L))
+                .add("far", stats(200_000L, 300_000L), stats(150_000L))
+                .build();
+
+        // far: 300ms / 2 + 150ms = 300ms → 50ms + 300ms * 1.5 = 500ms
+        assertEquals("far", lead.slowestName);
+        assertEquals(300_000L, lead.slowestRttUs);
+        assertEquals(150_000L, lead.slowestStartUs);
+        assertEquals(500L, lead.leadMs);
+        assertEquals(3, lead.deviceCount);
+        assertEquals(0, lead.defaultedCount);
+    }
+
+    @Test
+    public void unmeasuredDevicesUseDefaultsAndLeadIsClamped() {
+        LeadTime unmeasured = new LeadTime.Calculator()
+                .add("legacy", new LatencyStats(4), new LatencyStats(4))
+                .build();
+        assertEquals(1, unmeasured.defaultedCount);
+        assertEquals(LeadTime.DEFAULT_RTT_US, unmeasured.slowestRttUs);
+        assertEquals(LeadTime.DEFAULT_START_US, unmeasured.slowestStartUs);
+
+        LeadTime fast = new LeadTime.Calculator().add("self", null, stats(1_000L)).build();
+        assertEquals(LeadTime.MIN_LEAD_US / 1_000L, fast.leadMs);
+
+        LeadTime slow = new LeadTime.Calculator().add("slow", stats(10_000_000L), stats(10_000_000L)).build();
+        assertEquals(LeadTime.MAX_LEAD_US / 1_000L, slow.leadMs);
+    }
+}
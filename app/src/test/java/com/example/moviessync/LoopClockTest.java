@@ -0,0 +1,48 @@
+package com.example.moviessync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * ループの時刻表のテスト
+ */
+public class LoopClockTest {
+
+    @Test
+    public void gaplessLoopsFollowEachOther() {
+        LoopClock clock = new LoopClock(10_000L, 3_000L, 0L);
+
+        assertTrue(clock.isGapless());
+        assertEquals(-1L, clock.positionAt(9_999L));
+        assertEquals(0L, clock.positionAt(10_000L));
+        assertEquals(2_999L, clock.positionAt(12_999L));
+        assertEquals(0L, clock.positionAt(13_000L));
+        assertEquals(1L, clock.loopIndexAt(13_000L));
+        assertEquals(13_000L, clock.nextStartAt(13_000L));
+        assertEquals(16_000L, clock.nextStartAt(13_001L));
+    }
+
+    @Test
+    public void gapBetweenLoopsHasNoPosition() {
+        LoopClock clock = new LoopClock(0L, 3_000L, 1_000L);
+
+        assertEquals(4_000L, clock.getPeriodMs());
+        assertEquals(-1L, clock.positionAt(3_500L));
+        assertEquals(500L, clock.positionAt(4_500L));
+        assertEquals(4_000L, clock.nextStartAt(3_000L));
+        assertEquals(0L, clock.nextStartAt(-5_000L));
+        assertEquals(2L, clock.loopIndexAt(8_000L));
+    }
+
+    @Test
+    public void scheduleShiftedByWholeLoopsIsTheSame() {
+        LoopClock clock = new LoopClock(10_000L, 3_000L, 1_000L);
+
+        assertTrue(clock.isSameScheduleAs(new LoopClock(22_000L, 3_000L, 1_000L)));
+        assertTrue(clock.isSameScheduleAs(new LoopClock(2_000L, 3_000L, 1_000L)));
+        assertFalse(clock.isSameScheduleAs(new LoopClock(22_500L, 3_000L, 1_000L)));
+        assertFalse(clock.isSameScheduleAs(new LoopClock(14_000L, 3_000L, 500L)));
+        assertFalse(clock.isSameScheduleAs(null));
+    }
+}
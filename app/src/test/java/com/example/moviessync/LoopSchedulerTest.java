@@ -0,0 +1,58 @@
+package com.example.moviessync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * ループ開始要求のまとめ方のテスト
+ */
+public class LoopSchedulerTest {
+
+    @Test
+    public void loopEndStormYieldsOneStart() {
+        LoopScheduler scheduler = new LoopScheduler(300L);
+        int loop = scheduler.issue(0L, 0L);
+
+        int scheduled = 0;
+        for (int i = 0; i < 50; i++) {
+            if (scheduler.request(loop, 10_000L + i)) {
+                scheduled++;
+            }
+        }
+        assertEquals(1, scheduled);
+        assertEquals(49, scheduler.getCoalescedCount());
+        assertTrue(scheduler.takePending());
+        assertEquals(loop + 1, scheduler.issue(10_300L, 0L));
+    }
+
+    @Test
+    public void staleLoopIdsAreIgnored() {
+        LoopScheduler scheduler = new LoopScheduler(300L);
+        int first = scheduler.issue(0L, 0L);
+        int second = scheduler.issue(1_000L, 0L);
+
+        // 遅れて届いた前のループのLOOP_ENDでは開始しない
+        assertFalse(scheduler.request(first, 2_000L));
+        assertEquals(1, scheduler.getStaleCount());
+        assertTrue(scheduler.request(second, 2_000L));
+    }
+
+    @Test
+    public void unnumberedRequestsDuringStartJoinIt() {
+        LoopScheduler scheduler = new LoopScheduler(300L);
+        scheduler.issue(0L, 5_000L);
+        assertFalse(scheduler.request(0, 1_000L));
+
+        scheduler.setBusyUntil(2_000L);
+        assertTrue(scheduler.request(0, 2_500L));
+    }
+
+    @Test
+    public void immediateStartCancelsPendingRequest() {
+        LoopScheduler scheduler = new LoopScheduler(300L);
+        assertTrue(scheduler.request(0, 0L));
+        scheduler.issue(100L, 0L);
+        assertFalse(scheduler.takePending());
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.moviessync;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * メンバーの動画の保存場所（ハッシュでの検索と容量の上限）のテスト
+ */
+public class MediaStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[size]);
+        }
+    }
+
+    private File store(MediaStore store, String hash, int size) throws IOException {
+        assertTrue(store.reserve(hash, size));
+        write(store.partFile(hash), size);
+        return store.commit(hash);
+    }
+
+    @Test
+    public void committedMediaIsFoundByHash() throws Exception {
+        MediaStore store = new MediaStore(folder.getRoot(), 1_000L);
+        assertNull(store.get("aa"));
+
+        write(store.partFile("aa"), 100);
+        assertNull(store.get("aa"));
+        File file = store.commit("aa");
+        assertEquals(file, store.get("aa"));
+        assertEquals(100L, store.get("aa").length());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedToStayWithinBudget() throws Exception {
+        MediaStore store = new MediaStore(folder.getRoot(), 300L);
+        store(store, "aa", 100);
+        store(store, "bb", 100);
+        store(store, "cc", 100);
+        // aaを使ったので、次に消えるのはbb
+        assertNotNull(store.get("aa"));
+
+        store(store, "dd", 100);
+        assertNull(store.get("bb"));
+        assertNotNull(store.get("aa"));
+        assertNotNull(store.get("cc"));
+        assertEquals(300L, store.getUsedBytes());
+    }
+
+    @Test
+    public void partialMediaCountsTowardsItsOwnReservation() throws Exception {
+        MediaStore store = new MediaStore(folder.getRoot(), 200L);
+        store(store, "aa", 100);
+        write(store.partFile("bb"), 60);
+
+        // bbの残り40バイトは上限内に収まるので、aaは消さない
+        assertTrue(store.reserve("bb", 100));
+        assertNotNull(store.get("aa"));
+        assertTrue(store.partFile("bb").isFile());
+
+        assertFalse(store.reserve("cc", 500));
+        assertNull(store.get("aa"));
+    }
+
+    @Test
+    public void overBudgetMediaIsReceivedOutsideTheCache() throws Exception {
+        MediaStore store = new MediaStore(folder.getRoot(), 200L);
+        store(store, "aa", 100);
+
+        // 上限を超える動画は古い動画を消しても収まらないので、上限の外で受信する
+        assertFalse(store.reserve("bb", 500));
+        File transientFile = store.transientFile("bb");
+        write(transientFile, 500);
+        assertEquals(0L, store.getUsedBytes());
+        assertNull(store.get("bb"));
+
+        // 上限の外の動画は容量の計算にも追い出しにも関わらない
+        store(store, "cc", 100);
+        store(store, "dd", 100);
+        assertEquals(200L, store.getUsedBytes());
+        assertTrue(transientFile.isFile());
+
+        // 同じ動画をもう一度受信するときは最初から書く
+        assertFalse(store.transientFile("bb").exists());
+        write(transientFile, 500);
+        store.discardTransient();
+        assertFalse(transientFile.exists());
+        assertNotNull(store.get("cc"));
+        assertNotNull(store.get("dd"));
+    }
+}
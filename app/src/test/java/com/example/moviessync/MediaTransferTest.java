@@ -0,0 +1,239 @@
+package com.example.moviessync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * 動画配信（MediaServer/MediaReceiver）のループバックテスト
+ */
+public class MediaTransferTest {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private MediaServer server;
+    private byte[] content;
+    private SharedMedia media;
+    private final List<PartialMedia> partials = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        server = new MediaServer(0, executor);
+        server.bind();
+        executor.execute(server);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        for (PartialMedia partial : partials) {
+            partial.close();
+        }
+        if (media != null) {
+            media.close();
+        }
+        executor.shutdownNow();
+    }
+
+    private void publish(int size) throws IOException {
+        content = new byte[size];
+        new Random(42).nextBytes(content);
+        File source = folder.newFile("source.mp4");
+        Files.write(source.toPath(), content);
+        media = SharedMedia.open("source.mp4", new RandomAccessFile(source, "r").getChannel(), CHUNK_SIZE);
+        server.publish(media);
+    }
+
+    private MediaReceiver receiver(File file) throws IOException {
+        return receiver(file, media.getMediaId(), server);
+    }
+
+    private MediaReceiver receiver(File file, long mediaId, MediaServer... sources) throws IOException {
+        PartialMedia target = PartialMedia.open(mediaId, file, content.length, CHUNK_SIZE);
+        partials.add(target);
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (MediaServer source : sources) {
+            addresses.add(new InetSocketAddress("127.0.0.1", source.getLocalPort()));
+        }
+        return new MediaReceiver(addresses, target, null);
+    }
+
+    private Future<Boolean> receiveAsync(final MediaReceiver receiver) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return receiver.receive();
+            }
+        });
+    }
+
+    @Test
+    public void receivesWholeFileWithPartialLastChunk() throws Exception {
+        publish(CHUNK_SIZE * 5 + 123);
+        File file = new File(folder.getRoot(), "received.mp4");
+
+        assertTrue(receiver(file).receive());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(6, media.getChunkCount());
+    }
+
+    @Test
+    public void contentHashIsSha256OfWholeFile() throws Exception {
+        // マップする範囲（64チャンク）をまたぐ大きさ
+        publish(CHUNK_SIZE * 70 + 5);
+        java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-256");
+        assertEquals(SharedMedia.toHex(digest.digest(content)), media.getContentHash());
+        assertEquals(SharedMedia.mediaIdOf(media.getContentHash()), media.getMediaId());
+        assertTrue(media.getMediaId() > 0);
+    }
+
+    @Test
+    public void resumesFromLastCompleteChunk() throws Exception {
+        publish(CHUNK_SIZE * 8);
+        File file = new File(folder.getRoot(), "partial.mp4");
+        // 前回の受信で3チャンクと少しだけ書き込まれていた
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content, 0, CHUNK_SIZE * 3 + 100);
+        }
+
+        MediaReceiver receiver = receiver(file);
+        assertTrue(receiver.receive());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertBytesSent(CHUNK_SIZE * 5L, server);
+    }
+
+    @Test
+    public void unknownMediaIsNotReceived() throws Exception {
+        publish(CHUNK_SIZE);
+        MediaReceiver receiver = receiver(new File(folder.getRoot(), "other.mp4"), media.getMediaId() ^ 1L, server);
+        Future<Boolean> result = receiveAsync(receiver);
+        Thread.sleep(200);
+        receiver.cancel();
+        assertFalse(result.get());
+    }
+
+    @Test
+    public void memberRelaysChunksWhileStillReceiving() throws Exception {
+        publish(CHUNK_SIZE * 40 + 7);
+        // A: コーディネーターから受信しながら自分の配信サーバで公開する
+        File fileA = new File(folder.getRoot(), "a.mp4");
+        MediaReceiver receiverA = receiver(fileA);
+        MediaServer relay = new MediaServer(0, executor);
+        relay.bind();
+        executor.execute(relay);
+        relay.publish(partials.get(0));
+        try {
+            // B: Aから受信する（Aが先に進むのを待ちながら）
+            File fileB = new File(folder.getRoot(), "b.mp4");
+            Future<Boolean> resultB = receiveAsync(receiver(fileB, media.getMediaId(), relay, server));
+            Future<Boolean> resultA = receiveAsync(receiverA);
+
+            assertTrue(resultA.get());
+            assertTrue(resultB.get());
+            assertArrayEquals(content, Files.readAllBytes(fileB.toPath()));
+            assertBytesSent(content.length, relay);
+            assertBytesSent(content.length, server);
+        } finally {
+            relay.stop();
+        }
+    }
+
+    @Test
+    public void playerReadsWhileMediaIsStillReceiving() throws Exception {
+        publish(CHUNK_SIZE * 12 + 9);
+        File file = new File(folder.getRoot(), "stream.mp4");
+        MediaReceiver receiver = receiver(file);
+        final PartialMedia target = partials.get(0);
+        // 受信より先に読み始め、届いていない位置では届くまで待つ
+        Future<byte[]> played = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                ByteBuffer buffer = ByteBuffer.allocate(content.length);
+                int read;
+                while ((read = target.read(buffer.position(), buffer, 5_000L)) >= 0) {
+                    assertTrue(read > 0 || !buffer.hasRemaining());
+                    if (!buffer.hasRemaining()) {
+                        break;
+                    }
+                }
+                return buffer.array();
+            }
+        });
+        Thread.sleep(100);
+        assertTrue(receiveAsync(receiver).get());
+        assertArrayEquals(content, played.get());
+        assertEquals(-1, target.read(content.length, ByteBuffer.allocate(1), 0L));
+    }
+
+    @Test
+    public void fallsBackToCoordinatorWhenRelayIsGone() throws Exception {
+        publish(CHUNK_SIZE * 4);
+        MediaServer relay = new MediaServer(0, executor);
+        relay.bind();
+        relay.stop();
+
+        File file = new File(folder.getRoot(), "fallback.mp4");
+        assertTrue(receiver(file, media.getMediaId(), relay, server).receive());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void relayTreeDepthGrowsLogarithmically() {
+        assertEquals(0, SwarmPlan.parentOf(1, 2));
+        assertEquals(0, SwarmPlan.parentOf(2, 2));
+        assertEquals(1, SwarmPlan.parentOf(3, 2));
+        assertEquals(2, SwarmPlan.parentOf(6, 2));
+        assertEquals(1, SwarmPlan.depthOf(2, 2));
+        assertEquals(5, SwarmPlan.depthOf(60, 2));
+        assertEquals(6, SwarmPlan.depthOf(120, 2));
+    }
+
+    @Test
+    public void servesManyMembersConcurrently() throws Exception {
+        publish(8 * 1024 * 1024);
+        int members = 8;
+        Future<?>[] results = new Future<?>[members];
+        File[] files = new File[members];
+        for (int i = 0; i < members; i++) {
+            files[i] = new File(folder.getRoot(), "member" + i + ".mp4");
+            results[i] = receiveAsync(receiver(files[i]));
+        }
+        // 同時に受信しても、全員が同じ内容を最後まで受け取る
+        for (int i = 0; i < members; i++) {
+            assertEquals(Boolean.TRUE, results[i].get());
+            assertArrayEquals(content, Files.readAllBytes(files[i].toPath()));
+        }
+    }
+
+    // 送信数は最後のチャンクを書き終えてから数えるので、受信側が先に終わっても追いつくのを待つ
+    private static void assertBytesSent(long expected, MediaServer mediaServer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (mediaServer.getBytesSent() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, mediaServer.getBytesSent());
+    }
+}
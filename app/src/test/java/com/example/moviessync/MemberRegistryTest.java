@@ -0,0 +1,146 @@
+package com.example.moviessync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * MemberRegistryのテスト（メンバーはループバックの接続で作る）
+ */
+public class MemberRegistryTest {
+    private ServerSocketChannel listener;
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        listener.close();
+    }
+
+    @Test
+    public void snapshotIsOrderedByIdAndReusedUntilChanged() throws Exception {
+        MemberRegistry registry = new MemberRegistry();
+        MemberConnection third = member(3);
+        MemberConnection first = member(1);
+        MemberConnection second = member(2);
+        registry.add(third);
+        registry.add(first);
+        registry.add(second);
+
+        List<MemberConnection> snapshot = registry.snapshot();
+        assertEquals(3, snapshot.size());
+        assertSame(first, snapshot.get(0));
+        assertSame(second, snapshot.get(1));
+        assertSame(third, snapshot.get(2));
+        // 変更がなければ同じ一覧を使い回す
+        assertSame(snapshot, registry.snapshot());
+
+        assertTrue(registry.remove(second));
+        assertNull(registry.get(2));
+        assertSame(third, registry.get(3));
+        List<MemberConnection> after = registry.snapshot();
+        assertEquals(2, after.size());
+        assertSame(third, after.get(1));
+        // 作った一覧は削除の影響を受けない
+        assertEquals(3, snapshot.size());
+        try {
+            after.add(second);
+            fail("snapshot must be read-only");
+        } catch (UnsupportedOperationException expected) {
+            // 期待どおり
+        }
+    }
+
+    @Test
+    public void staleConnectionDoesNotRemoveItsReplacement() throws Exception {
+        MemberRegistry registry = new MemberRegistry();
+        MemberConnection stale = member(5);
+        MemberConnection replacement = member(5);
+        registry.add(stale);
+        registry.add(replacement);
+
+        assertFalse(registry.remove(stale));
+        assertSame(replacement, registry.get(5));
+        assertEquals(1, registry.size());
+        assertSame(replacement, registry.snapshot().get(0));
+    }
+
+    @Test
+    public void snapshotsStayConsistentUnderChurn() throws Exception {
+        final MemberRegistry registry = new MemberRegistry();
+        final MemberConnection[] pool = new MemberConnection[16];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = member(i + 1);
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (running.get()) {
+                        int previousId = 0;
+                        for (MemberConnection member : registry.snapshot()) {
+                            // 一覧の途中で変更されても、ID順のまま最後まで回せる
+                            assertTrue(member.getMemberId() > previousId);
+                            previousId = member.getMemberId();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        reader.start();
+        for (int round = 0; round < 20_000; round++) {
+            MemberConnection member = pool[round % pool.length];
+            if ((round / pool.length) % 2 == 0) {
+                registry.add(member);
+            } else {
+                registry.remove(member);
+            }
+        }
+        running.set(false);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(failure.get());
+
+        // 最後の変更まで反映された一覧になる
+        assertEquals(registry.size(), registry.snapshot().size());
+        for (MemberConnection member : registry.snapshot()) {
+            assertSame(member, registry.get(member.getMemberId()));
+        }
+    }
+
+    private MemberConnection member(int memberId) throws IOException {
+        SocketChannel channel = SocketChannel.open(listener.getLocalAddress());
+        channels.add(channel);
+        MemberConnection member = new MemberConnection(null, channel);
+        member.setMemberId(memberId);
+        return member;
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.moviessync;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * ワイヤーフォーマット（JSON行/バイナリ）のエンコード・デコードのテスト
+ */
+public class MessageProtocolTest {
+
+    @Test
+    public void binaryFields_roundTrip() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        BinaryCodec.encode(buffer, MessageType.PLAY_COMMAND, new long[]{1735000000000L}, 1);
+        buffer.flip();
+
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setFormat(WireFormat.BINARY);
+        MessageProtocol.Message message = decoder.next(buffer);
+        assertEquals(MessageType.PLAY_COMMAND, message.type);
+        assertEquals(1735000000000L, message.getLong("target_epoch_ms"));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void binaryJson_keepsKeysOutsideSchema() throws Exception {
+        JSONObject data = new JSONObject();
+        data.put("target_epoch_ms", 42L);
+        data.put("note", "hello");
+        ByteBuffer frame = MessageProtocol.encodeFrame(WireFormat.BINARY, MessageType.PLAY_COMMAND, data);
+
+        MessageProtocol.Message message = BinaryCodec.decode(frame);
+        assertEquals(42L, message.getLong("target_epoch_ms"));
+        assertEquals("hello", message.getString("note"));
+    }
+
+    @Test
+    public void playCommand_mediaIdAppendedToSchema() throws Exception {
+        JSONObject data = new JSONObject();
+        data.put("target_epoch_ms", 1_735_000_000_000L);
+        data.put("start_id", 0);
+        data.put("loop_duration_ms", 300_000L);
+        data.put("loop_gap_ms", 0L);
+        data.put("media_id", 42L);
+        ByteBuffer frame = MessageProtocol.encodeFrame(WireFormat.BINARY, MessageType.PLAY_COMMAND, data);
+        // すべて固定長フィールドに収まり、JSONの残りは付かない
+        assertEquals(BinaryCodec.HEADER_SIZE + 5 * 8, frame.remaining());
+
+        MessageProtocol.Message message = BinaryCodec.decode(frame);
+        assertEquals(42L, message.getLong("media_id"));
+        assertEquals(300_000L, message.getLong("loop_duration_ms"));
+
+        // 旧コーディネーターのPLAY_COMMANDには動画の指定がない
+        ByteBuffer old = ByteBuffer.allocate(64);
+        BinaryCodec.encode(old, MessageType.PLAY_COMMAND, new long[]{1_735_000_000_000L, 3L, 300_000L, 0L}, 4);
+        old.flip();
+        assertEquals(0L, BinaryCodec.decode(old).getLong("media_id"));
+    }
+
+    @Test
+    public void decoder_reassemblesSplitFrames() throws Exception {
+        ByteBuffer stream = ByteBuffer.allocate(256);
+        BinaryCodec.encode(stream, MessageType.SYNC_TIME, new long[]{7L}, 1);
+        BinaryCodec.encode(stream, MessageType.LOOP_END, new long[0], 0);
+        stream.flip();
+
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setFormat(WireFormat.BINARY);
+        int received = 0;
+        // 1バイトずつ届いても同じメッセージ列になること
+        while (stream.hasRemaining()) {
+            ByteBuffer one = ByteBuffer.wrap(new byte[]{stream.get()});
+            MessageProtocol.Message message = decoder.next(one);
+            if (message != null) {
+                if (received == 0) {
+                    assertEquals(MessageType.SYNC_TIME, message.type);
+                    assertEquals(7L, message.getLong("server_now"));
+                } else {
+                    assertEquals(MessageType.LOOP_END, message.type);
+                }
+                received++;
+            }
+        }
+        assertEquals(2, received);
+    }
+
+    @Test
+    public void timeHeader_stampedAfterEncoding() throws Exception {
+        JSONObject data = new JSONObject();
+        data.put("target_epoch_ms", 42L);
+        ByteBuffer frame = MessageProtocol.encodeFrame(WireFormat.BINARY, MessageType.PLAY_COMMAND, data, true);
+        assertTrue(BinaryCodec.hasTimeHeader(frame));
+        assertFalse(BinaryCodec.hasTimeHeader(MessageProtocol.encodeFrame(WireFormat.BINARY, MessageType.PLAY_COMMAND, data)));
+
+        BinaryCodec.stampTime(frame, 0, 3_000L, 2_000L, 1_000L);
+        MessageProtocol.Message message = BinaryCodec.decode(frame);
+        assertTrue(message.hasTimeHeader());
+        assertEquals(3_000L, message.txUs);
+        assertEquals(2_000L, message.originUs);
+        assertEquals(1_000L, message.originRecvUs);
+        assertEquals(42L, message.getLong("target_epoch_ms"));
+    }
+
+    @Test
+    public void negotiation_fallsBackToJsonForOldPeers() throws Exception {
+        assertEquals(WireFormat.JSON, MessageProtocol.negotiatedFormat(new MessageProtocol.Message(MessageType.CONNECT, null)));
+        MessageProtocol.Message offer = MessageProtocol.decode(MessageProtocol.encode(MessageType.CONNECT, MessageProtocol.wireOffer()));
+        assertEquals(WireFormat.BINARY, MessageProtocol.negotiatedFormat(offer));
+    }
+
+    @Test
+    public void decoder_switchesFormatAfterHandshakeLine() throws Exception {
+        ByteBuffer stream = ByteBuffer.allocate(256);
+        stream.put(MessageProtocol.encodeFrame(WireFormat.JSON, MessageType.CONNECTED, MessageProtocol.wireOffer()));
+        BinaryCodec.encode(stream, MessageType.PLAY_COMMAND, new long[]{99L}, 1);
+        stream.flip();
+
+        FrameDecoder decoder = new FrameDecoder();
+        MessageProtocol.Message connected = decoder.next(stream);
+        assertEquals(MessageType.CONNECTED, connected.type);
+        decoder.setFormat(MessageProtocol.negotiatedFormat(connected));
+        MessageProtocol.Message play = decoder.next(stream);
+        assertEquals(99L, play.getLong("target_epoch_ms"));
+    }
+
+    /**
+     * PLAY_COMMAND 1件あたりのエンコード+デコードの割り当て量は、バイナリ形式の方がJSONより少ない
+     */
+    @Test
+    public void binaryFormat_allocatesLessThanJson() throws Exception {
+        int iterations = 20_000;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        long[] values = new long[1];
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.setFormat(WireFormat.BINARY);
+
+        for (int round = 0; round < 2; round++) { // 1回目はウォームアップ
+            long jsonBytes = allocatedBytes();
+            long sink = 0;
+            for (int i = 0; i < iterations; i++) {
+                JSONObject data = new JSONObject();
+                data.put("target_epoch_ms", 1735000000000L + i);
+                String line = MessageProtocol.encode(MessageType.PLAY_COMMAND, data);
+                sink += MessageProtocol.decode(line).getLong("target_epoch_ms");
+            }
+            jsonBytes = allocatedBytes() - jsonBytes;
+
+            long binaryBytes = allocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                values[0] = 1735000000000L + i;
+                buffer.clear();
+                BinaryCodec.encode(buffer, MessageType.PLAY_COMMAND, values, 1);
+                buffer.flip();
+                sink -= decoder.next(buffer).getLong("target_epoch_ms");
+            }
+            binaryBytes = allocatedBytes() - binaryBytes;
+            assertEquals(0, sink);
+
+            // 割り当て量を測れないJVMでは比較しない
+            if (round == 1 && jsonBytes > 0) {
+                assertTrue("binary " + binaryBytes / iterations + " bytes/msg, json " + jsonBytes / iterations + " bytes/msg",
+                        binaryBytes < jsonBytes);
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.moviessync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 再生位置のずれ補正のテスト（時刻はms）
+ */
+public class PlaybackDriftControllerTest {
+
+    @Test
+    public void smallError_insideDeadband_keepsNormalSpeed() {
+        PlaybackDriftController controller = new PlaybackDriftController();
+
+        assertEquals(PlaybackDriftController.ACTION_NONE, controller.update(10_010L, 10_000L, 0L));
+        assertEquals(1.0f, controller.getSpeed(), 0.0f);
+        assertEquals(10L, controller.getLastErrorMs());
+    }
+
+    @Test
+    public void moderateError_adjustsSpeedProportionally() {
+        PlaybackDriftController controller = new PlaybackDriftController();
+
+        // 40ms先行 → 2秒で取り戻すので2%遅く
+        assertEquals(PlaybackDriftController.ACTION_SET_SPEED, controller.update(10_040L, 10_000L, 0L));
+        assertEquals(0.98f, controller.getSpeed(), 1e-6f);
+
+        // 遅れは上限（5%）で頭打ち
+        controller.reset();
+        controller.update(10_000L, 10_200L, 0L);
+        assertEquals(1.05f, controller.getSpeed(), 1e-6f);
+    }
+
+    @Test
+    public void correction_stopsWithHysteresis() {
+        PlaybackDriftController controller = new PlaybackDriftController();
+        controller.update(10_030L, 10_000L, 0L);
+        assertTrue(controller.getSpeed() < 1.0f);
+
+        // デッドバンド内でも半分まで詰めるまでは補正を続ける
+        controller.update(20_012L, 20_000L, 500L);
+        controller.update(30_012L, 30_000L, 1_000L);
+        assertTrue(controller.getSpeed() < 1.0f);
+
+        controller.update(40_005L, 40_000L, 1_500L);
+        controller.update(50_005L, 50_000L, 2_000L);
+        assertEquals(1.0f, controller.getSpeed(), 0.0f);
+    }
+
+    @Test
+    public void singleOutlier_isFilteredByMedian() {
+        PlaybackDriftController controller = new PlaybackDriftController();
+        controller.update(10_000L, 10_000L, 0L);
+        controller.update(20_000L, 20_000L, 500L);
+
+        assertEquals(PlaybackDriftController.ACTION_NONE, controller.update(30_400L, 30_000L, 1_000L));
+        assertEquals(0, controller.getSeekCount());
+    }
+
+    @Test
+    public void largeError_seeksAndLearnsSeekLatency() {
+        PlaybackDriftController controller = new PlaybackDriftController();
+
+        assertEquals(PlaybackDriftController.ACTION_SEEK, controller.update(9_000L, 10_000L, 0L));
+        assertEquals(10_000L, controller.getSeekPositionMs(10_000L));
+        assertEquals(1, controller.getSeekCount());
+
+        // 落ち着くまでは測定しない
+        assertEquals(PlaybackDriftController.ACTION_NONE, controller.update(0L, 10_500L, 500L));
+
+        // シーク後に80ms遅れていた → 次からは80ms先へシークする
+        controller.update(11_920L, 12_000L, 1_000L);
+        assertEquals(80L, controller.getSeekLeadMs());
+        assertEquals(20_080L, controller.getSeekPositionMs(20_000L));
+    }
+}
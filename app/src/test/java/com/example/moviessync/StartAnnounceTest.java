@@ -0,0 +1,111 @@
+package com.example.moviessync;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 開始指示のUDP送受信のテスト（ループバック、マルチキャストはlo経由）
+ */
+public class StartAnnounceTest {
+    private static final long SESSION = 0x1234_5678_9abcL;
+
+    private final List<StartAnnouncer.Announcement> received = new ArrayList<>();
+    private final Semaphore arrivals = new Semaphore(0);
+    private final StartAnnounceListener.Callback callback = new StartAnnounceListener.Callback() {
+        @Override
+        public void onAnnouncement(StartAnnouncer.Announcement announcement, long receivedAtNanos) {
+            synchronized (received) {
+                received.add(announcement);
+            }
+            arrivals.release();
+        }
+    };
+
+    @Test
+    public void repeatedAnnouncementIsDeliveredOnce() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        StartAnnounceListener listener = new StartAnnounceListener(loopback, 0, null, SESSION, callback);
+        listener.bind();
+        Thread thread = new Thread(listener);
+        thread.start();
+        StartAnnouncer announcer = new StartAnnouncer(loopback, listener.getLocalPort(), null, SESSION);
+        StartAnnouncer otherGroup = new StartAnnouncer(loopback, listener.getLocalPort(), null, SESSION + 1);
+        try {
+            otherGroup.announce(9, 1_000L, 0L, 0L);
+            announcer.announce(3, 5_000L, 60_000L, 500L);
+            assertTrue(arrivals.tryAcquire(1, TimeUnit.SECONDS));
+            // 同じ開始番号の繰り返しと古い番号は通知しない
+            announcer.announce(3, 5_000L, 60_000L, 500L);
+            announcer.announce(2, 4_000L, 0L, 0L);
+            announcer.announce(4, 7_000L, 0L, 0L);
+            assertTrue(arrivals.tryAcquire(1, TimeUnit.SECONDS));
+            assertFalse(arrivals.tryAcquire(100, TimeUnit.MILLISECONDS));
+            synchronized (received) {
+                assertEquals(2, received.size());
+                StartAnnouncer.Announcement first = received.get(0);
+                assertEquals(3, first.startId);
+                assertEquals(5_000L, first.targetEpochMs);
+                assertEquals(60_000L, first.loopDurationMs);
+                assertEquals(500L, first.loopGapMs);
+                assertEquals(4, received.get(1).startId);
+            }
+        } finally {
+            announcer.close();
+            otherGroup.close();
+            listener.stop();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void multicastReachesEveryListener() throws Exception {
+        InetAddress group = InetAddress.getByName("239.255.77.88");
+        NetworkInterface lo = NetworkInterface.getByName("lo");
+        Assume.assumeNotNull(lo);
+        List<StartAnnounceListener> listeners = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        StartAnnouncer announcer = null;
+        try {
+            int port = 0;
+            for (int i = 0; i < 3; i++) {
+                StartAnnounceListener listener = new StartAnnounceListener(group, port, lo, SESSION, callback);
+                try {
+                    listener.bind();
+                } catch (IOException e) {
+                    Assume.assumeNoException("Multicast is not available on lo", e);
+                }
+                // 2台目以降は同じポートを共有する（実機では端末ごとに1つ）
+                port = listener.getLocalPort();
+                listeners.add(listener);
+                Thread thread = new Thread(listener);
+                thread.start();
+                threads.add(thread);
+            }
+            announcer = new StartAnnouncer(group, port, lo, SESSION);
+            announcer.announce(1, 2_000L, 0L, 0L);
+            Assume.assumeTrue("Multicast loopback delivery unavailable", arrivals.tryAcquire(1, 1, TimeUnit.SECONDS));
+            assertTrue(arrivals.tryAcquire(2, 1, TimeUnit.SECONDS));
+            assertFalse(arrivals.tryAcquire(100, TimeUnit.MILLISECONDS));
+        } finally {
+            if (announcer != null) {
+                announcer.close();
+            }
+            for (StartAnnounceListener listener : listeners) {
+                listener.stop();
+            }
+            for (Thread thread : threads) {
+                thread.join(1000);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.moviessync;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * 二段階開始の待ち合わせのテスト
+ */
+public class StartBarrierTest {
+
+    @Test
+    public void completesWhenAllParticipantsReady() {
+        StartBarrier<String> barrier = new StartBarrier<>(7, Arrays.asList("self", "a", "b"), 1_000L);
+
+        assertFalse(barrier.markReady("a", 7, 1_100L));
+        assertFalse(barrier.markReady("self", 7, 1_150L));
+        assertTrue(barrier.markReady("b", 7, 1_400L));
+        assertEquals(400L, barrier.getSlowestReadyMs());
+        assertEquals(3, barrier.getReadyCount());
+        assertTrue(barrier.close());
+        assertFalse(barrier.close());
+    }
+
+    @Test
+    public void ignoresReadyForOtherStartsAndDuplicates() {
+        StartBarrier<String> barrier = new StartBarrier<>(7, Arrays.asList("a", "b"), 0L);
+
+        assertFalse(barrier.markReady("a", 6, 10L));
+        assertFalse(barrier.markReady("a", 7, 20L));
+        assertFalse(barrier.markReady("a", 7, 30L));
+        assertEquals(Collections.singletonList("b"), barrier.getStragglers());
+    }
+
+    @Test
+    public void timeoutLeavesStragglers() {
+        StartBarrier<String> barrier = new StartBarrier<>(1, Arrays.asList("a", "slow"), 0L);
+        barrier.markReady("a", 1, 50L);
+
+        // タイムアウトで締め切った後のREADYでは開始しない
+        assertTrue(barrier.close());
+        assertFalse(barrier.markReady("slow", 1, 6_000L));
+        assertEquals(Collections.singletonList("slow"), barrier.getStragglers());
+    }
+
+    @Test
+    public void disconnectedParticipantIsNotAwaited() {
+        StartBarrier<String> barrier = new StartBarrier<>(1, Arrays.asList("a", "gone"), 0L);
+        barrier.markReady("a", 1, 50L);
+
+        assertTrue(barrier.remove("gone"));
+        assertTrue(barrier.isAllReady());
+    }
+}
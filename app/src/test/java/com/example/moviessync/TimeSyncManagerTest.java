@@ -0,0 +1,79 @@
+package com.example.moviessync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 時刻同期サンプルのフィルタリングとクロックモデルのテスト（単位はμs）
+ */
+public class TimeSyncManagerTest {
+
+    @Test
+    public void estimate_prefersLowRttSamples() {
+        // 真のオフセットは100ms。RTTの大きいサンプルは片側のキューイングでずれている
+        long[] offsets = {100_000, 101_000, 99_000, 130_000, 100_000, 160_000, 75_000};
+        long[] delays = {4_000, 5_000, 4_000, 60_000, 5_000, 90_000, 70_000};
+
+        TimeSyncManager.Estimate estimate = TimeSyncManager.estimate(offsets, delays, offsets.length);
+
+        assertEquals(100_000, estimate.offset);
+        assertEquals(4, estimate.used);
+        assertTrue(estimate.error <= 5_000);
+    }
+
+    @Test
+    public void estimate_singleSample() {
+        TimeSyncManager.Estimate estimate = TimeSyncManager.estimate(new long[]{-20_000}, new long[]{10_000}, 1);
+
+        assertEquals(-20_000, estimate.offset);
+        assertEquals(5_000, estimate.error);
+    }
+
+    @Test
+    public void estimate_noSamples() {
+        assertNull(TimeSyncManager.estimate(new long[0], new long[0], 0));
+    }
+
+    @Test
+    public void fit_estimatesDriftRate() {
+        // 100ppmでずれていくクロック（10分間に60ms）
+        long[] times = new long[5];
+        long[] offsets = new long[5];
+        for (int i = 0; i < 5; i++) {
+            times[i] = 1_000_000_000L + i * 150_000_000L;
+            offsets[i] = 1_700_000_000_000_000L + Math.round(100e-6 * i * 150_000_000L);
+        }
+        long ref = times[4];
+
+        TimeSyncManager.ClockModel model = TimeSyncManager.fit(times, offsets, 5, ref, offsets[4]);
+
+        assertEquals(100.0, model.rate * 1e6, 1.0);
+        assertEquals(offsets[4], model.offsetAt(ref));
+        // 1分先まで外挿
+        assertEquals(offsets[4] + 6_000, model.offsetAt(ref + 60_000_000L));
+    }
+
+    @Test
+    public void fit_ignoresSlopeOverShortSpan() {
+        long[] times = {0L, 1_000_000L, 2_000_000L};
+        long[] offsets = {10_000L, 20_000L, 30_000L};
+
+        TimeSyncManager.ClockModel model = TimeSyncManager.fit(times, offsets, 3, 2_000_000L, 30_000L);
+
+        assertEquals(0.0, model.rate, 0.0);
+        assertEquals(30_000L, model.offsetAt(10_000_000L));
+    }
+
+    @Test
+    public void clockModel_convertsBothWaysWithNanosecondPrecision() {
+        // エポック基準のオフセット（約55年）と50ppmのずれ
+        TimeSyncManager.ClockModel model = new TimeSyncManager.ClockModel(1_735_000_000_000_000L, 50e-6, 3_600_000_000L);
+        long localNanos = 3_600_000_000_000L + 123_456_789L;
+
+        long serverNanos = model.toServerNanos(localNanos);
+
+        assertEquals(1_735_000_000_000_000_000L + localNanos + Math.round(50e-6 * 123_456_789L), serverNanos);
+        assertEquals(localNanos, model.toLocalNanos(serverNanos), 1);
+    }
+}
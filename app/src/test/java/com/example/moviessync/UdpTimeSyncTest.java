@@ -0,0 +1,148 @@
+package com.example.moviessync;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * UDP時刻応答のループバックテスト
+ * UDPの応答がなければ、制御用のTCP接続のSYNC_TIMEで同じ4つの時刻を得られることも確かめる
+ */
+public class UdpTimeSyncTest {
+    private static final LongSupplier MICROS = new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return System.nanoTime() / 1000L;
+        }
+    };
+
+    @Test
+    public void exchange_returnsConsistentTimestamps() throws Exception {
+        UdpTimeServer server = new UdpTimeServer(freeUdpPort(), MICROS);
+        Thread thread = new Thread(server);
+        thread.start();
+        try (UdpTimeClient client = new UdpTimeClient("127.0.0.1", server.getPort(), 300, MICROS)) {
+            assertTrue(exchangeWithRetry(client));
+            assertTrue(client.t0 <= client.t1);
+            assertTrue(client.t1 <= client.t2);
+            assertTrue(client.t2 <= client.t3);
+        } finally {
+            server.stop();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void fallsBackToSyncTimeWithoutUdpServer() throws Exception {
+        // UDPの時刻応答がない（ポートが閉じている・届かない）
+        try (UdpTimeClient udp = new UdpTimeClient("127.0.0.1", freeUdpPort(), 100, MICROS)) {
+            for (int i = 0; i < 3; i++) {
+                assertFalse(udp.exchange());
+            }
+        }
+
+        // 代わりにTCPのSYNC_TIMEで同期する（GroupSyncServiceと同じ応答を返すコーディネーター）
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final long[] reply = new long[4];
+        final CoordinatorServer[] holder = new CoordinatorServer[1];
+        CoordinatorServer server = new CoordinatorServer(port, new CoordinatorServer.Callback() {
+            @Override
+            public void onMemberConnected(MemberConnection member) {
+            }
+
+            @Override
+            public void onMessage(MemberConnection member, MessageProtocol.Message message) {
+                if (message.type != MessageType.SYNC_TIME) {
+                    return;
+                }
+                long recvUs = MICROS.getAsLong();
+                reply[0] = recvUs / 1_000L;
+                reply[1] = message.getLong("client_send_us");
+                reply[2] = recvUs;
+                reply[3] = MICROS.getAsLong();
+                try {
+                    holder[0].replyFields(member, MessageType.SYNC_TIME, reply, 4);
+                } catch (IOException e) {
+                    // I/Oスレッドの例外はそのメンバーの切断になり、受信側で失敗する
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public void onMemberDisconnected(MemberConnection member) {
+            }
+
+            @Override
+            public void onSlowMember(MemberConnection member, boolean evicted) {
+            }
+
+            @Override
+            public void onMemberTimedOut(MemberConnection member) {
+            }
+        });
+        holder[0] = server;
+        Thread thread = new Thread(server);
+        thread.start();
+        CoordinatorLink link = connectWithRetry(port);
+        try {
+            assertTrue(link.handshake(0L));
+            long t0 = MICROS.getAsLong();
+            link.sendFields(MessageType.SYNC_TIME, 0L, t0);
+            MessageProtocol.Message message;
+            do {
+                message = link.receive();
+                assertNotNull(message);
+            } while (message.type != MessageType.SYNC_TIME);
+            long t3 = MICROS.getAsLong();
+            assertEquals(t0, message.getLong("client_send_us"));
+            long t1 = message.getLong("server_recv_us");
+            long t2 = message.getLong("server_send_us");
+            assertTrue(t0 <= t1);
+            assertTrue(t1 <= t2);
+            assertTrue(t2 <= t3);
+        } finally {
+            link.close();
+            server.stop();
+            thread.join(1000);
+        }
+    }
+
+    // サーバスレッドのbind待ちのため数回試す
+    private static boolean exchangeWithRetry(UdpTimeClient client) throws Exception {
+        for (int i = 0; i < 10; i++) {
+            if (client.exchange()) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static int freeUdpPort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // コーディネーターが待ち受けを始めるまで数回試す
+    private static CoordinatorLink connectWithRetry(int port) throws Exception {
+        IOException last = null;
+        for (int i = 0; i < 20; i++) {
+            try {
+                return CoordinatorLink.connect("127.0.0.1", port);
+            } catch (IOException e) {
+                last = e;
+                Thread.sleep(50);
+            }
+        }
+        throw last;
+    }
+}